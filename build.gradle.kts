@@ -35,12 +35,16 @@ dependencies {
     implementation("shareandcharge.openchargingnetwork:notary:1.0.1")
     implementation("org.springframework.boot:spring-boot-starter-data-jpa")
     implementation("org.springframework.boot:spring-boot-starter-web")
+    implementation("org.springframework.boot:spring-boot-starter-actuator")
+    implementation("org.springframework.boot:spring-boot-starter-websocket")
     implementation("com.fasterxml.jackson.module:jackson-module-kotlin")
+    implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-smile")
     implementation("org.jetbrains.kotlin:kotlin-reflect")
     implementation("org.jetbrains.kotlin:kotlin-stdlib-jdk8")
     implementation("khttp:khttp:1.0.0")
     implementation("org.web3j:core:4.5.5")
     implementation("org.postgresql:postgresql:42.2.12")
+    implementation("org.flywaydb:flyway-core")
     runtimeOnly("com.h2database:h2")
     kapt("org.springframework.boot:spring-boot-configuration-processor")
     asciidoctor("org.springframework.restdocs:spring-restdocs-asciidoctor:2.0.4.RELEASE")
@@ -84,6 +88,7 @@ tasks.register<Test>("unitTest") {
     description = "Runs OCN Node unit tests."
     useJUnitPlatform()
     exclude("**/integration/**")
+    exclude("**/benchmark/**")
 }
 
 tasks.register<Test>("integrationTest") {
@@ -93,6 +98,14 @@ tasks.register<Test>("integrationTest") {
     include("**/integration/**")
 }
 
+tasks.register<Test>("benchmark") {
+    group = "verification"
+    description = "Runs OCN Node benchmarks (e.g. of the encoding of messages between nodes)."
+    useJUnitPlatform()
+    include("**/benchmark/**")
+    testLogging.showStandardStreams = true
+}
+
 tasks.register<Exec>("ganache") {
     group = "help"
     description = "Runs a ganache-cli instance for integration testing."
@@ -122,9 +135,9 @@ tasks {
 
 (tasks.getByName("processResources") as ProcessResources).apply {
     val profile: String by project
-    include("**/application.$profile.properties")
+    include("**/application.$profile.properties", "db/migration/**")
     rename {
-        "application.properties"
+        if (it == "application.$profile.properties") "application.properties" else it
     }
 }
 
@@ -0,0 +1,153 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.components
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.slf4j.LoggerFactory
+import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
+import org.springframework.stereotype.Component
+import org.springframework.web.socket.CloseStatus
+import org.springframework.web.socket.TextMessage
+import org.springframework.web.socket.WebSocketSession
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator
+import org.springframework.web.socket.handler.TextWebSocketHandler
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.controllers.ocn.ClientInfoController
+import snc.openchargingnetwork.node.controllers.ocn.MessageController
+import snc.openchargingnetwork.node.models.OcnChannelFrame
+import snc.openchargingnetwork.node.models.exceptions.InvalidOcnSessionException
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
+import snc.openchargingnetwork.node.models.exceptions.toOcpiError
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.tools.namedDaemonThreadFactory
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import javax.annotation.PreDestroy
+
+/**
+ * Receives requests from other OCN Nodes over channels (see OcnChannelService) and handles them as if they had been
+ * made over HTTP. Requests are handled concurrently; responses are sent back over the channel as they complete.
+ */
+@Component
+class OcnChannelHandler(private val messageController: MessageController,
+                        private val clientInfoController: ClientInfoController,
+                        private val httpService: HttpService,
+                        private val properties: NodeProperties): TextWebSocketHandler() {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(OcnChannelHandler::class.java)
+    }
+
+    private val sessions = ConcurrentHashMap<String, WebSocketSession>()
+    private val partialMessages = ConcurrentHashMap<String, StringBuilder>()
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(properties.fanOutParallelism,
+            namedDaemonThreadFactory("ocn-channel"))
+
+    override fun afterConnectionEstablished(session: WebSocketSession) {
+        sessions[session.id] = ConcurrentWebSocketSessionDecorator(session, properties.channelRequestTimeout.toInt(),
+                properties.channelMaxBufferSize)
+    }
+
+    override fun afterConnectionClosed(session: WebSocketSession, status: CloseStatus) {
+        sessions.remove(session.id)
+        partialMessages.remove(session.id)
+    }
+
+    override fun supportsPartialMessages() = true
+
+    override fun handleTextMessage(session: WebSocketSession, message: TextMessage) {
+        val partialMessage = partialMessages.getOrPut(session.id) { StringBuilder() }
+        partialMessage.append(message.payload)
+        if (!message.isLast) {
+            return
+        }
+        val frame: OcnChannelFrame = httpService.mapper.readValue(partialMessage.toString())
+        partialMessage.setLength(0)
+
+        executor.submit {
+            val response = handle(frame)
+            try {
+                sessions[session.id]?.sendMessage(TextMessage(httpService.mapper.writeValueAsString(response)))
+            } catch (e: IOException) {
+                logger.warn("Could not send response to ${frame.id} over channel ${session.id}: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * Handle a request frame by calling the controller serving the same request over HTTP
+     */
+    private fun handle(frame: OcnChannelFrame): OcnChannelFrame {
+        return try {
+            val requestID = frame.headers["X-Request-ID"] ?: ""
+            val signature = frame.headers["OCN-Signature"]
+            val body = frame.body ?: throw OcpiClientInvalidParametersException("Missing request body")
+
+            when (frame.path) {
+                "/ocn/message" -> {
+                    val response = messageController.postMessage(requestID, signature, frame.headers["OCN-Session-ID"],
+                            frame.headers["OCN-MAC"], body)
+                    toFrame(frame.id, response)
+                }
+                "/ocn/message/batch" -> {
+                    val response = messageController.postMessageBatch(requestID, requireSignature(signature), body)
+                    toFrame(frame.id, response)
+                }
+                "/ocn/client-info" -> {
+                    clientInfoController.updateClientInfo(requireSignature(signature), body)
+                    OcnChannelFrame(id = frame.id, status = HttpStatus.OK.value())
+                }
+                "/ocn/client-info/batch" -> {
+                    clientInfoController.updateClientInfoBatch(requireSignature(signature), body)
+                    OcnChannelFrame(id = frame.id, status = HttpStatus.OK.value())
+                }
+                else -> OcnChannelFrame(id = frame.id, status = HttpStatus.NOT_FOUND.value())
+            }
+        } catch (e: Exception) {
+            val (httpStatus, ocpiStatus) = e.toOcpiError()
+            val body = OcpiResponse<Unit>(statusCode = ocpiStatus.code, statusMessage = e.message)
+            OcnChannelFrame(
+                    id = frame.id,
+                    status = httpStatus.value(),
+                    headers = if (e is InvalidOcnSessionException) mapOf("OCN-Session-Invalid" to "true") else mapOf(),
+                    body = httpService.mapper.writeValueAsString(body))
+        }
+    }
+
+    private fun requireSignature(signature: String?): String {
+        return signature ?: throw OcpiClientInvalidParametersException("Missing required header OCN-Signature")
+    }
+
+    private fun toFrame(id: String, response: ResponseEntity<*>): OcnChannelFrame {
+        return OcnChannelFrame(
+                id = id,
+                status = response.statusCodeValue,
+                headers = response.headers.toSingleValueMap(),
+                body = httpService.mapper.writeValueAsString(response.body))
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.components
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Component
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.AggregateResult
+import snc.openchargingnetwork.node.models.MulticastRequest
+import snc.openchargingnetwork.node.models.MulticastResult
+import snc.openchargingnetwork.node.models.OcnMessageBatch
+import snc.openchargingnetwork.node.models.OcnMessageBatchEntry
+import snc.openchargingnetwork.node.models.OcnMessageBatchResult
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubTimeoutOnRequestException
+import snc.openchargingnetwork.node.models.exceptions.toOcpiError
+import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.services.HubClientInfoService
+import snc.openchargingnetwork.node.services.NodeSessionService
+import snc.openchargingnetwork.node.services.OcnRulesService
+import snc.openchargingnetwork.node.services.RoutingService
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import snc.openchargingnetwork.node.tools.namedDaemonThreadFactory
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import javax.annotation.PreDestroy
+
+/**
+ * Fans a single request out to multiple recipients. Each copy of the request is routed and forwarded as if it had
+ * been sent to the recipient individually (i.e. OcnRules are checked per recipient), on a bounded pool of workers.
+ * Supports pushing to many receivers (multicast), pulling from many data owners (aggregate) and receiving batches
+ * of messages from other OCN Nodes.
+ */
+@Component
+class OcpiFanOutHandler(private val requestHandlerBuilder: OcpiRequestHandlerBuilder,
+                        private val routingService: RoutingService,
+                        private val hubClientInfoService: HubClientInfoService,
+                        private val ocnRulesService: OcnRulesService,
+                        private val nodeSessionService: NodeSessionService,
+                        private val httpService: HttpService,
+                        private val properties: NodeProperties) {
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(properties.fanOutParallelism, namedDaemonThreadFactory("fan-out"))
+
+    // separate from the fan-out workers, which may be waiting on batches sent to other nodes
+    private val batchExecutor: ExecutorService = Executors.newFixedThreadPool(properties.fanOutParallelism, namedDaemonThreadFactory("message-batch"))
+
+    private val multicastMethods = listOf(HttpMethod.PUT, HttpMethod.PATCH, HttpMethod.POST)
+    private val excludedModules = listOf(ModuleID.CREDENTIALS, ModuleID.HUB_CLIENT_INFO, ModuleID.CUSTOM)
+    private val aggregateModules = listOf(ModuleID.CDRS, ModuleID.LOCATIONS, ModuleID.SESSIONS, ModuleID.TARIFFS, ModuleID.TOKENS)
+
+    /**
+     * Push the same receiver interface request to a list of recipients and/or all parties which have whitelisted
+     * the sender for the module. Results (or errors) are returned per recipient, in no particular order. Recipients
+     * which have not responded within the configured timeout (measured from the moment the requests are submitted to
+     * the workers) are reported as timed out.
+     *
+     * Multicast requests cannot be signed, as the signature covers the recipient's OCPI-to-* headers. Recipients
+     * requiring signatures therefore respond with an error.
+     */
+    fun multicast(authorization: String,
+                  correlationID: String,
+                  sender: BasicRole,
+                  multicast: MulticastRequest): List<MulticastResult> {
+
+        // validate the sender once, rather than for every copy of the request
+        routingService.checkSenderKnown(authorization, sender)
+        hubClientInfoService.renewClientConnection(sender)
+
+        val module = ModuleID.values().find { it.id == multicast.module }
+        if (module == null || excludedModules.contains(module)) {
+            throw OcpiClientInvalidParametersException("Module ${multicast.module} cannot be multicast")
+        }
+        if (!multicastMethods.contains(multicast.method)) {
+            throw OcpiClientInvalidParametersException("Method ${multicast.method} cannot be multicast")
+        }
+
+        val targets = getTargets(sender, module, multicast)
+
+        val deadline = System.currentTimeMillis() + properties.multicastTimeout
+        val futures = targets.map { target ->
+            val request = OcpiRequestVariables(
+                    module = module,
+                    interfaceRole = InterfaceRole.RECEIVER,
+                    method = multicast.method,
+                    headers = OcnHeaders(
+                            authorization = authorization,
+                            requestID = generateUUIDv4Token(),
+                            correlationID = correlationID,
+                            sender = sender,
+                            receiver = target),
+                    urlPath = multicast.urlPath,
+                    queryParams = multicast.queryParams,
+                    body = multicast.body)
+
+            Pair(target, executor.submit(Callable { forward(request) }))
+        }
+
+        return futures.map { (target, future) -> getMulticastResult(target, future, deadline) }
+    }
+
+    private fun getTargets(sender: BasicRole, module: ModuleID, multicast: MulticastRequest): List<BasicRole> {
+        val targets = (multicast.targets ?: listOf()).toMutableList()
+        if (multicast.allWhitelisted) {
+            targets.addAll(ocnRulesService.getPartiesWhitelisting(sender, module.id))
+        }
+
+        val distinctTargets = targets
+                .map { it.toUpperCase() }
+                .distinct()
+                .filter { it != sender.toUpperCase() }
+
+        if (distinctTargets.isEmpty()) {
+            throw OcpiClientInvalidParametersException("No recipients found for multicast request")
+        }
+        if (distinctTargets.size > properties.fanOutMaxTargets) {
+            throw OcpiClientInvalidParametersException("Multicast request exceeds limit of ${properties.fanOutMaxTargets} recipients")
+        }
+        return distinctTargets
+    }
+
+    private fun forward(request: OcpiRequestVariables): MulticastResult {
+        val response = requestHandlerBuilder
+                .build<Any>(request)
+                .forwardDefault(senderValidated = true)
+                .getResponse()
+        return MulticastResult(
+                target = request.headers.receiver,
+                httpStatus = response.statusCodeValue,
+                response = response.body ?: OcpiResponse<Any>(statusCode = OcpiStatus.SERVER_ERROR.code))
+    }
+
+    private fun getMulticastResult(target: BasicRole, future: Future<MulticastResult>, deadline: Long): MulticastResult {
+        val error = try {
+            return future.get((deadline - System.currentTimeMillis()).coerceAtLeast(0), TimeUnit.MILLISECONDS)
+        } catch (e: ExecutionException) {
+            e.cause ?: e
+        } catch (e: TimeoutException) {
+            future.cancel(true)
+            OcpiHubTimeoutOnRequestException()
+        }
+
+        val (httpStatus, ocpiStatus) = error.toOcpiError()
+        return MulticastResult(
+                target = target,
+                httpStatus = httpStatus.value(),
+                response = OcpiResponse<Any>(statusCode = ocpiStatus.code, statusMessage = error.message))
+    }
+
+    /**
+     * Validate an aggregate (sender interface list) request and create a request per data owner, for a given list of
+     * data owners or all parties of a role in the sender's HubClientInfo list. Requests are sorted by data owner,
+     * so that the list can be paginated.
+     */
+    fun getAggregateRequests(authorization: String,
+                             correlationID: String,
+                             sender: BasicRole,
+                             module: String,
+                             targets: List<BasicRole>?,
+                             role: Role?,
+                             queryParams: Map<String, Any?>): List<OcpiRequestVariables> {
+
+        // validate the sender once, rather than for every copy of the request
+        routingService.checkSenderKnown(authorization, sender)
+        hubClientInfoService.renewClientConnection(sender)
+
+        val moduleID = aggregateModules.find { it.id == module }
+                ?: throw OcpiClientInvalidParametersException("Module $module cannot be aggregated")
+
+        val allTargets = (targets ?: listOf()).toMutableList()
+        if (role != null) {
+            allTargets.addAll(hubClientInfoService.getList(authorization)
+                    .filter { it.role == role }
+                    .map { BasicRole(id = it.partyID, country = it.countryCode) })
+        }
+
+        val distinctTargets = allTargets
+                .map { it.toUpperCase() }
+                .distinct()
+                .filter { it != sender.toUpperCase() }
+                .sortedWith(compareBy({ it.country }, { it.id }))
+
+        if (distinctTargets.isEmpty()) {
+            throw OcpiClientInvalidParametersException("No data owners found for aggregate request")
+        }
+
+        return distinctTargets.map {
+            OcpiRequestVariables(
+                    module = moduleID,
+                    interfaceRole = InterfaceRole.SENDER,
+                    method = HttpMethod.GET,
+                    headers = OcnHeaders(
+                            authorization = authorization,
+                            requestID = generateUUIDv4Token(),
+                            correlationID = correlationID,
+                            sender = sender,
+                            receiver = it),
+                    queryParams = queryParams)
+        }
+    }
+
+    /**
+     * Forward aggregate requests in parallel, passing each data owner's result to the consumer as soon as it
+     * arrives. Requests which have not completed within the configured timeout (measured from the moment they are
+     * submitted to the workers, so including any time waiting for a worker) are abandoned and reported as timed out.
+     * Blocks until all results have been consumed.
+     */
+    fun gather(requests: List<OcpiRequestVariables>, consume: (AggregateResult) -> Unit) {
+        val completionService = ExecutorCompletionService<AggregateResult>(executor)
+
+        val deadline = System.currentTimeMillis() + properties.aggregateTimeout
+        val pending = requests.withIndex().associateTo(mutableMapOf()) { (index, request) ->
+            Pair(completionService.submit(Callable { getAggregateResult(request) }), index)
+        }
+
+        while (pending.isNotEmpty()) {
+            val remaining = deadline - System.currentTimeMillis()
+            val future = if (remaining > 0) completionService.poll(remaining, TimeUnit.MILLISECONDS) else null
+
+            if (future == null) {
+                // the remaining data owners have not responded in time
+                for ((timedOut, index) in pending) {
+                    timedOut.cancel(true)
+                    consume(getErrorResult(requests[index].headers.receiver, OcpiHubTimeoutOnRequestException()))
+                }
+                pending.clear()
+            } else {
+                pending.remove(future)?.let { index -> consume(getResult(requests[index].headers.receiver, future)) }
+            }
+        }
+    }
+
+    private fun getAggregateResult(request: OcpiRequestVariables): AggregateResult {
+        val response = requestHandlerBuilder
+                .build<Any>(request)
+                .forwardDefault(senderValidated = true)
+                .getResponseWithPaginationHeaders()
+        return AggregateResult(
+                source = request.headers.receiver,
+                httpStatus = response.statusCodeValue,
+                headers = response.headers.toSingleValueMap(),
+                response = response.body ?: OcpiResponse<Any>(statusCode = OcpiStatus.SERVER_ERROR.code))
+    }
+
+    // the future has completed (taken from the completion service)
+    private fun getResult(source: BasicRole, future: Future<AggregateResult>): AggregateResult {
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            getErrorResult(source, e.cause ?: e)
+        }
+    }
+
+    private fun getErrorResult(source: BasicRole, e: Throwable): AggregateResult {
+        val (httpStatus, ocpiStatus) = e.toOcpiError()
+        return AggregateResult(
+                source = source,
+                httpStatus = httpStatus.value(),
+                headers = mapOf(),
+                response = OcpiResponse<Any>(statusCode = ocpiStatus.code, statusMessage = e.message))
+    }
+
+    /**
+     * Forward a batch of messages received from another OCN Node (see OcnMessageBatchService). The signature of the
+     * batch is verified once, for all senders in the batch. Messages to the same recipient are forwarded in the order
+     * of the batch; messages to different recipients are forwarded in parallel.
+     */
+    fun forwardBatchFromOcn(batchString: String, sendingNodeHeaders: OcnMessageHeaders): List<OcnMessageBatchResult> {
+        val batch: OcnMessageBatch = httpService.mapper.readValue(batchString)
+
+        nodeSessionService.verify(batchString, sendingNodeHeaders, batch.messages.map { it.request.headers.sender }.toSet())
+
+        val futures = batch.messages
+                .groupBy { it.request.headers.receiver.toUpperCase() }
+                .values
+                .map { messages -> batchExecutor.submit(Callable { messages.map { forwardBatchMessage(it) } }) }
+
+        return futures.flatMap { it.get() }
+    }
+
+    private fun forwardBatchMessage(message: OcnMessageBatchEntry): OcnMessageBatchResult {
+        return try {
+            val response = requestHandlerBuilder
+                    .build<Any>(message.request)
+                    .forwardFromOcnBatch()
+                    .getResponseWithAllHeaders()
+            OcnMessageBatchResult(
+                    requestID = message.requestID,
+                    httpStatus = response.statusCodeValue,
+                    headers = response.headers.toSingleValueMap(),
+                    response = response.body ?: OcpiResponse(statusCode = OcpiStatus.SERVER_ERROR.code))
+        } catch (e: Exception) {
+            val (httpStatus, ocpiStatus) = e.toOcpiError()
+            OcnMessageBatchResult(
+                    requestID = message.requestID,
+                    httpStatus = httpStatus.value(),
+                    headers = mapOf(),
+                    response = OcpiResponse(statusCode = ocpiStatus.code, statusMessage = e.message))
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        executor.shutdown()
+        batchExecutor.shutdown()
+    }
+
+}
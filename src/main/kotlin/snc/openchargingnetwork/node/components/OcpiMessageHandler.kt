@@ -19,17 +19,23 @@ package snc.openchargingnetwork.node.components
 import org.web3j.crypto.Keys
 import shareandcharge.openchargingnetwork.notary.Notary
 import shareandcharge.openchargingnetwork.notary.ValuesToSign
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.services.CryptoService
 import snc.openchargingnetwork.node.services.RegistryService
 import snc.openchargingnetwork.node.services.RoutingService
+import snc.openchargingnetwork.node.services.SignatureCacheService
 
 open class OcpiMessageHandler(val request: OcpiRequestVariables,
                               val properties: NodeProperties,
                               val routingService: RoutingService,
-                              val registryService: RegistryService) {
+                              val registryService: RegistryService,
+                              val nodeIdentity: NodeIdentity,
+                              val cryptoService: CryptoService,
+                              val signatureCacheService: SignatureCacheService) {
 
     /**
      * Notary object instantiated after validating a request.
@@ -62,23 +68,58 @@ open class OcpiMessageHandler(val request: OcpiRequestVariables,
      * @param receiver optional receiver of message (checks their OcnRules for signature verification requirement)
      */
     fun validateOcnSignature(signature: String?, signedValues: ValuesToSign<*>, signer: BasicRole, receiver: BasicRole? = null) {
-        if (isSigningActive(receiver)) {
-            val result = signature?.let {
-                notary = Notary.deserialize(it)
-                notary?.verify(signedValues)
-            }
-            when {
-                result == null -> throw OcpiClientInvalidParametersException("Missing OCN Signature")
-                !result.isValid -> throw OcpiClientInvalidParametersException("Invalid signature: ${result.error}")
+        startOcnSignatureValidation(signature, signedValues, signer, receiver).invoke()
+    }
+
+    /**
+     * Start the validation of an "OCN-Signature" (see validateOcnSignature) on the crypto workers, so that the caller
+     * can do other work (e.g. forward the request) in the meantime.
+     *
+     * Throws straight away if the signature is missing or cannot be read.
+     *
+     * @return function which completes the validation, throwing if the signature is invalid. Must be called before
+     * the notary is used (e.g. by rewriteAndSign).
+     */
+    fun startOcnSignatureValidation(signature: String?, signedValues: ValuesToSign<*>, signer: BasicRole, receiver: BasicRole? = null): () -> Unit {
+        if (!isSigningActive(receiver)) {
+            return {}
+        }
+
+        // the cheap checks are done straight away, so that a request is not forwarded without a readable signature
+        if (signature == null) {
+            throw OcpiClientInvalidParametersException("Missing OCN Signature")
+        }
+        val notary = try {
+            Notary.deserialize(signature)
+        } catch (e: Exception) {
+            throw OcpiClientInvalidParametersException("Invalid signature: ${e.message}")
+        }
+        this.notary = notary
+
+        val verification = cryptoService.submit("notary-verify") {
+            // only valid signatures are cached
+            signatureCacheService.getSignerOfValues(signedValues, signature) {
+                val result = notary.verify(signedValues)
+                if (!result.isValid) {
+                    throw OcpiClientInvalidParametersException("Invalid signature: ${result.error}")
+                }
+                notary.signatory ?: throw OcpiClientInvalidParametersException("Invalid signature: missing signatory")
             }
+        }
+
+        return {
+            val signatory = cryptoService.await(verification)
 
-            val party = registryService.getPartyDetails(signer)
-            val actualSignatory = Keys.toChecksumAddress(notary?.signatory)
-            val signedByParty = actualSignatory == Keys.toChecksumAddress(party.address)
-            val signedByOperator = actualSignatory == Keys.toChecksumAddress(party.operator)
+            if (!signatureCacheService.isVerified(signer, signatory, SignatureCacheService.Check.SIGNATORY)) {
+                val party = registryService.getPartyDetails(signer)
+                val actualSignatory = Keys.toChecksumAddress(signatory)
+                val signedByParty = actualSignatory == Keys.toChecksumAddress(party.address)
+                val signedByOperator = actualSignatory == Keys.toChecksumAddress(party.operator)
 
-            if (!signedByParty && !signedByOperator) {
-                throw OcpiClientInvalidParametersException("Actual signatory ${notary?.signatory} differs from expected signatory ${party.address} (party) or ${party.operator} (operator)")
+                if (!signedByParty && !signedByOperator) {
+                    throw OcpiClientInvalidParametersException("Actual signatory $signatory differs from expected signatory ${party.address} (party) or ${party.operator} (operator)")
+                }
+                signatureCacheService.setVerified(signer, signatory, party.operator, SignatureCacheService.Check.SIGNATORY)
             }
         }
     }
@@ -90,7 +131,7 @@ open class OcpiMessageHandler(val request: OcpiRequestVariables,
         if (isSigningActive()) {
             val notary = validateNotary()
             notary.stash(rewriteFields)
-            notary.sign(valuesToSign, properties.privateKey!!)
+            cryptoService.run("notary-sign") { notary.sign(valuesToSign, nodeIdentity.privateKey) }
             return notary.serialize()
         }
         return null
@@ -19,12 +19,15 @@ package snc.openchargingnetwork.node.components
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import org.springframework.stereotype.Component
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
 import snc.openchargingnetwork.node.models.Receiver
 import snc.openchargingnetwork.node.models.exceptions.OcpiHubUnknownReceiverException
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
 import snc.openchargingnetwork.node.services.*
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
 import snc.openchargingnetwork.node.tools.urlJoin
@@ -37,27 +40,51 @@ import snc.openchargingnetwork.node.tools.urlJoin
 class OcpiRequestHandlerBuilder(private val routingService: RoutingService,
                                 private val registryService: RegistryService,
                                 private val httpService: HttpService,
-                                private val walletService: WalletService,
+                                private val nodeSessionService: NodeSessionService,
                                 private val hubClientInfoService: HubClientInfoService,
                                 private val asyncTaskService: AsyncTaskService,
+                                private val receiverDispatchService: ReceiverDispatchService,
+                                private val locationMirrorService: LocationMirrorService,
+                                private val deltaSyncService: DeltaSyncService,
+                                private val tokenAuthorizationService: TokenAuthorizationService,
                                 private val responseHandlerBuilder: OcpiResponseHandlerBuilder,
-                                private val properties: NodeProperties) {
+                                private val properties: NodeProperties,
+                                private val nodeIdentity: NodeIdentity,
+                                private val cryptoService: CryptoService,
+                                private val signatureCacheService: SignatureCacheService) {
 
     /**
      * Build a RequestHandler object from an OcpiRequestVariables object.
      */
     fun <T: Any> build(requestVariables: OcpiRequestVariables): OcpiRequestHandler<T> {
         return OcpiRequestHandler(requestVariables, routingService, registryService, httpService, hubClientInfoService,
-                walletService, asyncTaskService, responseHandlerBuilder, properties)
+                nodeSessionService, asyncTaskService, receiverDispatchService, locationMirrorService, deltaSyncService,
+                tokenAuthorizationService, responseHandlerBuilder, properties, nodeIdentity, cryptoService,
+                signatureCacheService)
     }
 
     /**
-     * Build a RequestHandler object from a JSON-serialized string of an OcpiRequestVariables object.
+     * Build a RequestHandler object from a JSON-serialized string of an OcpiRequestVariables object. The string is
+     * kept, so that signatures are verified over (and unchanged bodies forwarded as) the received JSON.
      */
     fun <T: Any> build(requestVariablesString: String): OcpiRequestHandler<T> {
         val requestVariables = httpService.convertToRequestVariables(requestVariablesString)
         return OcpiRequestHandler(requestVariables, routingService, registryService, httpService, hubClientInfoService,
-                walletService, asyncTaskService, responseHandlerBuilder, properties)
+                nodeSessionService, asyncTaskService, receiverDispatchService, locationMirrorService, deltaSyncService,
+                tokenAuthorizationService, responseHandlerBuilder, properties, nodeIdentity, cryptoService,
+                signatureCacheService, requestVariablesString)
+    }
+
+    /**
+     * Build a RequestHandler object from a Smile-encoded OcpiRequestVariables object (see OcnNodeFeature.MESSAGE_SMILE).
+     * The bytes are kept, so that signatures are verified over the received encoding.
+     */
+    fun <T: Any> build(requestVariablesSmile: ByteArray): OcpiRequestHandler<T> {
+        val requestVariables = httpService.convertToRequestVariables(requestVariablesSmile)
+        return OcpiRequestHandler(requestVariables, routingService, registryService, httpService, hubClientInfoService,
+                nodeSessionService, asyncTaskService, receiverDispatchService, locationMirrorService, deltaSyncService,
+                tokenAuthorizationService, responseHandlerBuilder, properties, nodeIdentity, cryptoService,
+                signatureCacheService, rawSmileRequest = requestVariablesSmile)
     }
 
 }
@@ -87,10 +114,20 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
                                  registryService: RegistryService,
                                  private val httpService: HttpService,
                                  private val hubClientInfoService: HubClientInfoService,
-                                 private val walletService: WalletService,
+                                 private val nodeSessionService: NodeSessionService,
                                  private val asyncTaskService: AsyncTaskService,
+                                 private val receiverDispatchService: ReceiverDispatchService,
+                                 private val locationMirrorService: LocationMirrorService,
+                                 private val deltaSyncService: DeltaSyncService,
+                                 private val tokenAuthorizationService: TokenAuthorizationService,
                                  private val responseHandlerBuilder: OcpiResponseHandlerBuilder,
-                                 properties: NodeProperties): OcpiMessageHandler(request, properties, routingService, registryService) {
+                                 properties: NodeProperties,
+                                 nodeIdentity: NodeIdentity,
+                                 cryptoService: CryptoService,
+                                 signatureCacheService: SignatureCacheService,
+                                 private val rawRequest: String? = null,
+                                 private val rawSmileRequest: ByteArray? = null):
+        OcpiMessageHandler(request, properties, routingService, registryService, nodeIdentity, cryptoService, signatureCacheService) {
 
     companion object {
         private var logger: Logger = LoggerFactory.getLogger(OcpiRequestHandler::class.java)
@@ -100,32 +137,46 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
      * Forward an incoming request to the specified receiver.
      * @param proxied tells the RequestHandler that this request requires a proxied resource that was previously
      * saved by the OCN Node (e.g. a paginated "Link" response header).
+     * @param senderValidated set to true if the (local) sender has already been validated, e.g. once for all
+     * requests of a multicast.
      */
-    fun forwardDefault(proxied: Boolean = false, fromLocalPlatform: Boolean = true): OcpiResponseHandler<T> {
-        if (fromLocalPlatform) {
+    fun forwardDefault(proxied: Boolean = false,
+                       fromLocalPlatform: Boolean = true,
+                       senderValidated: Boolean = false): OcpiResponseHandler<T> {
+        if (fromLocalPlatform && !senderValidated) {
             assertSenderValid()
         }
 
-        val response: HttpResponse<T> = when (routingService.getReceiverType(request.headers.receiver)) {
+        // receiver pushes concerning the same object are forwarded one after another, in order of arrival
+        val response: HttpResponse<T> = receiverDispatchService.dispatch(request) {
+            when (routingService.getReceiverType(request.headers.receiver)) {
 
-            Receiver.LOCAL -> {
-                assertWhitelisted()
-                assertValidSignature()
-                val (url, headers) = routingService.prepareLocalPlatformRequest(request, proxied)
+                Receiver.LOCAL -> {
+                    assertWhitelisted()
+                    assertValidSignature()
 
-                asyncTaskService.forwardOcpiRequestToLinkedServices(this, fromLocalPlatform)
-                httpService.makeOcpiRequest(url, headers, request)
-            }
+                    getMirroredResponse(fromLocalPlatform)
+                            ?: getDeltaSyncResponse(proxied, fromLocalPlatform)
+                            ?: forwardToLocalPlatform(proxied, fromLocalPlatform)
+                }
 
-            Receiver.REMOTE -> {
-                assertValidSignature(false)
-                val (url, headers, body) = routingService.prepareRemotePlatformRequest(request, proxied)
+                Receiver.REMOTE -> {
+                    // the signer is recovered and checked against the Registry while the request to the remote node
+                    // is prepared, but the request is only sent once the signature has been verified
+                    val completeValidation = startSignatureValidation(false)
+                    val (url, headers, body) = routingService.prepareRemotePlatformRequest(request, proxied)
+                    completeValidation()
 
-                asyncTaskService.forwardOcpiRequestToLinkedServices(this, fromLocalPlatform)
-                httpService.postOcnMessage(url, headers, body)
+                    asyncTaskService.forwardOcpiRequestToLinkedServices(this, fromLocalPlatform)
+                    routingService.postRemotePlatformRequest<T>(url, headers, body)
+                }
             }
         }
 
+        if (fromLocalPlatform && response.body.statusCode == 1000) {
+            tokenAuthorizationService.index(request)
+        }
+
         return responseHandlerBuilder.build(request, response, knownSender = fromLocalPlatform)
     }
 
@@ -176,7 +227,7 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
                 }
 
                 asyncTaskService.forwardOcpiRequestToLinkedServices(this)
-                httpService.postOcnMessage(url, headers, body)
+                routingService.postRemotePlatformRequest(url, headers, body)
             }
 
         }
@@ -185,11 +236,20 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
     }
 
     /**
-     * Forwards a message received over the network (containing an "OCN-Signature" from the sending node)
-     * @param sendingNodeSignature the OCN-Signature header received from the sending node
+     * Forwards a message received over the network (containing an "OCN-Signature" or "OCN-MAC" from the sending node)
+     * @param sendingNodeHeaders the headers received from the sending node
      */
-    fun forwardFromOcn(sendingNodeSignature: String): OcpiResponseHandler<T> {
-        validateOcnMessage(sendingNodeSignature)
+    fun forwardFromOcn(sendingNodeHeaders: OcnMessageHeaders): OcpiResponseHandler<T> {
+        validateOcnMessage(sendingNodeHeaders)
+        return forwardDefault(fromLocalPlatform = false)
+    }
+
+    /**
+     * Forwards a message received over the network as part of a batch. The "OCN-Signature" of the batch must have
+     * been verified for the sender of the message beforehand.
+     */
+    fun forwardFromOcnBatch(): OcpiResponseHandler<T> {
+        validateOcnMessage(null)
         return forwardDefault(fromLocalPlatform = false)
     }
 
@@ -198,12 +258,7 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
      * @param newRecipient country_code and party_id of the Service
      */
     fun forwardAgain(newRecipient: BasicRole): OcpiResponseHandler<T> {
-        val modifiedRequest = request.copy(headers = request.headers.copy(receiver = newRecipient))
-        val rewriteFields = mapOf(
-                "$['headers']['ocpi-to-country-code']" to request.headers.receiver.country,
-                "$['headers']['ocpi-to-party-id']" to request.headers.receiver.id)
-
-        modifiedRequest.headers.signature = rewriteAndSign(modifiedRequest.toSignedValues(), rewriteFields)
+        val modifiedRequest = copyFor(newRecipient)
 
         val response: HttpResponse<T> = when (routingService.getReceiverType(newRecipient)) {
             Receiver.LOCAL -> {
@@ -212,13 +267,27 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
             }
             Receiver.REMOTE -> {
                 val (url, headers, body) = routingService.prepareRemotePlatformRequest(modifiedRequest)
-                httpService.postOcnMessage(url, headers, body)
+                routingService.postRemotePlatformRequest(url, headers, body)
             }
         }
 
         return responseHandlerBuilder.build(modifiedRequest, response)
     }
 
+    /**
+     * Copy the request for another recipient, re-signing it if signing is active
+     * @param newRecipient country_code and party_id of the Service
+     */
+    fun copyFor(newRecipient: BasicRole): OcpiRequestVariables {
+        val modifiedRequest = request.copy(headers = request.headers.copy(receiver = newRecipient))
+        val rewriteFields = mapOf(
+                "$['headers']['ocpi-to-country-code']" to request.headers.receiver.country,
+                "$['headers']['ocpi-to-party-id']" to request.headers.receiver.id)
+
+        modifiedRequest.headers.signature = rewriteAndSign(modifiedRequest.toSignedValues(), rewriteFields)
+        return modifiedRequest
+    }
+
     /**
      * Assert the sender is allowed to send OCPI requests to this OCN Node.
      */
@@ -243,19 +312,79 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
      * platform requires a signature too.
      */
     private fun assertValidSignature(knownReceiver: Boolean = true) {
+        startSignatureValidation(knownReceiver).invoke()
+    }
+
+    /**
+     * Wrapper around OcpiMessageHandler.startOcnSignatureValidation (see assertValidSignature)
+     * @return function which completes the validation
+     */
+    private fun startSignatureValidation(knownReceiver: Boolean = true): () -> Unit {
         val receiver = if (knownReceiver) { request.headers.receiver } else { null }
-        validateOcnSignature(
+        return startOcnSignatureValidation(
                 signature = request.headers.signature,
                 signedValues = request.toSignedValues(),
                 signer = request.headers.sender,
                 receiver = receiver)
     }
 
+    /**
+     * Forward the request to the local receiver platform, applying successful pushes to the Location mirror.
+     * Real-time token authorization requests may be answered by the TokenAuthorizationService.
+     */
+    private fun forwardToLocalPlatform(proxied: Boolean, fromLocalPlatform: Boolean): HttpResponse<T> {
+        val sender = if (fromLocalPlatform) { request.headers.sender } else { null }
+        val isSigningRequired = { isSigningActive(request.headers.receiver) || isSigningActive(sender) }
+
+        // real-time token authorization requests may be answered from the eMSP's token index instead
+        return tokenAuthorizationService.authorize(request, isSigningRequired) {
+            val (url, headers) = routingService.prepareLocalPlatformRequest(request, proxied)
+
+            asyncTaskService.forwardOcpiRequestToLinkedServices(this, fromLocalPlatform)
+            val rawBody = rawRequest?.let { httpService.extractRawBody(it) }
+            val response = httpService.makeOcpiRequest<T>(url, headers, request, rawBody)
+            if (response.body.statusCode == 1000) {
+                locationMirrorService.apply(request)
+            }
+            response
+        }
+    }
+
+    /**
+     * Answer a receiver interface GET request from the Location mirror, if the receiver has opted in and the
+     * requested object is known. Not possible if the response needs to be signed by the receiver.
+     */
+    private fun getMirroredResponse(fromLocalPlatform: Boolean): HttpResponse<T>? {
+        val data = locationMirrorService.get(request) ?: return null
+
+        val sender = if (fromLocalPlatform) { request.headers.sender } else { null }
+        if (isSigningActive(request.headers.receiver) || isSigningActive(sender)) {
+            return null
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        return HttpResponse(statusCode = 200, headers = mapOf(), body = OcpiResponse(statusCode = 1000, data = data as T))
+    }
+
+    /**
+     * Answer a sender interface list request (or one of its pages) from the delta-synced snapshot, if the receiver
+     * (i.e. data owner) has opted in. Not possible if the response needs to be signed by the receiver.
+     */
+    private fun getDeltaSyncResponse(proxied: Boolean, fromLocalPlatform: Boolean): HttpResponse<T>? {
+        val sender = if (fromLocalPlatform) { request.headers.sender } else { null }
+        val response = deltaSyncService.getResponse(request, proxied) {
+            isSigningActive(request.headers.receiver) || isSigningActive(sender)
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        return response as HttpResponse<T>?
+    }
+
     /**
      * Asserts the sender exists in the Registry and is connected to the OCN Node which has sent the request.
      * Asserts the receiver is connected to this OCN Node.
      */
-    private fun validateOcnMessage(signature: String): OcpiRequestHandler<T> {
+    private fun validateOcnMessage(sendingNodeHeaders: OcnMessageHeaders?): OcpiRequestHandler<T> {
         if (!registryService.isRoleKnown(request.headers.sender, belongsToMe = false)) {
             throw OcpiHubUnknownReceiverException("Sending party not registered on Open Charging Network")
         }
@@ -264,8 +393,15 @@ class OcpiRequestHandler<T: Any>(request: OcpiRequestVariables,
             throw OcpiHubUnknownReceiverException("Recipient unknown to OCN Node entered in Registry")
         }
 
-        val requestString = httpService.mapper.writeValueAsString(request)
-        walletService.verify(requestString, signature, request.headers.sender)
+        // headers are null for messages received in a batch (already verified)
+        sendingNodeHeaders?.let {
+            if (rawSmileRequest != null) {
+                nodeSessionService.verify(rawSmileRequest, it, listOf(request.headers.sender))
+            } else {
+                val requestString = rawRequest ?: httpService.mapper.writeValueAsString(request)
+                nodeSessionService.verify(requestString, it, listOf(request.headers.sender))
+            }
+        }
         return this
     }
 
@@ -21,15 +21,18 @@ import org.slf4j.LoggerFactory
 import org.springframework.http.HttpHeaders
 import org.springframework.http.ResponseEntity
 import org.springframework.stereotype.Component
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.HttpResponse
 import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
 import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
 import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
 import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.services.CryptoService
 import snc.openchargingnetwork.node.services.HubClientInfoService
 import snc.openchargingnetwork.node.services.RegistryService
 import snc.openchargingnetwork.node.services.RoutingService
+import snc.openchargingnetwork.node.services.SignatureCacheService
 import snc.openchargingnetwork.node.tools.extractNextLink
 import snc.openchargingnetwork.node.tools.urlJoin
 
@@ -41,7 +44,10 @@ import snc.openchargingnetwork.node.tools.urlJoin
 class OcpiResponseHandlerBuilder(private val routingService: RoutingService,
                                  private val registryService: RegistryService,
                                  private val hubClientInfoService: HubClientInfoService,
-                                 private val properties: NodeProperties) {
+                                 private val properties: NodeProperties,
+                                 private val nodeIdentity: NodeIdentity,
+                                 private val cryptoService: CryptoService,
+                                 private val signatureCacheService: SignatureCacheService) {
 
     /**
      * Build a ResponseHandler object from an request (OcpiRequestVariables) and response (HttpResponse) object.
@@ -54,7 +60,7 @@ class OcpiResponseHandlerBuilder(private val routingService: RoutingService,
                        response: HttpResponse<T>,
                        knownSender: Boolean = true): OcpiResponseHandler<T> {
         return OcpiResponseHandler(request, response, knownSender, routingService, registryService, properties,
-                hubClientInfoService)
+                nodeIdentity, cryptoService, signatureCacheService, hubClientInfoService)
     }
 
 }
@@ -70,8 +76,11 @@ class OcpiResponseHandler<T: Any>(request: OcpiRequestVariables,
                                   routingService: RoutingService,
                                   registryService: RegistryService,
                                   properties: NodeProperties,
+                                  nodeIdentity: NodeIdentity,
+                                  cryptoService: CryptoService,
+                                  signatureCacheService: SignatureCacheService,
                                   hubClientInfoService: HubClientInfoService):
-        OcpiMessageHandler(request, properties, routingService, registryService) {
+        OcpiMessageHandler(request, properties, routingService, registryService, nodeIdentity, cryptoService, signatureCacheService) {
 
     companion object {
         private var logger: Logger = LoggerFactory.getLogger(OcpiResponseHandler::class.java)
@@ -16,8 +16,8 @@
 
 package snc.openchargingnetwork.node.components.listeners
 
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Component
+import org.springframework.transaction.event.TransactionPhase
 import org.springframework.transaction.event.TransactionalEventListener
 import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
 import snc.openchargingnetwork.node.models.entities.PlatformEntity
@@ -25,75 +25,106 @@ import snc.openchargingnetwork.node.models.entities.RoleEntity
 import snc.openchargingnetwork.node.models.events.*
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.repositories.RoleRepository
-import snc.openchargingnetwork.node.services.HubClientInfoService
-
+import snc.openchargingnetwork.node.services.OutboxService
+import snc.openchargingnetwork.node.tools.getTimestamp
+
+/**
+ * Adds the client info changes published by platforms and network client info to the outbox, in the transaction
+ * making the change (see OutboxService). Status transitions of connected platforms are collapsed over a short window
+ * by the outbox.
+ */
 @Component
-class HubClientInfoListener(private val hubClientInfoService: HubClientInfoService,
+class HubClientInfoListener(private val outboxService: OutboxService,
                             private val roleRepo: RoleRepository) {
 
-    @Async
-    @TransactionalEventListener
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
     fun handlePlatformRegisteredDomainEvent(event: PlatformRegisteredDomainEvent) {
         notifyNetworkOfChanges(event.platform, event.roles)
     }
 
-    @Async
-    @TransactionalEventListener
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
     fun handlePlatformUnregisteredDomainEvent(event: PlatformUnregisteredDomainEvent) {
         notifyNetworkOfChanges(event.platform, event.roles)
     }
 
-    @Async
-    @TransactionalEventListener
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
     fun handlePlatformReconnectedDomainEvent(event: PlatformReconnectedDomainEvent) {
         val roles = roleRepo.findAllByPlatformID(event.platform.id)
-        notifyNetworkOfChanges(event.platform, roles)
+        notifyNetworkOfTransition(event.platform, roles, event.previousStatus)
     }
 
-    @Async
-    @TransactionalEventListener
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
     fun handlePlatformDisconnectedDomainEvent(event: PlatformDisconnectedDomainEvent) {
         val roles = roleRepo.findAllByPlatformID(event.platform.id)
-        notifyNetworkOfChanges(event.platform, roles)
+        notifyNetworkOfTransition(event.platform, roles, event.previousStatus)
     }
 
-    @Async
-    @TransactionalEventListener
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
     fun handlePlannedRoleFoundDomainEvent(event: PlannedRoleFoundDomainEvent) {
         notifyNetworkOfNewlyPlannedRole(event.role)
     }
 
+    @TransactionalEventListener(phase = TransactionPhase.BEFORE_COMMIT, fallbackExecution = true)
+    fun handleNetworkClientInfoChangedDomainEvent(event: NetworkClientInfoChangedDomainEvent) {
+        notifyPartiesOfNetworkChange(event.clientInfo)
+    }
+
     /**
      * Sends out ClientInfo updates to locally connected parties and nodes on network
      */
     private fun notifyNetworkOfChanges(changedPlatform: PlatformEntity, changedRoles: Iterable<RoleEntity>) {
         for (platformRole in changedRoles) {
-            val updatedClientInfo = ClientInfo(
-                    partyID = platformRole.partyID,
-                    countryCode = platformRole.countryCode,
-                    role = platformRole.role,
-                    status = changedPlatform.status,
-                    lastUpdated = changedPlatform.lastUpdated)
-
-            val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(changedPlatform, updatedClientInfo)
-            hubClientInfoService.notifyPartiesOfClientInfoChange(parties, updatedClientInfo)
-
-            // TODO: handle connection issues
-            hubClientInfoService.notifyNodesOfClientInfoChange(updatedClientInfo)
+            val updatedClientInfo = toClientInfo(changedPlatform, platformRole)
+
+            // supersedes any transitions of the role waiting to be passed on
+            outboxService.discardClientInfoTransitions(updatedClientInfo)
+            outboxService.addClientInfoChange(updatedClientInfo, changedPlatformID = changedPlatform.id)
+        }
+    }
+
+    /**
+     * Sends out ClientInfo updates of a status transition (connected, offline) once the transitions of the roles have
+     * settled
+     */
+    private fun notifyNetworkOfTransition(changedPlatform: PlatformEntity, changedRoles: Iterable<RoleEntity>,
+                                          previousStatus: ConnectionStatus) {
+        for (platformRole in changedRoles) {
+            outboxService.addClientInfoTransition(toClientInfo(changedPlatform, platformRole), previousStatus, changedPlatform.id)
         }
     }
 
+    private fun toClientInfo(platform: PlatformEntity, platformRole: RoleEntity): ClientInfo {
+        return ClientInfo(
+                partyID = platformRole.partyID,
+                countryCode = platformRole.countryCode,
+                role = platformRole.role,
+                status = platform.status,
+                lastUpdated = getTimestamp(platform.lastUpdated))
+    }
+
     private fun notifyNetworkOfNewlyPlannedRole(plannedRole: NetworkClientInfoEntity) {
         val clientInfo = ClientInfo(
                 partyID = plannedRole.party.id,
                 countryCode = plannedRole.party.country,
                 role = plannedRole.role,
                 status = ConnectionStatus.PLANNED,
-                lastUpdated = plannedRole.lastUpdated)
-        val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(clientInfo = clientInfo)
-        hubClientInfoService.notifyPartiesOfClientInfoChange(parties, clientInfo)
+                lastUpdated = getTimestamp(plannedRole.lastUpdated))
+
+        outboxService.addClientInfoChange(clientInfo)
+    }
+
+    /**
+     * Sends out ClientInfo updates received from other nodes to locally connected parties only
+     */
+    private fun notifyPartiesOfNetworkChange(networkClientInfo: NetworkClientInfoEntity) {
+        val clientInfo = ClientInfo(
+                partyID = networkClientInfo.party.id,
+                countryCode = networkClientInfo.party.country,
+                role = networkClientInfo.role,
+                status = networkClientInfo.status,
+                lastUpdated = getTimestamp(networkClientInfo.lastUpdated))
 
-        hubClientInfoService.notifyNodesOfClientInfoChange(clientInfo)
+        outboxService.addClientInfoChange(clientInfo, notifyNodes = false)
     }
 
-}
\ No newline at end of file
+}
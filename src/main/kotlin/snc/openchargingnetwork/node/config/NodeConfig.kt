@@ -31,6 +31,7 @@ import snc.openchargingnetwork.node.scheduledTasks.HubClientInfoStillAliveCheck
 import snc.openchargingnetwork.node.scheduledTasks.PlannedPartySearch
 import org.web3j.protocol.http.HttpService as Web3jHttpService
 import snc.openchargingnetwork.node.services.HttpService as OcnHttpService
+import snc.openchargingnetwork.node.services.SignatureCacheService
 
 
 @Configuration
@@ -69,7 +70,9 @@ class NodeConfig(private val properties: NodeProperties) {
                        httpService: OcnHttpService,
                        platformRepo: PlatformRepository,
                        roleRepo: RoleRepository,
-                       networkClientInfoRepo: NetworkClientInfoRepository): List<IntervalTask> {
+                       networkClientInfoRepo: NetworkClientInfoRepository,
+                       nodeIdentity: NodeIdentity,
+                       signatureCacheService: SignatureCacheService): List<IntervalTask> {
 
         val taskList = mutableListOf<IntervalTask>()
         val hasPrivateKey = properties.privateKey !== null
@@ -81,7 +84,7 @@ class NodeConfig(private val properties: NodeProperties) {
 
         //
         if (properties.plannedPartySearchEnabled && hasPrivateKey) {
-            val plannedPartyTask = PlannedPartySearch(registry, roleRepo, networkClientInfoRepo, properties)
+            val plannedPartyTask = PlannedPartySearch(registry, roleRepo, networkClientInfoRepo, nodeIdentity, signatureCacheService)
             taskList.add(IntervalTask(plannedPartyTask, properties.plannedPartySearchRate.toLong()))
         }
 
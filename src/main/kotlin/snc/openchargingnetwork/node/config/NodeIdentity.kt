@@ -0,0 +1,73 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.config
+
+import org.slf4j.LoggerFactory
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.event.EventListener
+import org.springframework.core.Ordered
+import org.springframework.core.annotation.Order
+import org.springframework.stereotype.Component
+import org.web3j.crypto.Credentials
+import org.web3j.crypto.ECKeyPair
+import snc.openchargingnetwork.node.tools.checksum
+
+/**
+ * The identity of this OCN Node: its wallet key pair and (checksummed) address. The key pair is parsed and the address
+ * derived once, when the application is ready, rather than on every signature or address comparison. This cannot
+ * happen on construction, as the development private key is only set once the application is ready (see Verification).
+ */
+@Component
+class NodeIdentity(private val properties: NodeProperties) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NodeIdentity::class.java)
+    }
+
+    private val credentials: Credentials by lazy {
+        Credentials.create(properties.privateKey ?: throw IllegalStateException("No private key set"))
+    }
+
+    /**
+     * The private key as configured (used by the OCN Notary, which takes the key as string)
+     */
+    val privateKey: String
+        get() = properties.privateKey ?: throw IllegalStateException("No private key set")
+
+    /**
+     * The key pair used to sign messages sent to other nodes
+     */
+    val keyPair: ECKeyPair
+        get() = credentials.ecKeyPair
+
+    /**
+     * The address of the node operator, as checksum address
+     */
+    val address: String by lazy { credentials.address.checksum() }
+
+    /**
+     * Parses the key pair and derives the address up front, logging the address the node operates with
+     */
+    @EventListener(ApplicationReadyEvent::class)
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    fun load() {
+        if (properties.privateKey != null) {
+            logger.info("Node address: $address")
+        }
+    }
+
+}
@@ -19,10 +19,10 @@ package snc.openchargingnetwork.node.config
 import org.springframework.boot.context.event.ApplicationReadyEvent
 import org.springframework.context.event.EventListener
 import org.springframework.stereotype.Component
-import org.web3j.crypto.Credentials
 
 @Component
-class NodeInfoLogger(private val properties: NodeProperties) {
+class NodeInfoLogger(private val properties: NodeProperties,
+                     private val nodeIdentity: NodeIdentity) {
 
     val hasPrivateKey = properties.privateKey != null
 
@@ -65,7 +65,7 @@ class NodeInfoLogger(private val properties: NodeProperties) {
     }
 
     private fun getAddressText(): String = if (hasPrivateKey) {
-        Credentials.create(properties.privateKey).address
+        nodeIdentity.address
     } else {
         if (properties.dev) {
             "0x9bC1169Ca09555bf2721A5C9eC6D69c8073bfeB4  [Warning: Generated from a hardcoded private key that should only be used in a local development environment!]"
@@ -55,4 +55,102 @@ class NodeProperties {
     var plannedPartySearchEnabled: Boolean = true
 
     var serviceInterfaceEnabled: Boolean = true
+
+    var receiverDispatchEnabled: Boolean = false
+
+    var receiverDispatchTimeout: Long = 2000
+
+    var locationMirrorEnabled: Boolean = false
+
+    var locationMirrorMaxLocations: Int = 10000
+
+    var deltaSyncEnabled: Boolean = false
+
+    var deltaSyncPageLimit: Int = 500
+
+    var deltaSyncFullSyncInterval: Long = 86400000 // defaults to 1 day
+
+    var deltaSyncMaxSnapshots: Int = 100
+
+    var deltaSyncMaxObjects: Int = 50000
+
+    var deltaSyncMinInterval: Long = 60000 // defaults to 1 minute
+
+    var localAuthorizationEnabled: Boolean = false
+
+    var localAuthorizationMaxTokens: Int = 100000
+
+    var fanOutParallelism: Int = 16
+
+    var fanOutMaxTargets: Int = 500
+
+    var multicastTimeout: Long = 10000
+
+    var aggregateTimeout: Long = 10000
+
+    var messageBatchEnabled: Boolean = false
+
+    var messageBatchWindow: Long = 5
+
+    var messageBatchMaxSize: Int = 50
+
+    var channelEnabled: Boolean = false
+
+    var channelMaxStreams: Int = 100
+
+    var channelHeartbeatInterval: Long = 10000
+
+    var channelRequestTimeout: Long = 30000
+
+    var channelMaxBufferSize: Int = 1048576 // 1 MiB
+
+    var sessionKeyEnabled: Boolean = false
+
+    var sessionKeyLifetime: Long = 3600000 // defaults to 1 hour
+
+    var cryptoParallelism: Int = Runtime.getRuntime().availableProcessors()
+
+    var cryptoQueueSize: Int = 1000
+
+    var signatureCacheMaxEntries: Int = 10000
+
+    var signatureCacheTtl: Long = 30000
+
+    var messageSmileEnabled: Boolean = false
+
+    var linkedServiceParallelism: Int = 10
+
+    var linkedServiceQueueSize: Int = 1000
+
+    var linkedServiceMaxPending: Int = 5
+
+    var serviceDigestEnabled: Boolean = false
+
+    var serviceDigestMaxSize: Int = 100
+
+    var serviceDigestWindow: Long = 1000
+
+    var heartbeatFlushInterval: Long = 5000
+
+    var clientInfoPageLimit: Int = 1000
+
+    var clientInfoTimeout: Long = 10000
+
+    var outboxInterval: Long = 1000
+
+    var outboxBatchSize: Int = 100
+
+    var outboxParallelism: Int = 8
+
+    var outboxMaxAttempts: Int = 10
+
+    var outboxRetryDelay: Long = 1000
+
+    var clientInfoDebounceWindow: Long = 5000
+
+    var clientInfoBatchEnabled: Boolean = false
+
+    var clientInfoBatchWindow: Long = 1000
+
+    var clientInfoBatchMaxSize: Int = 100
 }
\ No newline at end of file
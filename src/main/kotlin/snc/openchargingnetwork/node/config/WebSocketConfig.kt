@@ -0,0 +1,38 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.config
+
+import org.springframework.context.annotation.Configuration
+import org.springframework.web.socket.config.annotation.EnableWebSocket
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
+import snc.openchargingnetwork.node.components.OcnChannelHandler
+
+
+@Configuration
+@EnableWebSocket
+class WebSocketConfig(private val properties: NodeProperties,
+                      private val channelHandler: OcnChannelHandler): WebSocketConfigurer {
+
+    override fun registerWebSocketHandlers(registry: WebSocketHandlerRegistry) {
+        // channels between OCN Nodes (see OcnChannelService)
+        if (properties.channelEnabled) {
+            registry.addHandler(channelHandler, "/ocn/channel")
+        }
+    }
+
+}
@@ -15,13 +15,18 @@ class ClientInfoController(private val hubClientInfoService: HubClientInfoServic
 
         val clientInfo = walletService.verifyClientInfo(body, signature)
 
-        // save all received client info (even if connected parties are not interested, they might be in the future)
-        hubClientInfoService.saveClientInfo(clientInfo)
+        // saved on this thread before responding; forwarded to interested parties asynchronously (via the outbox)
+        hubClientInfoService.ingestClientInfo(listOf(clientInfo))
+    }
+
+    @PutMapping("/batch")
+    fun updateClientInfoBatch(@RequestHeader("OCN-Signature") signature: String,
+                              @RequestBody body: String) {
+
+        // the batch is signed (and verified) once for all updates
+        val clientInfoList = walletService.verifyClientInfoBatch(body, signature)
 
-        val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(clientInfo = clientInfo)
-        if (parties.isNotEmpty()) {
-            hubClientInfoService.notifyPartiesOfClientInfoChange(parties, clientInfo)
-        }
+        hubClientInfoService.ingestClientInfo(clientInfoList)
     }
 
 }
@@ -18,23 +18,53 @@ package snc.openchargingnetwork.node.controllers.ocn
 
 import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.*
+import snc.openchargingnetwork.node.components.OcpiFanOutHandler
 import snc.openchargingnetwork.node.components.OcpiRequestHandlerBuilder
+import snc.openchargingnetwork.node.models.OcnMessageBatchResult
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
 import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.services.HttpService
 
 
 @RestController
 @RequestMapping("/ocn/message")
-class MessageController(private val requestHandlerBuilder: OcpiRequestHandlerBuilder) {
+class MessageController(private val requestHandlerBuilder: OcpiRequestHandlerBuilder,
+                        private val fanOutHandler: OcpiFanOutHandler) {
 
     @PostMapping
     fun postMessage(@RequestHeader("X-Request-ID") requestID: String,
-                    @RequestHeader("OCN-Signature") signature: String,
+                    @RequestHeader("OCN-Signature", required = false) signature: String?,
+                    @RequestHeader("OCN-Session-ID", required = false) sessionID: String?,
+                    @RequestHeader("OCN-MAC", required = false) mac: String?,
                     @RequestBody body: String): ResponseEntity<OcpiResponse<Any>> {
 
         return requestHandlerBuilder
                 .build<Any>(body)
-                .forwardFromOcn(signature)
+                .forwardFromOcn(OcnMessageHeaders(requestID, signature, sessionID, mac))
                 .getResponseWithAllHeaders()
     }
 
+    @PostMapping(consumes = [HttpService.SMILE_CONTENT_TYPE])
+    fun postSmileMessage(@RequestHeader("X-Request-ID") requestID: String,
+                         @RequestHeader("OCN-Signature", required = false) signature: String?,
+                         @RequestHeader("OCN-Session-ID", required = false) sessionID: String?,
+                         @RequestHeader("OCN-MAC", required = false) mac: String?,
+                         @RequestBody body: ByteArray): ResponseEntity<OcpiResponse<Any>> {
+
+        return requestHandlerBuilder
+                .build<Any>(body)
+                .forwardFromOcn(OcnMessageHeaders(requestID, signature, sessionID, mac))
+                .getResponseWithAllHeaders()
+    }
+
+    @PostMapping("/batch")
+    fun postMessageBatch(@RequestHeader("X-Request-ID") requestID: String,
+                         @RequestHeader("OCN-Signature") signature: String,
+                         @RequestBody body: String): ResponseEntity<OcpiResponse<List<OcnMessageBatchResult>>> {
+
+        return ResponseEntity.ok(OcpiResponse(
+                statusCode = 1000,
+                data = fanOutHandler.forwardBatchFromOcn(body, OcnMessageHeaders(requestID, signature))))
+    }
+
 }
\ No newline at end of file
@@ -20,19 +20,45 @@ import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RestController
-import org.web3j.crypto.Credentials
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnNodeFeature
 import snc.openchargingnetwork.contracts.Registry
 
 @RestController
 @RequestMapping("/ocn/registry")
 class RegistryController(private val properties: NodeProperties,
+                         private val nodeIdentity: NodeIdentity,
                          private val registry: Registry) {
 
     @GetMapping("/node-info")
     fun getMyNodeInfo() = mapOf(
             "url" to properties.url,
-            "address" to Credentials.create(properties.privateKey).address)
+            "address" to nodeIdentity.address.toLowerCase(),
+            "features" to getFeatures().map { it.id })
+
+    /**
+     * Optional features of this node, used by other nodes to negotiate how to send messages to it
+     */
+    private fun getFeatures(): List<OcnNodeFeature> {
+        val features = mutableListOf<OcnNodeFeature>()
+        if (properties.messageBatchEnabled) {
+            features.add(OcnNodeFeature.MESSAGE_BATCH)
+        }
+        if (properties.channelEnabled) {
+            features.add(OcnNodeFeature.MESSAGE_CHANNEL)
+        }
+        if (properties.sessionKeyEnabled) {
+            features.add(OcnNodeFeature.SESSION_KEY)
+        }
+        if (properties.messageSmileEnabled) {
+            features.add(OcnNodeFeature.MESSAGE_SMILE)
+        }
+        if (properties.clientInfoBatchEnabled) {
+            features.add(OcnNodeFeature.CLIENT_INFO_BATCH)
+        }
+        return features
+    }
 
     @GetMapping("/node/{countryCode}/{partyID}")
     fun getNodeOf(@PathVariable countryCode: String,
@@ -0,0 +1,118 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.controllers.ocpi.v2_2
+
+import org.springframework.http.HttpHeaders
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import org.springframework.web.bind.annotation.*
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody
+import org.springframework.web.util.UriComponentsBuilder
+import snc.openchargingnetwork.node.components.OcpiFanOutHandler
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.Role
+import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.tools.filterNull
+import snc.openchargingnetwork.node.tools.getTimestamp
+import snc.openchargingnetwork.node.tools.urlJoin
+
+
+@RestController
+class AggregateController(private val fanOutHandler: OcpiFanOutHandler,
+                          private val httpService: HttpService,
+                          private val properties: NodeProperties) {
+
+    /**
+     * Get a sender interface list (e.g. locations) from many data owners at once. Data owners are given as a list
+     * of "{country_code}-{party_id}" values and/or a role, matched against the sender's HubClientInfo list. The
+     * list of data owners is paginated via offset and limit; each data owner's own pagination (Link header) is
+     * returned with its result. Results are streamed in order of arrival.
+     */
+    @GetMapping("/ocpi/sender/2.2/aggregate/{module}")
+    fun getAggregateList(@RequestHeader("authorization") authorization: String,
+                         @RequestHeader("X-Request-ID") requestID: String,
+                         @RequestHeader("X-Correlation-ID") correlationID: String,
+                         @RequestHeader("OCPI-from-country-code") fromCountryCode: String,
+                         @RequestHeader("OCPI-from-party-id") fromPartyID: String,
+                         @PathVariable module: String,
+                         @RequestParam("to", required = false) to: List<String>?,
+                         @RequestParam("role", required = false) role: Role?,
+                         @RequestParam("date_from", required = false) dateFrom: String?,
+                         @RequestParam("date_to", required = false) dateTo: String?,
+                         @RequestParam("source_limit", required = false) sourceLimit: Int?,
+                         @RequestParam("offset", required = false) offset: Int?,
+                         @RequestParam("limit", required = false) limit: Int?): ResponseEntity<StreamingResponseBody> {
+
+        val sender = BasicRole(fromPartyID, fromCountryCode)
+
+        val targets = to?.map {
+            val party = it.split("-")
+            if (party.size != 2) {
+                throw OcpiClientInvalidParametersException("Expected data owner in format {country_code}-{party_id}: $it")
+            }
+            BasicRole(id = party[1], country = party[0])
+        }
+
+        val params = mapOf("date_from" to dateFrom, "date_to" to dateTo, "limit" to sourceLimit).filterNull()
+
+        val requests = fanOutHandler.getAggregateRequests(authorization, correlationID, sender, module, targets, role, params)
+
+        val pageOffset = (offset ?: 0).coerceAtLeast(0)
+        val pageLimit = (limit ?: properties.fanOutMaxTargets).coerceIn(1, properties.fanOutMaxTargets)
+        val page = requests.drop(pageOffset).take(pageLimit)
+
+        val headers = HttpHeaders()
+        headers["X-Total-Count"] = requests.size.toString()
+        headers["X-Limit"] = pageLimit.toString()
+
+        if (pageOffset + pageLimit < requests.size) {
+            val link = UriComponentsBuilder.fromHttpUrl(urlJoin(properties.url, "/ocpi/sender/2.2/aggregate", module))
+                    .queryParam("offset", pageOffset + pageLimit)
+                    .queryParam("limit", pageLimit)
+            to?.let { link.queryParam("to", *it.toTypedArray()) }
+            role?.let { link.queryParam("role", it) }
+            params.forEach { (key, value) -> link.queryParam(if (key == "limit") "source_limit" else key, value) }
+            headers["Link"] = "<${link.toUriString()}>; rel=\"next\""
+        }
+
+        val body = StreamingResponseBody { outputStream ->
+            val generator = httpService.mapper.factory.createGenerator(outputStream)
+            generator.writeStartObject()
+            generator.writeNumberField("status_code", 1000)
+            generator.writeArrayFieldStart("data")
+            generator.flush()
+
+            fanOutHandler.gather(page) {
+                generator.writeObject(it)
+                generator.flush()
+            }
+
+            generator.writeEndArray()
+            generator.writeStringField("timestamp", getTimestamp())
+            generator.writeEndObject()
+            generator.close()
+        }
+
+        return ResponseEntity.ok()
+                .headers(headers)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body)
+    }
+
+}
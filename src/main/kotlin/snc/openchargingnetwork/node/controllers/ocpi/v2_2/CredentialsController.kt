@@ -27,12 +27,14 @@ import snc.openchargingnetwork.node.models.exceptions.OcpiServerNoMatchingEndpoi
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.models.ocpi.Role
 import snc.openchargingnetwork.node.repositories.*
+import snc.openchargingnetwork.node.services.ConnectionHeartbeatService
 import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.services.HubClientInfoSubscriberService
 import snc.openchargingnetwork.node.services.RegistryService
 import snc.openchargingnetwork.node.tools.extractToken
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
-import snc.openchargingnetwork.node.tools.getTimestamp
 import snc.openchargingnetwork.node.tools.urlJoin
+import java.time.Instant
 
 
 @RestController
@@ -44,7 +46,9 @@ class CredentialsController(private val platformRepo: PlatformRepository,
                             private val ocnRulesListRepo: OcnRulesListRepository,
                             private val properties: NodeProperties,
                             private val registryService: RegistryService,
-                            private val httpService: HttpService) {
+                            private val httpService: HttpService,
+                            private val hubClientInfoSubscriberService: HubClientInfoSubscriberService,
+                            private val connectionHeartbeatService: ConnectionHeartbeatService) {
 
     private fun myCredentials(token: String): Credentials {
         return Credentials(
@@ -112,7 +116,7 @@ class CredentialsController(private val platformRepo: PlatformRepository,
         platform.auth = Auth(tokenA = null, tokenB = body.token, tokenC = tokenC)
         platform.versionsUrl = body.url
         platform.status = ConnectionStatus.CONNECTED
-        platform.lastUpdated = getTimestamp()
+        platform.lastUpdated = Instant.now()
         platform.rules.signatures = properties.signatures
 
         // set platform's roles' credentials
@@ -132,14 +136,18 @@ class CredentialsController(private val platformRepo: PlatformRepository,
         roleRepo.saveAll(roles)
 
         // set platform's endpoints
-        for (endpoint in versionDetail.endpoints) {
-            endpointRepo.save(EndpointEntity(
+        val endpoints = versionDetail.endpoints.map {
+            EndpointEntity(
                     platformID = platform.id!!,
-                    identifier = endpoint.identifier,
-                    role = endpoint.role,
-                    url = endpoint.url
-            ))
+                    identifier = it.identifier,
+                    role = it.role,
+                    url = it.url
+            )
         }
+        endpoints.forEach { endpointRepo.save(it) }
+
+        hubClientInfoSubscriberService.update(platform.id!!, roles, endpoints)
+        connectionHeartbeatService.evict(platform.id!!)
 
         // return OCN's platform connection information and role credentials
         return OcpiResponse(
@@ -173,7 +181,7 @@ class CredentialsController(private val platformRepo: PlatformRepository,
         platform.auth = Auth(tokenA = null, tokenB = body.token, tokenC = tokenC)
         platform.versionsUrl = body.url
         platform.status = ConnectionStatus.CONNECTED
-        platform.lastUpdated = getTimestamp()
+        platform.lastUpdated = Instant.now()
 
         endpointRepo.deleteByPlatformID(platform.id)
         roleRepo.deleteByPlatformID(platform.id)
@@ -194,13 +202,17 @@ class CredentialsController(private val platformRepo: PlatformRepository,
         roleRepo.saveAll(roles)
 
         // set platform's endpoints
-        for (endpoint in versionDetail.endpoints) {
-            endpointRepo.save(EndpointEntity(
+        val endpoints = versionDetail.endpoints.map {
+            EndpointEntity(
                     platformID = platform.id!!,
-                    identifier = endpoint.identifier,
-                    role = endpoint.role,
-                    url = endpoint.url))
+                    identifier = it.identifier,
+                    role = it.role,
+                    url = it.url)
         }
+        endpoints.forEach { endpointRepo.save(it) }
+
+        hubClientInfoSubscriberService.update(platform.id!!, roles, endpoints)
+        connectionHeartbeatService.evict(platform.id!!)
 
         // return OCN Node's platform connection information and role credentials (same for all nodes)
         return OcpiResponse(
@@ -224,6 +236,9 @@ class CredentialsController(private val platformRepo: PlatformRepository,
         endpointRepo.deleteByPlatformID(platform.id)
         ocnRulesListRepo.deleteByPlatformID(platform.id)
 
+        hubClientInfoSubscriberService.remove(platform.id!!)
+        connectionHeartbeatService.evict(platform.id!!)
+
         return OcpiResponse(statusCode = 1000, data = null)
     }
 
@@ -17,17 +17,30 @@
 package snc.openchargingnetwork.node.controllers.ocpi.v2_2
 
 import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
 import org.springframework.http.ResponseEntity
+import org.springframework.util.DigestUtils
 import org.springframework.web.bind.annotation.*
+import org.springframework.web.util.UriComponentsBuilder
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.services.HubClientInfoService
 import snc.openchargingnetwork.node.services.RoutingService
+import snc.openchargingnetwork.node.tools.getInstant
+import snc.openchargingnetwork.node.tools.urlJoin
+import java.time.format.DateTimeParseException
 
 @RestController
 @RequestMapping("/ocpi/2.2/hubclientinfo")
 class HubClientInfoController(private val routingService: RoutingService,
-                              private val hubClientInfoService: HubClientInfoService) {
+                              private val hubClientInfoService: HubClientInfoService,
+                              private val properties: NodeProperties) {
 
+    /**
+     * Paginated HubClientInfo list (offset/limit, date_from/date_to), with an ETag over the page so that polling
+     * clients get a 304 (Not Modified) response if nothing has changed
+     */
     @GetMapping
     fun getHubClientInfo(@RequestHeader("authorization") authorization: String,
                          @RequestHeader("OCN-Signature") signature: String? = null,
@@ -37,34 +50,69 @@ class HubClientInfoController(private val routingService: RoutingService,
                          @RequestHeader("OCPI-from-party-id") fromPartyID: String,
                          @RequestHeader("OCPI-to-country-code") toCountryCode: String,
                          @RequestHeader("OCPI-to-party-id") toPartyID: String,
+                         @RequestHeader("If-None-Match", required = false) ifNoneMatch: String?,
                          @RequestParam("date_from", required = false) dateFrom: String?,
                          @RequestParam("date_to", required = false) dateTo: String?,
                          @RequestParam("offset", required = false) offset: Int?,
                          @RequestParam("limit", required = false) limit: Int?): ResponseEntity<OcpiResponse<Array<ClientInfo>>> {
 
-        // TODO: implement pagination
-        // for now we ignore requests to paginate, only responding with required "last page" pagination headers
-
         val sender = BasicRole(fromPartyID, fromCountryCode)
         routingService.checkSenderKnown(authorization, sender)
 
-        // val params = PaginatedRequest(dateFrom, dateTo, offset, limit).encode()
+        val updatedSince = try {
+            dateFrom?.let { getInstant(it) }
+        } catch (e: DateTimeParseException) {
+            throw OcpiClientInvalidParametersException("Invalid date_from: $dateFrom")
+        }
+
+        val updatedBefore = try {
+            dateTo?.let { getInstant(it) }
+        } catch (e: DateTimeParseException) {
+            throw OcpiClientInvalidParametersException("Invalid date_to: $dateTo")
+        }
 
-        val result = hubClientInfoService.getList(authorization).toTypedArray()
-        val count = result.size.toString()
+        val pageOffset = (offset ?: 0).coerceAtLeast(0)
+        val pageLimit = (limit ?: properties.clientInfoPageLimit).coerceIn(1, properties.clientInfoPageLimit)
+
+        val result = hubClientInfoService.getPage(authorization, updatedSince, updatedBefore, pageOffset.toLong(), pageLimit)
+        val page = result.content.toTypedArray()
+        val total = result.totalElements
 
         val headers = HttpHeaders()
-        headers["X-Total-Count"] = count
-        headers["X-Limit"] = count
+        headers["X-Total-Count"] = total.toString()
+        headers["X-Limit"] = pageLimit.toString()
+
+        if (pageOffset + pageLimit < total) {
+            val link = UriComponentsBuilder.fromHttpUrl(urlJoin(properties.url, "/ocpi/2.2/hubclientinfo"))
+                    .queryParam("offset", pageOffset + pageLimit)
+                    .queryParam("limit", pageLimit)
+            dateFrom?.let { link.queryParam("date_from", it) }
+            dateTo?.let { link.queryParam("date_to", it) }
+            headers["Link"] = "<${link.toUriString()}>; rel=\"next\""
+        }
+
+        val eTag = getETag(page, total)
+        headers.eTag = eTag
+
+        if (ifNoneMatch != null && ifNoneMatch.split(",").any { it.trim().removePrefix("W/") == eTag }) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build()
+        }
 
         return ResponseEntity
                 .ok()
                 .headers(headers)
-                .body(OcpiResponse(
-                        statusCode = 1000,
-                        statusMessage = "Pagination request parameters were ignored due to lack of their implementation on the OCN.",
-                        data = result))
+                .body(OcpiResponse(statusCode = 1000, data = page))
     }
 
+    /**
+     * Strong ETag over the contents of a page (and the total count, as returned in the X-Total-Count header).
+     * Independent of the node instance, so that load balanced nodes return the same ETag.
+     */
+    private fun getETag(page: Array<ClientInfo>, total: Long): String {
+        val content = page.joinToString(separator = ";", prefix = "$total;") {
+            "${it.countryCode},${it.partyID},${it.role},${it.status},${it.lastUpdated}"
+        }
+        return "\"${DigestUtils.md5DigestAsHex(content.toByteArray())}\""
+    }
 
-}
\ No newline at end of file
+}
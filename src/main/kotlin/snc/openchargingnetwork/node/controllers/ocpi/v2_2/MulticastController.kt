@@ -0,0 +1,49 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.controllers.ocpi.v2_2
+
+import org.springframework.http.ResponseEntity
+import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.RequestBody
+import org.springframework.web.bind.annotation.RequestHeader
+import org.springframework.web.bind.annotation.RestController
+import snc.openchargingnetwork.node.components.OcpiFanOutHandler
+import snc.openchargingnetwork.node.models.MulticastRequest
+import snc.openchargingnetwork.node.models.MulticastResult
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+
+
+@RestController
+class MulticastController(private val fanOutHandler: OcpiFanOutHandler) {
+
+    @PostMapping("/ocpi/receiver/2.2/multicast")
+    fun postMulticast(@RequestHeader("authorization") authorization: String,
+                      @RequestHeader("X-Request-ID") requestID: String,
+                      @RequestHeader("X-Correlation-ID") correlationID: String,
+                      @RequestHeader("OCPI-from-country-code") fromCountryCode: String,
+                      @RequestHeader("OCPI-from-party-id") fromPartyID: String,
+                      @RequestBody body: MulticastRequest): ResponseEntity<OcpiResponse<List<MulticastResult>>> {
+
+        val sender = BasicRole(fromPartyID, fromCountryCode)
+
+        return ResponseEntity.ok(OcpiResponse(
+                statusCode = 1000,
+                data = fanOutHandler.multicast(authorization, correlationID, sender, body)))
+    }
+
+}
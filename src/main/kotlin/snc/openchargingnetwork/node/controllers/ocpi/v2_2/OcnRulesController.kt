@@ -62,6 +62,38 @@ class OcnRulesController(private val ocnRulesService: OcnRulesService) {
         return ResponseEntity.ok(OcpiResponse(statusCode = 1000))
     }
 
+    @Transactional
+    @PutMapping("/ocpi/receiver/2.2/ocnrules/location-mirror")
+    fun updateLocationMirror(@RequestHeader("authorization") authorization: String): ResponseEntity<OcpiResponse<Unit>> {
+
+        ocnRulesService.updateLocationMirror(authorization)
+        return ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+    }
+
+    @Transactional
+    @PutMapping("/ocpi/receiver/2.2/ocnrules/delta-sync")
+    fun updateDeltaSync(@RequestHeader("authorization") authorization: String): ResponseEntity<OcpiResponse<Unit>> {
+
+        ocnRulesService.updateDeltaSync(authorization)
+        return ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+    }
+
+    @Transactional
+    @PutMapping("/ocpi/receiver/2.2/ocnrules/local-authorization")
+    fun updateLocalAuthorization(@RequestHeader("authorization") authorization: String): ResponseEntity<OcpiResponse<Unit>> {
+
+        ocnRulesService.updateLocalAuthorization(authorization)
+        return ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+    }
+
+    @Transactional
+    @PutMapping("/ocpi/receiver/2.2/ocnrules/service-digest")
+    fun updateServiceDigest(@RequestHeader("authorization") authorization: String): ResponseEntity<OcpiResponse<Unit>> {
+
+        ocnRulesService.updateServiceDigest(authorization)
+        return ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+    }
+
     @Transactional
     @PutMapping("/ocpi/receiver/2.2/ocnrules/whitelist")
     fun updateWhitelist(@RequestHeader("authorization") authorization: String,
@@ -19,24 +19,76 @@ package snc.openchargingnetwork.node.models
 
 import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.annotation.JsonProperty
+import org.springframework.http.HttpMethod
 import shareandcharge.openchargingnetwork.notary.SignableHeaders
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
 import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
 import snc.openchargingnetwork.node.models.ocpi.Role
 import java.math.BigInteger
 
+/**
+ * A message is authenticated either by the signature of the sending node or by the MAC of a session agreed between
+ * the two nodes. Both are null until the message is sent (e.g. as part of a batch, which is signed as a whole).
+ */
 data class OcnMessageHeaders(val requestID: String,
-                             val signature: String) {
+                             val signature: String? = null,
+                             val sessionID: String? = null,
+                             val mac: String? = null) {
 
     fun toMap(): Map<String, String> {
-        return mapOf(
-                "X-Request-ID" to requestID,
-                "OCN-Signature" to signature)
+        val map = mutableMapOf("X-Request-ID" to requestID)
+        signature?.let { map["OCN-Signature"] = it }
+        sessionID?.let { map["OCN-Session-ID"] = it }
+        mac?.let { map["OCN-MAC"] = it }
+        return map
     }
 
 }
 
+/**
+ * Optional features of an OCN Node, advertised in its node-info.
+ */
+enum class OcnNodeFeature(val id: String) {
+    MESSAGE_BATCH("message-batch"),
+    MESSAGE_CHANNEL("message-channel"),
+    SESSION_KEY("session-key"),
+    MESSAGE_SMILE("message-smile"),
+    CLIENT_INFO_BATCH("client-info-batch")
+}
+
+/**
+ * A request (with path) or response (with status) sent over a channel between two OCN Nodes. Responses carry the ID
+ * of the request they answer.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class OcnChannelFrame(@JsonProperty("id") val id: String,
+                           @JsonProperty("path") val path: String? = null,
+                           @JsonProperty("status") val status: Int? = null,
+                           @JsonProperty("headers") val headers: Map<String, String> = mapOf(),
+                           @JsonProperty("body") val body: String? = null)
+
+data class OcnSessionRequest(@JsonProperty("node_url") val nodeUrl: String,
+                             @JsonProperty("nonce") val nonce: String,
+                             @JsonProperty("timestamp") val timestamp: Long)
+
+data class OcnSessionResponse(@JsonProperty("session_id") val sessionID: String,
+                              @JsonProperty("initiator_nonce") val initiatorNonce: String,
+                              @JsonProperty("nonce") val nonce: String,
+                              @JsonProperty("expires_in") val expiresIn: Long)
+
+data class OcnMessageBatch(@JsonProperty("messages") val messages: List<OcnMessageBatchEntry>)
+
+data class OcnMessageBatchEntry(@JsonProperty("request_id") val requestID: String,
+                                @JsonProperty("request") val request: OcpiRequestVariables)
+
+data class OcnMessageBatchResult(@JsonProperty("request_id") val requestID: String,
+                                 @JsonProperty("http_status") val httpStatus: Int,
+                                 @JsonProperty("headers") val headers: Map<String, String>,
+                                 @JsonProperty("response") val response: OcpiResponse<Any>)
+
 // TODO: could differentiate between Function Module headers and Configuration Module headers
 @JsonInclude(JsonInclude.Include.NON_NULL)
 data class OcnHeaders(@JsonProperty("Authorization") val authorization: String,
@@ -78,7 +130,13 @@ enum class Receiver {
 }
 
 
-data class OcnRules(val signatures: Boolean, val whitelist: OcnRulesList, val blacklist: OcnRulesList)
+data class OcnRules(val signatures: Boolean,
+                    val whitelist: OcnRulesList,
+                    val blacklist: OcnRulesList,
+                    @JsonProperty("location_mirror") val locationMirror: Boolean = false,
+                    @JsonProperty("delta_sync") val deltaSync: Boolean = false,
+                    @JsonProperty("local_authorization") val localAuthorization: Boolean = false,
+                    @JsonProperty("service_digest") val serviceDigest: Boolean = false)
 data class OcnRulesList(val active: Boolean, val list: List<OcnRulesListParty>)
 
 enum class OcnRulesListType {
@@ -90,6 +148,23 @@ data class OcnRulesListParty(@JsonProperty("party_id") val id: String,
                              @JsonProperty("country_code") val country: String,
                              @JsonProperty("modules") val modules: List<String>)
 
+data class MulticastRequest(@JsonProperty("module") val module: String,
+                            @JsonProperty("method") val method: HttpMethod,
+                            @JsonProperty("url_path") val urlPath: String? = null,
+                            @JsonProperty("query_params") val queryParams: Map<String, Any?>? = null,
+                            @JsonProperty("body") val body: Any? = null,
+                            @JsonProperty("targets") val targets: List<BasicRole>? = null,
+                            @JsonProperty("all_whitelisted") val allWhitelisted: Boolean = false)
+
+data class MulticastResult(@JsonProperty("target") val target: BasicRole,
+                           @JsonProperty("http_status") val httpStatus: Int,
+                           @JsonProperty("response") val response: OcpiResponse<*>)
+
+data class AggregateResult(@JsonProperty("source") val source: BasicRole,
+                           @JsonProperty("http_status") val httpStatus: Int,
+                           @JsonProperty("headers") val headers: Map<String, String>,
+                           @JsonProperty("response") val response: OcpiResponse<*>)
+
 data class RegistryPartyDetailsBasic(val address: String, val operator: String)
 
 data class RegistryPartyDetails(val party: BasicRole, val roles: List<Role>, val nodeOperator: String)
@@ -0,0 +1,58 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.models
+
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.ClientInfo
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+
+/**
+ * Types of notification stored in the outbox, with the payload they carry
+ */
+enum class OutboxType {
+    CLIENT_INFO_CHANGE,     // OutboxClientInfoChange
+    CLIENT_INFO_TRANSITION, // OutboxClientInfoTransition
+    CLIENT_INFO_PUSH,       // OutboxClientInfoPush
+    CLIENT_INFO_NODE,       // OutboxClientInfoNodeUpdate
+    LINKED_SERVICE,         // OcpiRequestVariables
+}
+
+/**
+ * A change of client info, expanded by the outbox dispatcher into a push per interested local party (sans the
+ * platform which changed, if given) and, if notifyNodes is set, an update per node on the network
+ */
+data class OutboxClientInfoChange(val clientInfo: ClientInfo,
+                                  val changedPlatformID: Long? = null,
+                                  val notifyNodes: Boolean = true)
+
+/**
+ * A status transition (reconnected, disconnected) of a role of a local platform. The transitions of a role within a
+ * window are collapsed by the outbox dispatcher into a single change, if the role did not end up in its previous status.
+ */
+data class OutboxClientInfoTransition(val clientInfo: ClientInfo,
+                                      val previousStatus: ConnectionStatus,
+                                      val changedPlatformID: Long? = null)
+
+/**
+ * A HubClientInfo Push to a party of a local platform
+ */
+data class OutboxClientInfoPush(val platformID: Long, val party: BasicRole, val clientInfo: ClientInfo)
+
+/**
+ * A client info update to another node, signed once for all nodes
+ */
+data class OutboxClientInfoNodeUpdate(val signature: String, val clientInfo: ClientInfo)
@@ -17,10 +17,10 @@
 package snc.openchargingnetwork.node.models.entities
 
 import org.springframework.data.domain.AbstractAggregateRoot
+import snc.openchargingnetwork.node.models.OutboxType
 import snc.openchargingnetwork.node.models.events.*
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
-import snc.openchargingnetwork.node.tools.getTimestamp
 import java.time.Instant
 import javax.persistence.*
 
@@ -31,7 +31,7 @@ import javax.persistence.*
 @Entity
 @Table(name = "platforms")
 class PlatformEntity(var status: ConnectionStatus = ConnectionStatus.PLANNED,
-                     var lastUpdated: String = getTimestamp(),
+                     var lastUpdated: Instant = Instant.now(),
                      var versionsUrl: String? = null,
                      @Embedded var auth: Auth = Auth(),
                      @Embedded var rules: OcnRules = OcnRules(),
@@ -44,24 +44,26 @@ class PlatformEntity(var status: ConnectionStatus = ConnectionStatus.PLANNED,
 
         fun unregister(roles: Iterable<RoleEntity>) {
                 this.status = ConnectionStatus.SUSPENDED
-                this.lastUpdated = getTimestamp()
+                this.lastUpdated = Instant.now()
                 registerEvent(PlatformUnregisteredDomainEvent(this, roles))
         }
 
         fun renewConnection(connectionInstant: Instant) {
-                this.lastUpdated = getTimestamp(connectionInstant)
+                this.lastUpdated = connectionInstant
                 if (this.status != ConnectionStatus.CONNECTED) {
+                        val previousStatus = this.status
                         this.status = ConnectionStatus.CONNECTED
 
-                        registerEvent(PlatformReconnectedDomainEvent(this))
+                        registerEvent(PlatformReconnectedDomainEvent(this, previousStatus))
                 }
         }
 
         fun disconnect(disconnectionInstant: Instant) {
-                this.lastUpdated = getTimestamp(disconnectionInstant)
+                this.lastUpdated = disconnectionInstant
                 if (this.status != ConnectionStatus.OFFLINE) {
+                        val previousStatus = this.status
                         this.status = ConnectionStatus.OFFLINE
-                        registerEvent(PlatformDisconnectedDomainEvent(this))
+                        registerEvent(PlatformDisconnectedDomainEvent(this, previousStatus))
                 }
         }
 }
@@ -80,7 +82,11 @@ class Auth(var tokenA: String? = generateUUIDv4Token(),
 @Embeddable
 class OcnRules(@Column(columnDefinition = "boolean default false") var signatures: Boolean = false,
                @Column(columnDefinition = "boolean default false") var blacklist: Boolean = false,
-               @Column(columnDefinition = "boolean default false") var whitelist: Boolean = false)
+               @Column(columnDefinition = "boolean default false") var whitelist: Boolean = false,
+               @Column(columnDefinition = "boolean default false") var locationMirror: Boolean = false,
+               @Column(columnDefinition = "boolean default false") var deltaSync: Boolean = false,
+               @Column(columnDefinition = "boolean default false") var localAuthorization: Boolean = false,
+               @Column(columnDefinition = "boolean default false") var serviceDigest: Boolean = false)
 
 /**
  * Store a role linked to an OCPI platform (i.e. a platform can implement both EMSP and CPO roles)
@@ -166,11 +172,31 @@ class NetworkClientInfoEntity(
 
         @Enumerated(EnumType.STRING) var role: Role,
         @Enumerated(EnumType.STRING) var status: ConnectionStatus,
-        var lastUpdated: String = getTimestamp(),
+        var lastUpdated: Instant = Instant.now(),
         @Id @GeneratedValue var id: Long? = null
 
 ): AbstractAggregateRoot<NetworkClientInfoEntity>() {
         fun foundNewlyPlannedRole() {
                 registerEvent(PlannedRoleFoundDomainEvent(this))
         }
+
+        fun changed() {
+                registerEvent(NetworkClientInfoChangedDomainEvent(this))
+        }
 }
+
+/**
+ * Store a notification to be delivered by the outbox dispatcher (see OutboxService). Notifications to the same
+ * destination are delivered in order of their ID.
+ */
+@Entity
+@Table(name = "outbox")
+class OutboxEntity(@Enumerated(EnumType.STRING) val type: OutboxType,
+                   val destination: String,
+                   @Column(columnDefinition = "text") val payload: String,
+                   var attempts: Int = 0,
+                   var nextAttempt: Instant = Instant.now(),
+                   val created: Instant = Instant.now(),
+                   var deadLettered: Boolean = false,
+                   var lastError: String? = null,
+                   @Id @GeneratedValue var id: Long? = null)
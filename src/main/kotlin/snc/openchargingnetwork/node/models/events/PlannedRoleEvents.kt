@@ -20,3 +20,4 @@ import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
 
 
 class PlannedRoleFoundDomainEvent(val role: NetworkClientInfoEntity)
+class NetworkClientInfoChangedDomainEvent(val clientInfo: NetworkClientInfoEntity)
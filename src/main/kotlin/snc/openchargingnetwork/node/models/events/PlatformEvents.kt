@@ -18,8 +18,9 @@ package snc.openchargingnetwork.node.models.events
 
 import snc.openchargingnetwork.node.models.entities.*
 import snc.openchargingnetwork.node.models.entities.RoleEntity
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
 
 class PlatformRegisteredDomainEvent(val platform: PlatformEntity, val roles: Iterable<RoleEntity>)
 class PlatformUnregisteredDomainEvent(val platform: PlatformEntity, val roles: Iterable<RoleEntity>)
-class PlatformReconnectedDomainEvent(val platform: PlatformEntity)
-class PlatformDisconnectedDomainEvent(val platform: PlatformEntity)
+class PlatformReconnectedDomainEvent(val platform: PlatformEntity, val previousStatus: ConnectionStatus)
+class PlatformDisconnectedDomainEvent(val platform: PlatformEntity, val previousStatus: ConnectionStatus)
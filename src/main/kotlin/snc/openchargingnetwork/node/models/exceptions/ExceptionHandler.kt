@@ -176,4 +176,11 @@ class ExceptionHandler(private val properties: NodeProperties): ResponseEntityEx
         return ResponseEntity.status(400).body(e.message)
     }
 
+    // tells the sending node to authenticate the message with an OCN-Signature instead
+    @ExceptionHandler(InvalidOcnSessionException::class)
+    fun handleInvalidOcnSessionException(e: InvalidOcnSessionException): ResponseEntity<OcpiResponse<Unit>> {
+        val body = OcpiResponse<Unit>(statusCode = OcpiStatus.CLIENT_ERROR.code, statusMessage = e.message)
+        return ResponseEntity.status(HttpStatus.UNAUTHORIZED).header("OCN-Session-Invalid", "true").body(body)
+    }
+
 }
\ No newline at end of file
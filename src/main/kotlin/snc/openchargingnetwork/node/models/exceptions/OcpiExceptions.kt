@@ -18,6 +18,8 @@ package snc.openchargingnetwork.node.models.exceptions
 
 import org.springframework.http.HttpStatus
 import snc.openchargingnetwork.node.models.ocpi.OcpiStatus
+import java.net.ConnectException
+import java.net.SocketTimeoutException
 
 // 2xxx: Client errors
 class OcpiClientGenericException(message: String,
@@ -69,3 +71,30 @@ class OcpiHubConnectionProblemException(message: String = "Connection problem",
 // OCN errors (between nodes)
 
 class InvalidOcnSignatureException(message: String): Exception(message)
+
+class InvalidOcnSessionException(message: String = "Unknown or expired OCN-Session-ID"): Exception(message)
+
+
+/**
+ * Get the HTTP and OCPI status codes with which the ExceptionHandler responds to an exception, for requests which
+ * report errors per recipient (e.g. multicast) rather than through the ExceptionHandler.
+ */
+fun Throwable.toOcpiError(): Pair<HttpStatus, OcpiStatus> {
+    return when (this) {
+        is OcpiClientGenericException -> Pair(httpStatus, ocpiStatus)
+        is OcpiClientInvalidParametersException -> Pair(httpStatus, ocpiStatus)
+        is OcpiClientNotEnoughInformationException -> Pair(httpStatus, ocpiStatus)
+        is OcpiClientUnknownLocationException -> Pair(httpStatus, ocpiStatus)
+        is OcpiServerGenericException -> Pair(httpStatus, ocpiStatus)
+        is OcpiServerUnusableApiException -> Pair(httpStatus, ocpiStatus)
+        is OcpiServerUnsupportedVersionException -> Pair(httpStatus, ocpiStatus)
+        is OcpiServerNoMatchingEndpointsException -> Pair(httpStatus, ocpiStatus)
+        is OcpiHubUnknownReceiverException -> Pair(httpStatus, ocpiStatus)
+        is OcpiHubTimeoutOnRequestException -> Pair(httpStatus, ocpiStatus)
+        is OcpiHubConnectionProblemException -> Pair(httpStatus, ocpiStatus)
+        is SocketTimeoutException -> Pair(HttpStatus.OK, OcpiStatus.HUB_REQUEST_TIMEOUT)
+        is ConnectException -> Pair(HttpStatus.OK, OcpiStatus.HUB_CONNECTION_PROBLEM)
+        is InvalidOcnSessionException -> Pair(HttpStatus.UNAUTHORIZED, OcpiStatus.CLIENT_ERROR)
+        else -> Pair(HttpStatus.OK, OcpiStatus.SERVER_ERROR)
+    }
+}
@@ -16,19 +16,90 @@
 
 package snc.openchargingnetwork.node.repositories
 
+import org.springframework.data.domain.Pageable
+import org.springframework.data.domain.Sort
+import org.springframework.data.jpa.repository.Lock
+import org.springframework.data.jpa.repository.Modifying
+import org.springframework.data.jpa.repository.Query
 import org.springframework.data.repository.CrudRepository
+import org.springframework.data.repository.query.Param
+import org.springframework.transaction.annotation.Transactional
 import snc.openchargingnetwork.node.models.entities.*
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
 import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
 import snc.openchargingnetwork.node.models.ocpi.Role
+import java.time.Instant
+import javax.persistence.LockModeType
+
+// conditions of the paginated HubClientInfo list: updated in [dateFrom, dateTo) and, if the requesting platform has
+// a whitelist (or blacklist), listed (or not listed) by it
+private const val ROLES_UPDATED_BETWEEN = "FROM RoleEntity r, PlatformEntity p WHERE r.platformID = p.id " +
+        "AND p.lastUpdated >= :dateFrom AND p.lastUpdated < :dateTo " +
+        "AND (:whitelist = false OR EXISTS (SELECT l.id FROM OcnRulesListEntity l WHERE l.platformID = :platformID " +
+        "AND UPPER(l.counterparty.country) = UPPER(r.countryCode) AND UPPER(l.counterparty.id) = UPPER(r.partyID))) " +
+        "AND (:blacklist = false OR NOT EXISTS (SELECT l.id FROM OcnRulesListEntity l WHERE l.platformID = :platformID " +
+        "AND UPPER(l.counterparty.country) = UPPER(r.countryCode) AND UPPER(l.counterparty.id) = UPPER(r.partyID)))"
+
+private const val NETWORK_CLIENT_INFO_UPDATED_BETWEEN = "FROM NetworkClientInfoEntity n " +
+        "WHERE n.lastUpdated >= :dateFrom AND n.lastUpdated < :dateTo " +
+        "AND (:whitelist = false OR EXISTS (SELECT l.id FROM OcnRulesListEntity l WHERE l.platformID = :platformID " +
+        "AND UPPER(l.counterparty.country) = UPPER(n.party.country) AND UPPER(l.counterparty.id) = UPPER(n.party.id))) " +
+        "AND (:blacklist = false OR NOT EXISTS (SELECT l.id FROM OcnRulesListEntity l WHERE l.platformID = :platformID " +
+        "AND UPPER(l.counterparty.country) = UPPER(n.party.country) AND UPPER(l.counterparty.id) = UPPER(n.party.id)))"
+
+/**
+ * Pageable starting at any offset (rather than at a multiple of the page size), as requested by OCPI offset/limit
+ */
+class OffsetPageRequest(private val start: Long, private val size: Int): Pageable {
+    override fun getPageNumber() = (start / size).toInt()
+    override fun getPageSize() = size
+    override fun getOffset() = start
+    override fun getSort(): Sort = Sort.unsorted()
+    override fun next(): Pageable = OffsetPageRequest(start + size, size)
+    override fun previousOrFirst(): Pageable = OffsetPageRequest((start - size).coerceAtLeast(0), size)
+    override fun first(): Pageable = OffsetPageRequest(0, size)
+    override fun hasPrevious() = start > 0
+}
 
 interface PlatformRepository: CrudRepository<PlatformEntity, Long> {
     fun existsByAuth_TokenA(tokenA: String?): Boolean
     fun existsByAuth_TokenC(tokenC: String?): Boolean
     fun findByAuth_TokenA(tokenA: String?): PlatformEntity?
     fun findByAuth_TokenC(tokenC: String?): PlatformEntity?
-    fun findByStatusIn(connectionStatusList: List<ConnectionStatus>): Iterable<PlatformEntity>
+    // used by the still alive check to page through platforms not heard from since the cutoff (ordered by id)
+    fun findByStatusInAndLastUpdatedBeforeAndIdGreaterThanOrderByIdAsc(connectionStatusList: List<ConnectionStatus>,
+                                                                      cutoff: Instant,
+                                                                      id: Long,
+                                                                      pageable: Pageable): List<PlatformEntity>
+
+    // used by the connection heartbeats to refresh the platforms known to be connected
+    @Query("SELECT p.id FROM PlatformEntity p WHERE p.status = :status")
+    fun findIdsByStatus(@Param("status") status: ConnectionStatus): List<Long>
+
+    // locks the platform until the end of the transaction, so that its status can be changed safely
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    fun findLockedById(id: Long): PlatformEntity?
+
+    // used by the connection heartbeats, which must not overwrite the status of a platform changed in the meantime
+    @Transactional
+    @Modifying
+    @Query("UPDATE PlatformEntity p SET p.lastUpdated = :lastUpdated " +
+            "WHERE p.id = :id AND p.status = :status AND p.lastUpdated < :lastUpdated")
+    fun updateLastUpdatedByIdAndStatus(@Param("id") id: Long,
+                                       @Param("status") status: ConnectionStatus,
+                                       @Param("lastUpdated") lastUpdated: Instant): Int
+}
+
+/**
+ * Projection of a role joined with the status of its platform
+ */
+interface RoleStatusView {
+    val partyID: String
+    val countryCode: String
+    val role: Role
+    val status: ConnectionStatus
+    val lastUpdated: Instant
 }
 
 interface RoleRepository: CrudRepository<RoleEntity, Long> {
@@ -41,11 +112,35 @@ interface RoleRepository: CrudRepository<RoleEntity, Long> {
     fun findAllByCountryCodeAndPartyIDAllIgnoreCase(countryCode: String, partyID: String): Iterable<RoleEntity>
     fun findAllByPlatformID(platformID: Long?): Iterable<RoleEntity>
     fun deleteByPlatformID(platformID: Long?)
+    // used in fan-out, to find the roles of platforms whose whitelist allows a sender for a module in a single query
+    @Query("SELECT r FROM RoleEntity r, PlatformEntity p WHERE r.platformID = p.id AND p.rules.whitelist = true " +
+            "AND EXISTS (SELECT l.id FROM OcnRulesListEntity l JOIN l.modules m WHERE l.platformID = p.id " +
+            "AND UPPER(l.counterparty.country) = UPPER(:country) AND UPPER(l.counterparty.id) = UPPER(:partyID) " +
+            "AND m = :moduleID) ORDER BY r.id")
+    fun findAllWhitelisting(@Param("country") country: String,
+                            @Param("partyID") partyID: String,
+                            @Param("moduleID") moduleID: String): List<RoleEntity>
+    // used in the paginated HubClientInfo list, filtered by the whitelist or blacklist of the requesting platform
+    @Query("SELECT r.partyID AS partyID, r.countryCode AS countryCode, r.role AS role, p.status AS status, " +
+            "p.lastUpdated AS lastUpdated " + ROLES_UPDATED_BETWEEN + " ORDER BY r.id")
+    fun findAllWithStatusUpdatedBetween(@Param("platformID") platformID: Long?,
+                                        @Param("whitelist") whitelist: Boolean,
+                                        @Param("blacklist") blacklist: Boolean,
+                                        @Param("dateFrom") dateFrom: Instant,
+                                        @Param("dateTo") dateTo: Instant,
+                                        pageable: Pageable): List<RoleStatusView>
+    @Query("SELECT COUNT(r) " + ROLES_UPDATED_BETWEEN)
+    fun countWithStatusUpdatedBetween(@Param("platformID") platformID: Long?,
+                                      @Param("whitelist") whitelist: Boolean,
+                                      @Param("blacklist") blacklist: Boolean,
+                                      @Param("dateFrom") dateFrom: Instant,
+                                      @Param("dateTo") dateTo: Instant): Long
 }
 
 interface EndpointRepository: CrudRepository<EndpointEntity, Long> {
     fun findByPlatformID(platformID: Long?): Iterable<EndpointEntity>
     fun findByPlatformIDAndIdentifierAndRole(platformID: Long?, identifier: String, Role: InterfaceRole): EndpointEntity?
+    fun findAllByIdentifierAndRole(identifier: String, role: InterfaceRole): Iterable<EndpointEntity>
     fun deleteByPlatformID(platformID: Long?)
 }
 
@@ -65,4 +160,49 @@ interface NetworkClientInfoRepository: CrudRepository<NetworkClientInfoEntity, L
     fun existsByPartyAndRole(party: BasicRole, role: Role): Boolean
     fun findByPartyAndRole(party: BasicRole, role: Role): NetworkClientInfoEntity?
     fun deleteByPartyAndRole(party: BasicRole, role: Role)
-}
\ No newline at end of file
+    // used in the paginated HubClientInfo list, filtered by the whitelist or blacklist of the requesting platform
+    @Query("SELECT n " + NETWORK_CLIENT_INFO_UPDATED_BETWEEN + " ORDER BY n.id")
+    fun findAllUpdatedBetween(@Param("platformID") platformID: Long?,
+                              @Param("whitelist") whitelist: Boolean,
+                              @Param("blacklist") blacklist: Boolean,
+                              @Param("dateFrom") dateFrom: Instant,
+                              @Param("dateTo") dateTo: Instant,
+                              pageable: Pageable): List<NetworkClientInfoEntity>
+    @Query("SELECT COUNT(n) " + NETWORK_CLIENT_INFO_UPDATED_BETWEEN)
+    fun countUpdatedBetween(@Param("platformID") platformID: Long?,
+                            @Param("whitelist") whitelist: Boolean,
+                            @Param("blacklist") blacklist: Boolean,
+                            @Param("dateFrom") dateFrom: Instant,
+                            @Param("dateTo") dateTo: Instant): Long
+}
+
+/**
+ * Projection of the first pending (not dead-lettered) outbox entry of a destination
+ */
+interface OutboxHeadView {
+    val destination: String
+    val id: Long
+}
+
+interface OutboxRepository: CrudRepository<OutboxEntity, Long> {
+    fun findByDeadLetteredFalseAndNextAttemptLessThanEqualOrderByIdAsc(time: Instant, pageable: Pageable): List<OutboxEntity>
+    fun findFirstByDeadLetteredFalseOrderByIdAsc(): OutboxEntity?
+    fun findByDestinationAndDeadLetteredFalseOrderByIdAsc(destination: String): List<OutboxEntity>
+    fun countByDeadLetteredFalse(): Long
+
+    @Query("SELECT o.destination AS destination, MIN(o.id) AS id FROM OutboxEntity o " +
+            "WHERE o.deadLettered = false AND o.destination IN :destinations GROUP BY o.destination")
+    fun findHeadsByDestinationIn(@Param("destinations") destinations: Collection<String>): List<OutboxHeadView>
+
+    // entries of a destination are not attempted before an earlier entry of the destination, which has failed
+    @Transactional
+    @Modifying
+    @Query("UPDATE OutboxEntity o SET o.nextAttempt = :nextAttempt " +
+            "WHERE o.destination = :destination AND o.deadLettered = false AND o.nextAttempt < :nextAttempt")
+    fun postponeByDestination(@Param("destination") destination: String, @Param("nextAttempt") nextAttempt: Instant): Int
+
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM OutboxEntity o WHERE o.destination = :destination AND o.deadLettered = false")
+    fun deleteByDestination(@Param("destination") destination: String): Int
+}
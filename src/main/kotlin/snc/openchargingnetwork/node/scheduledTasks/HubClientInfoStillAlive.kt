@@ -16,13 +16,13 @@
 
 package snc.openchargingnetwork.node.scheduledTasks
 
+import org.springframework.data.domain.PageRequest
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.entities.PlatformEntity
 import snc.openchargingnetwork.node.models.exceptions.OcpiServerUnusableApiException
 import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
 import snc.openchargingnetwork.node.repositories.PlatformRepository
 import snc.openchargingnetwork.node.services.HttpService
-import snc.openchargingnetwork.node.tools.getInstant
 import java.time.Instant
 
 
@@ -30,29 +30,42 @@ class HubClientInfoStillAliveCheck(private val httpService: HttpService,
                                    private val platformRepo: PlatformRepository,
                                    private val properties: NodeProperties): Runnable {
 
+    companion object {
+        const val PAGE_SIZE = 100
+    }
+
+    /**
+     * Check the clients whose status is stale (i.e. the platform hasn't been heard from in the set amount of time),
+     * loaded from the database in pages of PAGE_SIZE
+     */
     override fun run() {
         val checkExecutionInstant = Instant.now()
         val lastUpdatedCutoff = checkExecutionInstant.minusMillis(properties.stillAliveRate.toLong())
-        val clients = platformRepo.findByStatusIn(listOf(ConnectionStatus.CONNECTED, ConnectionStatus.OFFLINE))
-        for (client in clients) {
-            updateClientStatus(client, lastUpdatedCutoff, checkExecutionInstant)
-        }
+        val statuses = listOf(ConnectionStatus.CONNECTED, ConnectionStatus.OFFLINE)
+
+        // paged by id rather than page number, as checked clients drop out of the result
+        var lastID = 0L
+        do {
+            val clients = platformRepo.findByStatusInAndLastUpdatedBeforeAndIdGreaterThanOrderByIdAsc(
+                    statuses, lastUpdatedCutoff, lastID, PageRequest.of(0, PAGE_SIZE))
+            for (client in clients) {
+                updateClientStatus(client, checkExecutionInstant)
+                lastID = client.id!!
+            }
+        } while (clients.size == PAGE_SIZE)
     }
 
     /**
-     * Update a client's connection status based on its availability if status is stale (i.e. if the platform hasn't been heard from in the set amount of time)
+     * Update a stale client's connection status based on its availability
      */
-    private fun updateClientStatus(client: PlatformEntity, lastUpdatedCutoff: Instant, newUpdatedTime: Instant) {
-        val clientLastUpdated = getInstant(client.lastUpdated)
-        if (clientLastUpdated < lastUpdatedCutoff) {
-            val isConnected = isClientAvailable(client)
-            if (isConnected) {
-                client.renewConnection(newUpdatedTime)
-                platformRepo.save(client)
-            } else {
-                client.disconnect(newUpdatedTime)
-                platformRepo.save(client)
-            }
+    private fun updateClientStatus(client: PlatformEntity, newUpdatedTime: Instant) {
+        val isConnected = isClientAvailable(client)
+        if (isConnected) {
+            client.renewConnection(newUpdatedTime)
+            platformRepo.save(client)
+        } else {
+            client.disconnect(newUpdatedTime)
+            platformRepo.save(client)
         }
     }
 
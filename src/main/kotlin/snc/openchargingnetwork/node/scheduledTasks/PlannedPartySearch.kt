@@ -16,9 +16,8 @@
 
 package snc.openchargingnetwork.node.scheduledTasks
 
-import org.web3j.crypto.Credentials
 import snc.openchargingnetwork.contracts.Registry
-import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.models.RegistryPartyDetails
 import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
@@ -26,16 +25,18 @@ import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
 import snc.openchargingnetwork.node.models.ocpi.Role
 import snc.openchargingnetwork.node.repositories.NetworkClientInfoRepository
 import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.services.SignatureCacheService
 import snc.openchargingnetwork.node.tools.checksum
 
 
 class PlannedPartySearch(private val registry: Registry,
                          private val roleRepo: RoleRepository,
                          private val networkClientInfoRepo: NetworkClientInfoRepository,
-                         private val properties: NodeProperties): Runnable {
+                         private val nodeIdentity: NodeIdentity,
+                         private val signatureCacheService: SignatureCacheService): Runnable {
 
     override fun run() {
-        val myAddress = Credentials.create(properties.privateKey).address.checksum()
+        val myAddress = nodeIdentity.address
 
         // registry.getParties() returns list of party ethereum addresses which can be used to get full party details
         val plannedParties = registry.parties.sendAsync().get()
@@ -49,6 +50,7 @@ class PlannedPartySearch(private val registry: Registry,
                             roles = roles.map { index -> Role.getByIndex(index) },
                             nodeOperator = operator.checksum())
                 }
+                .onEach { signatureCacheService.updateOperator(it.party, it.nodeOperator) }
                 .filter {
                     val isMyParty = it.nodeOperator == myAddress
                     isMyParty
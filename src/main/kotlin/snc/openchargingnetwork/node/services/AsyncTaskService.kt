@@ -16,25 +16,88 @@
 
 package snc.openchargingnetwork.node.services
 
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics
 import org.slf4j.LoggerFactory
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
 import snc.openchargingnetwork.node.components.OcpiRequestHandler
 import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.tools.namedDaemonThreadFactory
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.annotation.PreDestroy
 
+/**
+ * Forwards requests to the OCN Services linked to their sender, on a dedicated, bounded pool of workers. The number of
+ * pending (queued or running) requests per service is limited to fewer than the number of workers, so that a slow
+ * service cannot occupy all of them.
+ * Requests which fail to be forwarded, exceed the limit of their service or arrive while the queue is full are added
+ * to the outbox instead, to be retried (see OutboxService). Requests are only dropped if the outbox cannot be written
+ * to, or if the queue is full before the services linked to the sender have been looked up.
+ *
+ * Forwarding time per service is reported as `ocn.linked_services.forward`, requests added to the outbox as
+ * `ocn.linked_services.deferred` and dropped requests as `ocn.linked_services.dropped` (both by service and reason),
+ * and the state of the pool as the `ocn.linked_services.*` executor metrics.
+ *
+ * Services which have opted in receive the copies in digests instead (see ServiceDigestService). Digests are
+ * delivered on the same workers, once full or when their time window has passed. The copies of a digest which cannot
+ * be delivered, or which is still open on shutdown, are added to the outbox, to be retried one by one.
+ */
 @Service
-class AsyncTaskService(private val registryService: RegistryService, private val properties: NodeProperties) {
+class AsyncTaskService(private val registryService: RegistryService,
+                       private val properties: NodeProperties,
+                       private val registry: MeterRegistry,
+                       private val serviceDigestService: ServiceDigestService,
+                       private val outboxService: OutboxService) {
 
     companion object {
         private val logger = LoggerFactory.getLogger(AsyncTaskService::class.java)
     }
 
+    private val pool = ThreadPoolExecutor(
+            properties.linkedServiceParallelism,
+            properties.linkedServiceParallelism,
+            0L,
+            TimeUnit.MILLISECONDS,
+            ArrayBlockingQueue<Runnable>(properties.linkedServiceQueueSize),
+            namedDaemonThreadFactory("ocn-linked-service"),
+            ThreadPoolExecutor.AbortPolicy())
+
+    private val executor: ExecutorService = ExecutorServiceMetrics.monitor(registry, pool, "ocn.linked_services")
+
+    // number of queued or running requests, by service
+    private val pending = ConcurrentHashMap<BasicRole, AtomicInteger>()
+
+    // at least one worker is left for the other services, whatever the configured limit
+    private val maxPendingPerService = properties.linkedServiceMaxPending
+            .coerceAtMost(properties.linkedServiceParallelism - 1)
+            .coerceAtLeast(1)
+
+    private val digestScheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "ocn-service-digest").apply { isDaemon = true }
+    }
+
+    init {
+        if (properties.serviceInterfaceEnabled && properties.serviceDigestEnabled) {
+            digestScheduler.scheduleAtFixedRate({ deliverDueDigests() }, properties.serviceDigestWindow,
+                    (properties.serviceDigestWindow / 2).coerceAtLeast(1), TimeUnit.MILLISECONDS)
+        }
+    }
+
     /**
      * Finds all services, linked to a sender, with permissions that grant them access to a given request type.
      * Once services have been found, sends via provided request handler.
      */
-    @Async
     fun forwardOcpiRequestToLinkedServices(requestHandler: OcpiRequestHandler<*>, fromLocalPlatform: Boolean = true) {
         // we only want to forward to services if the module is one of the default OCPI modules,
         // and only if the sender is a local platform (to avoid repeat forwarding on the recipient node)
@@ -42,17 +105,132 @@ class AsyncTaskService(private val registryService: RegistryService, private val
         val isDefaultModule = requestHandler.request.module != ModuleID.CUSTOM
 
         if (isDefaultModule && fromLocalPlatform && properties.serviceInterfaceEnabled) {
-            val request = requestHandler.request
-            registryService.getAgreementsByInterface(request.headers.sender, request.module, request.interfaceRole)
-                    .forEach {
-                        try {
-                            requestHandler.forwardAgain(it.provider)
-                        } catch (e: Exception) {
-                            // fire and forget
-                            logger.warn("Error forwarding request to service ${it.provider}: ${e.message}")
-                        }
-                    }
+            // the agreements are looked up in the Registry, so this is done by a worker too
+            val submitted = execute {
+                val request = requestHandler.request
+                registryService.getAgreementsByInterface(request.headers.sender, request.module, request.interfaceRole)
+                        .forEach { forward(requestHandler, it.provider) }
+            }
+            if (!submitted) {
+                drop(null, "queue_full")
+            }
+        }
+    }
+
+    private fun forward(requestHandler: OcpiRequestHandler<*>, service: BasicRole) {
+        try {
+            if (serviceDigestService.isEnabled(service)) {
+                serviceDigestService.add(requestHandler.copyFor(service))?.let { deliver(it) }
+                return
+            }
+        } catch (e: Exception) {
+            logger.warn("Error adding request to digest of service $service: ${e.message}")
+            return
+        }
+
+        val counter = pending.computeIfAbsent(service.toUpperCase()) { AtomicInteger() }
+        if (counter.incrementAndGet() > maxPendingPerService) {
+            counter.decrementAndGet()
+            retryLater(service, "service_limit") { listOf(requestHandler.copyFor(service)) }
+            return
+        }
+
+        val submitted = execute {
+            try {
+                registry.timer("ocn.linked_services.forward", "service", tag(service)).recordCallable {
+                    requestHandler.forwardAgain(service)
+                }
+            } catch (e: Exception) {
+                logger.warn("Error forwarding request to service $service, retrying via outbox: ${e.message}")
+                retryLater(service, "forward_failed") { listOf(requestHandler.copyFor(service)) }
+            } finally {
+                counter.decrementAndGet()
+            }
+        }
+        if (!submitted) {
+            counter.decrementAndGet()
+            retryLater(service, "queue_full") { listOf(requestHandler.copyFor(service)) }
+        }
+    }
+
+    /**
+     * Add requests for a service to the outbox, to be forwarded to it again. They are dropped if the outbox cannot be
+     * written to.
+     */
+    private fun retryLater(service: BasicRole, reason: String, requests: () -> List<OcpiRequestVariables>) {
+        val count = try {
+            val copies = requests()
+            copies.forEach { outboxService.addLinkedServiceRequest(service, it) }
+            copies.size
+        } catch (e: Exception) {
+            logger.warn("Could not add requests for service $service to the outbox: ${e.message}")
+            drop(service, "outbox_failed")
+            return
+        }
+        registry.counter("ocn.linked_services.deferred", "service", tag(service), "reason", reason)
+                .increment(count.toDouble())
+    }
+
+    private fun deliverDueDigests() {
+        try {
+            serviceDigestService.takeDue().forEach { deliver(it) }
+        } catch (e: Exception) {
+            logger.warn("Error delivering service digests: ${e.message}")
+        }
+    }
+
+    private fun deliver(digest: ServiceDigestService.Digest) {
+        val submitted = execute {
+            try {
+                registry.timer("ocn.linked_services.forward", "service", tag(digest.service)).recordCallable {
+                    serviceDigestService.deliver(digest)
+                }
+            } catch (e: Exception) {
+                logger.warn("Error delivering digest to service ${digest.service}, retrying via outbox: ${e.message}")
+                retryLater(digest.service, "digest_failed") { digest.messages }
+            }
+        }
+        if (!submitted) {
+            retryLater(digest.service, "queue_full") { digest.messages }
+        }
+    }
+
+    /**
+     * Run the task on a worker
+     * @return true if the task has been queued, false if the queue is full
+     */
+    private fun execute(task: () -> Unit): Boolean {
+        return try {
+            executor.execute { task() }
+            true
+        } catch (e: RejectedExecutionException) {
+            false
+        }
+    }
+
+    private fun drop(service: BasicRole?, reason: String) {
+        logger.warn("Dropped request to linked service ${service ?: "lookup"} ($reason)")
+        registry.counter("ocn.linked_services.dropped", "service", service?.let { tag(it) } ?: "none", "reason", reason)
+                .increment()
+    }
+
+    private fun tag(service: BasicRole) = "${service.country}${service.id}".toUpperCase()
+
+    /**
+     * Stops the workers. Open digests are held in memory only, so their copies are added to the outbox, to be
+     * forwarded one by one after restart.
+     */
+    @PreDestroy
+    fun shutdown() {
+        digestScheduler.shutdown()
+        try {
+            serviceDigestService.takeAll().forEach { digest ->
+                retryLater(digest.service, "shutdown") { digest.messages }
+            }
+        } catch (e: Exception) {
+            logger.warn("Error adding open service digests to the outbox: ${e.message}")
         }
+        executor.shutdown()
     }
 
-}
\ No newline at end of file
+}
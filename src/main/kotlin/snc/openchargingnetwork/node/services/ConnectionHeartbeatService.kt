@@ -0,0 +1,170 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import org.springframework.transaction.support.TransactionTemplate
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+import snc.openchargingnetwork.node.repositories.PlatformRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.tools.afterCommit
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import javax.annotation.PreDestroy
+
+/**
+ * Keeps track of when platforms were last seen (i.e. sent a request or responded to one) in memory, and writes these
+ * times to the platforms table in periodic batches rather than on every request. Only a change of a platform's status
+ * from OFFLINE to CONNECTED is written straight away (publishing the PlatformReconnectedDomainEvent).
+ *
+ * The last seen times are only written for platforms which are still CONNECTED, so that a status changed in the
+ * meantime (e.g. a platform unregistered) is not overwritten. The platforms known to be CONNECTED are refreshed from
+ * the platforms table on each batch, so that platforms set to OFFLINE in the meantime (e.g. by the still-alive check)
+ * are reconnected by their next request.
+ */
+@Service
+class ConnectionHeartbeatService(private val platformRepo: PlatformRepository,
+                                 private val roleRepo: RoleRepository,
+                                 private val transactionTemplate: TransactionTemplate,
+                                 private val properties: NodeProperties) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(ConnectionHeartbeatService::class.java)
+    }
+
+    // time (epoch millis) a platform was last seen, by platform ID, not yet written to the platforms table
+    private val lastSeen = ConcurrentHashMap<Long, Long>()
+
+    // platforms known to be CONNECTED
+    private val connected = ConcurrentHashMap.newKeySet<Long>()
+
+    // platforms being reconnected; further requests of the platform do not wait for the reconnection
+    private val reconnecting = ConcurrentHashMap.newKeySet<Long>()
+
+    // platform IDs, by role
+    private val platformIDs = ConcurrentHashMap<BasicRole, Long>()
+
+    private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "ocn-heartbeat").apply { isDaemon = true }
+    }
+
+    init {
+        scheduler.scheduleWithFixedDelay({ flushSafely() }, properties.heartbeatFlushInterval,
+                properties.heartbeatFlushInterval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Confirm the online status of the platform of a role
+     */
+    fun renew(role: BasicRole) {
+        val platformID = getPlatformID(role) ?: return
+        val now = System.currentTimeMillis()
+        lastSeen.merge(platformID, now) { old, new -> Math.max(old, new) }
+
+        if (!connected.contains(platformID)) {
+            reconnect(platformID, now)
+        }
+    }
+
+    /**
+     * Forget the roles and status of a platform, once the current transaction (if any) has been committed. Must be
+     * called when the roles of a platform change or the platform is deleted.
+     */
+    fun evict(platformID: Long) {
+        afterCommit {
+            platformIDs.values.removeIf { it == platformID }
+            connected.remove(platformID)
+        }
+    }
+
+    /**
+     * Refresh the platforms known to be CONNECTED and write the last seen times to the platforms table
+     */
+    fun flush() {
+        // statuses may have been changed elsewhere (e.g. by the still-alive check)
+        val connectedIDs = platformRepo.findIdsByStatus(ConnectionStatus.CONNECTED).toSet()
+        connected.retainAll(connectedIDs)
+        connected.addAll(connectedIDs)
+
+        val seen = HashMap(lastSeen)
+        for ((platformID, time) in seen) {
+            val updated = platformRepo.updateLastUpdatedByIdAndStatus(platformID, ConnectionStatus.CONNECTED,
+                    Instant.ofEpochMilli(time))
+            // not updated if already up to date (if still connected) or no longer connected
+            if (updated == 0 && !connectedIDs.contains(platformID)) {
+                reconnect(platformID, time)
+            }
+            lastSeen.remove(platformID, time)
+        }
+    }
+
+    private fun reconnect(platformID: Long, time: Long) {
+        if (!reconnecting.add(platformID)) {
+            return
+        }
+        try {
+            // the platform is locked, so that a status changed concurrently (e.g. unregistered) is not overwritten
+            transactionTemplate.execute {
+                val platform = platformRepo.findLockedById(platformID)
+                when (platform?.status) {
+                    ConnectionStatus.CONNECTED -> connected.add(platformID)
+                    ConnectionStatus.OFFLINE -> {
+                        platform.renewConnection(Instant.ofEpochMilli(time))
+                        platformRepo.save(platform)
+                        connected.add(platformID)
+                    }
+                    // unregistered (or deleted) platforms are not reconnected by their heartbeats
+                    else -> null
+                }
+            }
+        } finally {
+            reconnecting.remove(platformID)
+        }
+    }
+
+    private fun getPlatformID(role: BasicRole): Long? {
+        platformIDs[role]?.let { return it }
+        val entity = roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase(countryCode = role.country, partyID = role.id)
+        if (entity == null) {
+            logger.warn("Could not renew connection of $role: role not found")
+            return null
+        }
+        platformIDs[role] = entity.platformID
+        return entity.platformID
+    }
+
+    private fun flushSafely() {
+        try {
+            flush()
+        } catch (e: Exception) {
+            logger.warn("Could not write connection heartbeats: ${e.message}")
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        scheduler.shutdown()
+        flushSafely()
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.tools.namedDaemonThreadFactory
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import javax.annotation.PreDestroy
+
+/**
+ * Runs signing and signature verification (ecrecover) on a dedicated worker pool sized to the number of CPUs, so that
+ * bursts of signed traffic do not occupy the request threads needed for I/O. The queue of the pool is bounded: once
+ * full, operations run on the calling thread instead.
+ *
+ * Queue length, wait and execution times are reported as the `ocn.crypto.*` executor metrics, and the time spent per
+ * operation as `ocn.crypto.operations`.
+ */
+@Service
+class CryptoService(private val properties: NodeProperties,
+                    private val registry: MeterRegistry) {
+
+    private val pool = ThreadPoolExecutor(
+            properties.cryptoParallelism,
+            properties.cryptoParallelism,
+            0L,
+            TimeUnit.MILLISECONDS,
+            ArrayBlockingQueue<Runnable>(properties.cryptoQueueSize),
+            namedDaemonThreadFactory("ocn-crypto", ::CryptoThread),
+            ThreadPoolExecutor.CallerRunsPolicy())
+
+    private val executor: ExecutorService = ExecutorServiceMetrics.monitor(registry, pool, "ocn.crypto")
+
+    /**
+     * Start a crypto operation (e.g. "sign", "verify") on the worker pool. Operations started by a worker itself run
+     * directly, so that workers never wait on each other.
+     */
+    fun <T> submit(operation: String, task: () -> T): Future<T> {
+        val timer = registry.timer("ocn.crypto.operations", "operation", operation)
+        val callable = Callable<T> { timer.recordCallable { task() } }
+        if (Thread.currentThread() is CryptoThread) {
+            return FutureTask(callable).also { it.run() }
+        }
+        return executor.submit(callable)
+    }
+
+    /**
+     * Wait for the result of an operation started with submit, rethrowing any exception raised by it
+     */
+    fun <T> await(future: Future<T>): T {
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    /**
+     * Run a crypto operation on the worker pool, blocking until it has completed
+     */
+    fun <T> run(operation: String, task: () -> T): T {
+        return await(submit(operation, task))
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+    private class CryptoThread(runnable: Runnable, name: String): Thread(runnable, name)
+
+}
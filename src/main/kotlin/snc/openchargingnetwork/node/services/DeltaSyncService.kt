@@ -0,0 +1,240 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.databind.JsonNode
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientUnknownLocationException
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.tools.LruMap
+import snc.openchargingnetwork.node.tools.extractNextLink
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import snc.openchargingnetwork.node.tools.getTimestamp
+import java.time.Instant
+
+/**
+ * Serves unfiltered sender interface list requests (i.e. GET locations, tariffs and tokens without date_from) of
+ * data owners which have opted in from a snapshot kept per sender, receiver and module. Each list request is
+ * forwarded to the data owner as a delta request (using date_from set to the time of the previous sync), the delta
+ * is merged into the snapshot and the full list is served by the node.
+ *
+ * The snapshot is rebuilt from a full list request once the configured full sync interval has passed, so that
+ * objects removed by the data owner (which are not contained in a delta) do not linger. Within the configured minimum
+ * interval after a sync, list requests are served from the snapshot without asking the data owner. Data owners whose
+ * list exceeds the configured maximum number of objects are not served from a snapshot until the next full sync is due.
+ */
+@Service
+class DeltaSyncService(private val properties: NodeProperties,
+                       private val routingService: RoutingService,
+                       private val httpService: HttpService) {
+
+    companion object {
+        private const val PAGE_LINK_PREFIX = "delta-sync:page"
+        private val pageLinkRegex = Regex("^$PAGE_LINK_PREFIX\\?offset=(\\d+)&limit=(\\d+)$")
+        private val modules = listOf(ModuleID.LOCATIONS, ModuleID.TARIFFS, ModuleID.TOKENS)
+    }
+
+    /**
+     * Snapshots by sender, receiver and module (the following pages of an evicted snapshot are answered as unknown)
+     */
+    private val snapshots = LruMap<String, Snapshot>(properties.deltaSyncMaxSnapshots)
+
+    /**
+     * Get the response to a sender interface list request (or one of its following pages) from the snapshot,
+     * syncing the snapshot with the data owner first. Returns null if the request should be forwarded as usual.
+     *
+     * @param request the list request (for pages, urlPath or proxyResource identifies the requested page)
+     * @param proxied true if the request is for a page of which the link is stored as a proxy resource
+     * @param isSigningRequired checked before serving a list or page from the snapshot, which cannot be signed by
+     * the data owner
+     */
+    fun getResponse(request: OcpiRequestVariables,
+                    proxied: Boolean,
+                    isSigningRequired: () -> Boolean): HttpResponse<Any>? {
+
+        if (!properties.deltaSyncEnabled || !modules.contains(request.module) ||
+                request.interfaceRole != InterfaceRole.SENDER || request.method != HttpMethod.GET) {
+            return null
+        }
+
+        val key = "${request.headers.sender.toUpperCase()}/${request.headers.receiver.toUpperCase()}/${request.module.id}"
+
+        // pages following a list served from the snapshot are identified by their link
+        val pageLink = when {
+            proxied -> routingService.getProxyResource(request.urlPath, request.headers.sender, request.headers.receiver)
+            else -> request.proxyResource
+        }
+        if (pageLink != null) {
+            val match = pageLinkRegex.matchEntire(pageLink) ?: return null
+            // the page cannot be forwarded, so the sender has to request the list again (which is then forwarded)
+            if (isSigningRequired() || !routingService.getPlatformRules(request.headers.receiver).deltaSync) {
+                synchronized(snapshots) { snapshots.remove(key) }
+                throw OcpiClientUnknownLocationException("Proxied resource not found")
+            }
+            val snapshot = synchronized(snapshots) { snapshots[key] }
+                    ?: throw OcpiClientUnknownLocationException("Proxied resource not found")
+            return getPage(snapshot, match.groupValues[1].toInt(), match.groupValues[2].toInt())
+        }
+
+        if (request.urlPath != null || !isUnfiltered(request.queryParams) || isSigningRequired() ||
+                !routingService.getPlatformRules(request.headers.receiver).deltaSync) {
+            return null
+        }
+
+        val limit = request.queryParams?.get("limit")?.toString()?.toIntOrNull()
+                ?.coerceIn(1, properties.deltaSyncPageLimit)
+                ?: properties.deltaSyncPageLimit
+
+        val snapshot = synchronized(snapshots) { snapshots.getOrPut(key) { Snapshot() } }
+        synchronized(snapshot) {
+            if (isTooLarge(snapshot)) {
+                return null
+            }
+            sync(request, snapshot)?.let { return it }
+            return if (isTooLarge(snapshot)) null else getPage(snapshot, 0, limit)
+        }
+    }
+
+    /**
+     * Snapshots of lists exceeding the maximum number of objects are retried once the full sync interval has passed.
+     */
+    private fun isTooLarge(snapshot: Snapshot): Boolean {
+        val tooLargeSince = snapshot.tooLargeSince ?: return false
+        return System.currentTimeMillis() - tooLargeSince <= properties.deltaSyncFullSyncInterval
+    }
+
+    /**
+     * Only list requests without date filters, starting from the first object, are served from the snapshot.
+     */
+    private fun isUnfiltered(queryParams: Map<String, Any?>?): Boolean {
+        val params = queryParams ?: return true
+        val offset = params["offset"]?.toString()?.toIntOrNull() ?: 0
+        return params.keys.all { it == "offset" || it == "limit" } && offset == 0
+    }
+
+    /**
+     * Merge the delta since the last sync (or the full list, if due) into the snapshot, unless the snapshot has been
+     * synced within the minimum interval. Returns the data owner's response if it was not successful. The caller
+     * holds the snapshot's lock.
+     */
+    private fun sync(request: OcpiRequestVariables, snapshot: Snapshot): HttpResponse<Any>? {
+        val syncStarted = System.currentTimeMillis()
+        val fullSync = snapshot.lastSync == null ||
+                syncStarted - snapshot.lastFullSync > properties.deltaSyncFullSyncInterval
+
+        if (!fullSync && syncStarted - snapshot.lastSyncStarted < properties.deltaSyncMinInterval) {
+            return null
+        }
+
+        val params: Map<String, Any?> = if (fullSync) { mapOf() } else { mapOf("date_from" to snapshot.lastSync) }
+        val upstreamRequest = request.copy(queryParams = params)
+        val (url, headers) = routingService.prepareLocalPlatformRequest(upstreamRequest)
+
+        var response = httpService.makeOcpiRequest<Any>(url, headers, upstreamRequest)
+        val objects = mutableListOf<JsonNode>()
+
+        while (true) {
+            if (response.statusCode != 200 || response.body.statusCode != 1000) {
+                return response
+            }
+            response.body.data?.let { objects.addAll(httpService.mapper.valueToTree<JsonNode>(it)) }
+            if (objects.size > properties.deltaSyncMaxObjects) {
+                break
+            }
+
+            // follow the data owner's pagination until the full delta has been received
+            val next = response.headers["Link"]?.extractNextLink() ?: break
+            response = httpService.makeOcpiRequest(
+                    url = next,
+                    ocnHeaders = headers.copy(requestID = generateUUIDv4Token()),
+                    requestVariables = upstreamRequest.copy(queryParams = null))
+        }
+
+        if (fullSync) {
+            snapshot.objects.clear()
+            snapshot.lastFullSync = syncStarted
+        }
+        for (obj in objects) {
+            // re-insert updated objects, keeping the snapshot ordered by last update
+            val objectKey = getObjectKey(request.module, obj)
+            snapshot.objects.remove(objectKey)
+            snapshot.objects[objectKey] = httpService.mapper.writeValueAsBytes(obj)
+        }
+        snapshot.lastSync = getTimestamp(Instant.ofEpochMilli(syncStarted))
+        snapshot.lastSyncStarted = syncStarted
+        snapshot.tooLargeSince = null
+
+        // too large to be held by the node: requests are forwarded as usual until the next full sync is due
+        if (snapshot.objects.size > properties.deltaSyncMaxObjects) {
+            snapshot.objects.clear()
+            snapshot.lastSync = null
+            snapshot.tooLargeSince = syncStarted
+        }
+        return null
+    }
+
+    /**
+     * Build a page of the snapshot, including pagination headers. The next page's link is proxied by the
+     * OcpiResponseHandler like any other pagination link and resolved by getResponse.
+     */
+    private fun getPage(snapshot: Snapshot, offset: Int, limit: Int): HttpResponse<Any> {
+        synchronized(snapshot) {
+            val total = snapshot.objects.size
+            val page = snapshot.objects.values.asSequence()
+                    .drop(offset)
+                    .take(limit)
+                    .map { httpService.mapper.readTree(it) }
+                    .toList()
+
+            val headers = mutableMapOf("X-Total-Count" to total.toString(), "X-Limit" to limit.toString())
+            if (offset + limit < total) {
+                headers["Link"] = "<$PAGE_LINK_PREFIX?offset=${offset + limit}&limit=$limit>; rel=\"next\""
+            }
+
+            return HttpResponse(statusCode = 200, headers = headers, body = OcpiResponse<Any>(statusCode = 1000, data = page))
+        }
+    }
+
+    /**
+     * Identify an object by its owner and ID (tokens are identified by uid and type).
+     */
+    private fun getObjectKey(module: ModuleID, obj: JsonNode): String {
+        val fields = when (module) {
+            ModuleID.TOKENS -> listOf("country_code", "party_id", "uid", "type")
+            else -> listOf("country_code", "party_id", "id")
+        }
+        return fields.joinToString("/") { obj.get(it)?.asText() ?: "" }
+    }
+
+    private class Snapshot {
+        /**
+         * Serialized objects keyed by owner and ID, in order of last update.
+         */
+        val objects = LinkedHashMap<String, ByteArray>()
+        var lastSync: String? = null
+        var lastSyncStarted: Long = 0
+        var lastFullSync: Long = 0
+        var tooLargeSince: Long? = null
+    }
+
+}
@@ -17,38 +17,101 @@
 package snc.openchargingnetwork.node.services
 
 import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import khttp.DEFAULT_TIMEOUT
 import org.springframework.http.HttpMethod
 import org.springframework.stereotype.Service
 import snc.openchargingnetwork.node.models.*
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
 import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
 import snc.openchargingnetwork.node.models.exceptions.OcpiServerUnusableApiException
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.tools.urlJoin
+import java.io.ByteArrayOutputStream
 
 
 @Service
 class HttpService {
 
+    companion object {
+        // content type of OCN messages encoded as Smile (see OcnNodeFeature.MESSAGE_SMILE)
+        const val SMILE_CONTENT_TYPE = "application/x-jackson-smile"
+    }
+
     val mapper = jacksonObjectMapper()
 
+    val smileMapper: ObjectMapper = ObjectMapper(SmileFactory()).registerKotlinModule()
+
     val configurationModules: List<ModuleID> = listOf(ModuleID.CREDENTIALS, ModuleID.HUB_CLIENT_INFO)
 
     fun convertToRequestVariables(stringBody: String): OcpiRequestVariables = mapper.readValue(stringBody)
 
+    fun convertToRequestVariables(smileBody: ByteArray): OcpiRequestVariables =
+            smileMapper.readValue(smileBody, OcpiRequestVariables::class.java)
+
+    /**
+     * Encode a JSON string as Smile, copying the tokens as they are (i.e. without binding them to a model first)
+     */
+    fun toSmile(stringBody: String): ByteArray {
+        val output = ByteArrayOutputStream(stringBody.length / 2)
+        mapper.factory.createParser(stringBody).use { parser ->
+            smileMapper.factory.createGenerator(output).use { generator ->
+                while (parser.nextToken() != null) {
+                    generator.copyCurrentEvent(parser)
+                }
+            }
+        }
+        return output.toByteArray()
+    }
+
+    /**
+     * Get the body (object or array) of a JSON-serialized OcpiRequestVariables object exactly as it appears in the
+     * string, so that it can be forwarded without being encoded again. Returns null if there is no such body.
+     */
+    fun extractRawBody(stringBody: String): String? {
+        var rawBody: String? = null
+
+        mapper.factory.createParser(stringBody).use { parser ->
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                val field = parser.currentName
+                val token = parser.nextToken()
+                if (field == "body") {
+                    // the parsed body is taken from the last field of the same name, so the raw body is ambiguous
+                    if (rawBody != null || (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY)) {
+                        return null
+                    }
+                    val start = parser.tokenLocation.charOffset.toInt()
+                    parser.skipChildren()
+                    rawBody = stringBody.substring(start, parser.currentLocation.charOffset.toInt())
+                } else {
+                    parser.skipChildren()
+                }
+            }
+        }
+
+        return rawBody
+    }
+
 
     /**
      * Generic HTTP request expecting a response of type OcpiResponse<T> as defined by the caller
      */
-    fun <T : Any> makeOcpiRequest(method: HttpMethod, url: String, headers: Map<String, String?>, params: Map<String, Any?>? = null, data: String? = null): HttpResponse<T> {
+    fun <T : Any> makeOcpiRequest(method: HttpMethod, url: String, headers: Map<String, String?>, params: Map<String, Any?>? = null, data: String? = null, timeout: Double = DEFAULT_TIMEOUT): HttpResponse<T> {
         val paramsWithStringValues = params?.mapValues { (_, value) -> value.toString() } ?: mapOf()
         val response = when (method) {
-            HttpMethod.GET -> khttp.get(url, headers, paramsWithStringValues)
-            HttpMethod.POST -> khttp.post(url, headers, paramsWithStringValues, data = data)
-            HttpMethod.PUT -> khttp.put(url, headers, paramsWithStringValues, data = data)
-            HttpMethod.PATCH -> khttp.patch(url, headers, paramsWithStringValues, data = data)
-            HttpMethod.DELETE -> khttp.delete(url, headers)
+            HttpMethod.GET -> khttp.get(url, headers, paramsWithStringValues, timeout = timeout)
+            HttpMethod.POST -> khttp.post(url, headers, paramsWithStringValues, data = data, timeout = timeout)
+            HttpMethod.PUT -> khttp.put(url, headers, paramsWithStringValues, data = data, timeout = timeout)
+            HttpMethod.PATCH -> khttp.patch(url, headers, paramsWithStringValues, data = data, timeout = timeout)
+            HttpMethod.DELETE -> khttp.delete(url, headers, timeout = timeout)
             else -> throw IllegalStateException("Invalid method: $method")
         }
 
@@ -65,10 +128,13 @@ class HttpService {
 
     /**
      * Generic HTTP request expecting a response of type OcpiResponse<T> as defined by the caller
+     * (timeout in seconds)
      */
     final fun <T: Any> makeOcpiRequest(url: String,
                                        ocnHeaders: OcnHeaders,
-                                       requestVariables: OcpiRequestVariables): HttpResponse<T> {
+                                       requestVariables: OcpiRequestVariables,
+                                       rawBody: String? = null,
+                                       timeout: Double = DEFAULT_TIMEOUT): HttpResponse<T> {
 
         // includes or excludes routing headers based on module type (functional or configuration)
         // TODO: credentials and versions must also include X-Request-ID/X-Correlation-ID
@@ -78,8 +144,12 @@ class HttpService {
         if (requestVariables.body != null) {
             // Setting content-type to json as this is the expected format for standard and custom OCPI modules
             headersMap["content-type"] = "application/json"
-            // If the request body is a String, we assume that it is already JSON
-            jsonBody = if (requestVariables.body is String) requestVariables.body else mapper.writeValueAsString(requestVariables.body)
+            // If the request body is a String (or the body was received as raw JSON), we assume that it is already JSON
+            jsonBody = when {
+                rawBody != null -> rawBody
+                requestVariables.body is String -> requestVariables.body
+                else -> mapper.writeValueAsString(requestVariables.body)
+            }
         }
 
         return makeOcpiRequest(
@@ -87,7 +157,8 @@ class HttpService {
                 url = url,
                 headers = headersMap,
                 params = requestVariables.queryParams,
-                data = jsonBody)
+                data = jsonBody,
+                timeout = timeout)
     }
 
 
@@ -152,11 +223,96 @@ class HttpService {
                 body = mapper.readValue(response.text))
     }
 
-    fun putOcnClientInfo(url: String, signature: String, body: ClientInfo) {
+    /**
+     * Make a POST request to an OCN Node's /ocn/message with a Smile-encoded body (see OcnNodeFeature.MESSAGE_SMILE)
+     * The response is JSON as usual.
+     */
+    final fun <T: Any> postOcnMessageSmile(url: String,
+                                           headers: OcnMessageHeaders,
+                                           body: ByteArray): HttpResponse<T> {
+
+        val headersMap = headers.toMap().plus("Content-Type" to SMILE_CONTENT_TYPE)
+
+        val fullURL = urlJoin(url, "/ocn/message")
+
+        val response = khttp.post(fullURL, headersMap, data = body.inputStream())
+
+        return HttpResponse(
+                statusCode = response.statusCode,
+                headers = response.headers,
+                body = mapper.readValue(response.text))
+    }
+
+    /**
+     * Make a POST request to an OCN Node which implements /ocn/message/batch
+     * Used to forward multiple requests to the same OCN Node in a single exchange (see OcnNodeFeature.MESSAGE_BATCH)
+     * @return the results of the individual requests, or null if the node does not have the batch endpoint (404)
+     * @throws OcpiHubConnectionProblemException if the batch failed otherwise (the messages may have been processed)
+     */
+    fun postOcnMessageBatch(url: String,
+                            headers: OcnMessageHeaders,
+                            body: String): List<OcnMessageBatchResult>? {
+
+        val fullURL = urlJoin(url, "/ocn/message/batch")
+
+        val response = khttp.post(fullURL, headers.toMap(), data = body)
+
+        if (response.statusCode == 404) {
+            return null
+        }
+
+        val responseBody: OcpiResponse<List<OcnMessageBatchResult>> = mapper.readValue(response.text)
+        return responseBody.data
+                ?: throw OcpiHubConnectionProblemException("Batch to $url failed with status ${response.statusCode}")
+    }
+
+    /**
+     * Get the optional features advertised by an OCN Node in its node-info (empty if the node advertises none)
+     */
+    fun getOcnNodeFeatures(url: String): List<String> {
+        val response = khttp.get(urlJoin(url, "/ocn/registry/node-info"))
+        val nodeInfo: Map<String, Any?> = mapper.readValue(response.text)
+        return (nodeInfo["features"] as? List<*>)?.map { it.toString() } ?: listOf()
+    }
+
+    /**
+     * Make a POST request to an OCN Node's /ocn/session, opening a session (see OcnNodeFeature.SESSION_KEY)
+     * @return the response body and its OCN-Signature
+     */
+    fun postOcnSession(url: String, signature: String, body: String): Pair<String, String> {
+        val headers = mapOf("OCN-Signature" to signature, "Content-Type" to "application/json")
+        val response = khttp.post(urlJoin(url, "/ocn/session"), headers, data = body)
+        val responseSignature = response.headers["OCN-Signature"]
+        if (response.statusCode != 200 || responseSignature == null) {
+            throw OcpiHubConnectionProblemException("Could not open session with OCN Node at $url (${response.statusCode})")
+        }
+        return Pair(response.text, responseSignature)
+    }
+
+    fun putOcnClientInfo(url: String, signature: String, body: ClientInfo, timeout: Double = DEFAULT_TIMEOUT) {
         val headers = mapOf("OCN-Signature" to signature)
         val endpoint = urlJoin(url, "/ocn/client-info")
         val bodyString = mapper.writeValueAsString(body)
-        khttp.put(endpoint, headers, data = bodyString)
+        val response = khttp.put(endpoint, headers, data = bodyString, timeout = timeout)
+        if (response.statusCode != 200) {
+            throw OcpiHubConnectionProblemException("Client info update to $url failed with status ${response.statusCode}")
+        }
+    }
+
+    /**
+     * Make a PUT request to an OCN Node which implements /ocn/client-info/batch (see OcnNodeFeature.CLIENT_INFO_BATCH)
+     * @return false if the batch was not accepted
+     */
+    fun putOcnClientInfoBatch(url: String, signature: String, body: String, timeout: Double = DEFAULT_TIMEOUT): Boolean {
+        val headers = mapOf("OCN-Signature" to signature)
+        val response = khttp.put(urlJoin(url, "/ocn/client-info/batch"), headers, data = body, timeout = timeout)
+        if (response.statusCode == 404) {
+            return false
+        }
+        if (response.statusCode != 200) {
+            throw OcpiHubConnectionProblemException("Client info batch to $url failed with status ${response.statusCode}")
+        }
+        return true
     }
 
 }
\ No newline at end of file
@@ -17,197 +17,265 @@
 package snc.openchargingnetwork.node.services
 
 import org.slf4j.LoggerFactory
+import org.springframework.data.domain.Page
+import org.springframework.data.domain.PageImpl
 import org.springframework.http.HttpMethod
-import org.springframework.scheduling.annotation.Async
 import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import snc.openchargingnetwork.node.models.OutboxClientInfoNodeUpdate
 import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
 import snc.openchargingnetwork.node.models.entities.PlatformEntity
 import snc.openchargingnetwork.node.models.entities.RoleEntity
+import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
 import snc.openchargingnetwork.node.models.ocpi.*
-import snc.openchargingnetwork.node.repositories.EndpointRepository
 import snc.openchargingnetwork.node.repositories.NetworkClientInfoRepository
+import snc.openchargingnetwork.node.repositories.OffsetPageRequest
 import snc.openchargingnetwork.node.repositories.PlatformRepository
 import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.repositories.RoleStatusView
 import snc.openchargingnetwork.node.tools.extractToken
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import snc.openchargingnetwork.node.tools.getInstant
+import snc.openchargingnetwork.node.tools.getTimestamp
+import snc.openchargingnetwork.node.tools.urlJoin
 import java.time.Instant
 
 @Service
 class HubClientInfoService(private val platformRepo: PlatformRepository,
                            private val roleRepo: RoleRepository,
-                           private val endpointRepo: EndpointRepository,
                            private val networkClientInfoRepo: NetworkClientInfoRepository,
                            private val httpService: HttpService,
                            private val routingService: RoutingService,
                            private val walletService: WalletService,
                            private val ocnRulesService: OcnRulesService,
-                           private val registryService: RegistryService) {
+                           private val channelService: OcnChannelService,
+                           private val nodeFeatureService: NodeFeatureService,
+                           private val connectionHeartbeatService: ConnectionHeartbeatService,
+                           private val hubClientInfoSubscriberService: HubClientInfoSubscriberService,
+                           private val properties: NodeProperties) {
 
     companion object {
         private val logger = LoggerFactory.getLogger(HubClientInfoService::class.java)
+
+        // number of locks over which saves of client info are spread (see saveClientInfo)
+        private const val SAVE_LOCKS = 64
+
+        // upper bound of the HubClientInfo list if no date_to is given
+        private val END_OF_TIME = Instant.parse("9999-12-31T23:59:59Z")
     }
 
+    // saves of the same party and role are serialised, so that concurrent updates neither create duplicate rows nor
+    // overwrite a newer status
+    private val saveLocks = Array(SAVE_LOCKS) { Any() }
+
+    private val timeoutSeconds = properties.clientInfoTimeout / 1000.0
+
     /**
-     * Get a HubClientInfo list of local and known network connections
+     * Get the full HubClientInfo list of local and known network connections (as getPage), optionally only those
+     * updated since a given time.
      */
-    fun getList(fromAuthorization: String): List<ClientInfo> {
-        val clientInfoList = mutableListOf<ClientInfo>()
+    fun getList(fromAuthorization: String, dateFrom: Instant? = null): List<ClientInfo> {
+        return getPage(fromAuthorization, dateFrom, null, 0, Int.MAX_VALUE).content
+    }
 
+    /**
+     * Get a page of the HubClientInfo list, optionally only those updated in [dateFrom, dateTo). Paging and the
+     * whitelist/blacklist of the requesting platform are applied in the database, across local roles followed by
+     * network roles.
+     */
+    fun getPage(fromAuthorization: String, dateFrom: Instant?, dateTo: Instant?, offset: Long, limit: Int): Page<ClientInfo> {
         val requestingPlatform = platformRepo.findByAuth_TokenC(fromAuthorization.extractToken())
                 ?: throw IllegalStateException("Sender is validated but cannot find them by their authorization token")
 
+        // a whitelist takes precedence over a blacklist (see OcnRulesService.getWhitelistCheck)
+        val platformID = requestingPlatform.id
+        val whitelist = requestingPlatform.rules.whitelist
+        val blacklist = requestingPlatform.rules.blacklist && !whitelist
+        val from = dateFrom ?: Instant.EPOCH
+        val to = dateTo ?: END_OF_TIME
+
+        val localTotal = roleRepo.countWithStatusUpdatedBetween(platformID, whitelist, blacklist, from, to)
+        val networkTotal = networkClientInfoRepo.countUpdatedBetween(platformID, whitelist, blacklist, from, to)
+
+        val clientInfoList = mutableListOf<ClientInfo>()
+
         // add connected party roles
-        for (platform in platformRepo.findAll()) {
-            for (role in roleRepo.findAllByPlatformID(platform.id)) {
-                // only if whitelisted
-                val counterPartyBasicRole = BasicRole(id = role.partyID, country = role.countryCode)
-
-                if (ocnRulesService.isWhitelisted(requestingPlatform, counterPartyBasicRole)) {
-                    clientInfoList.add(ClientInfo(
-                            partyID = role.partyID,
-                            countryCode = role.countryCode,
-                            role = role.role,
-                            status = platform.status,
-                            lastUpdated = platform.lastUpdated))
-                }
-            }
+        if (offset < localTotal) {
+            val pageable = OffsetPageRequest(offset, limit)
+            roleRepo.findAllWithStatusUpdatedBetween(platformID, whitelist, blacklist, from, to, pageable)
+                    .mapTo(clientInfoList) { toClientInfo(it) }
         }
 
-        // add network party roles
-        for (role in networkClientInfoRepo.findAll()) {
-            // only if whitelisted
-            if (ocnRulesService.isWhitelisted(requestingPlatform, role.party)) {
-                clientInfoList.add(ClientInfo(
-                        partyID = role.party.id,
-                        countryCode = role.party.country,
-                        role = role.role,
-                        status = ConnectionStatus.PLANNED,
-                        lastUpdated = role.lastUpdated
-                ))
-            }
+        // add network party roles, continuing where the connected party roles leave off
+        val remaining = limit - clientInfoList.size
+        if (remaining > 0 && offset + clientInfoList.size < localTotal + networkTotal) {
+            val pageable = OffsetPageRequest((offset - localTotal).coerceAtLeast(0), remaining)
+            networkClientInfoRepo.findAllUpdatedBetween(platformID, whitelist, blacklist, from, to, pageable)
+                    .mapTo(clientInfoList) { toClientInfo(it) }
         }
 
-        return clientInfoList
+        return PageImpl(clientInfoList, OffsetPageRequest(offset, limit), localTotal + networkTotal)
     }
 
+    private fun toClientInfo(role: RoleStatusView) = ClientInfo(
+            partyID = role.partyID,
+            countryCode = role.countryCode,
+            role = role.role,
+            status = role.status,
+            lastUpdated = getTimestamp(role.lastUpdated))
+
+    // network roles are listed as planned, whatever their status on their own node
+    private fun toClientInfo(role: NetworkClientInfoEntity) = ClientInfo(
+            partyID = role.party.id,
+            countryCode = role.party.country,
+            role = role.role,
+            status = ConnectionStatus.PLANNED,
+            lastUpdated = getTimestamp(role.lastUpdated))
+
     /**
-     * Get parties who should be sent a HubClientInfo Push notification (sans the changedPlatform if provided)
+     * Get parties who should be sent a HubClientInfo Push notification (sans the parties of the changed platform if
+     * provided)
      */
-    fun getPartiesToNotifyOfClientInfoChange(changedPlatform: PlatformEntity? = null, clientInfo: ClientInfo) : List<RoleEntity> {
-        val clientsToNotify = mutableListOf<RoleEntity>()
-        for (platform in platformRepo.findAll()) {
-
-            // Only push the update if the platform is connected and it isn't the platform that triggered the event
-            if (platform.status == ConnectionStatus.CONNECTED && platform.id != changedPlatform?.id) {
-
-                // Only push the update if the platform has implemented the HubClientInfo Receiver endpoint
-                val hubClientInfoPutEndpoint = endpointRepo.findByPlatformIDAndIdentifierAndRole(
-                        platformID = platform.id,
-                        identifier = ModuleID.HUB_CLIENT_INFO.id,
-                        Role = InterfaceRole.RECEIVER
-                )
-                if (hubClientInfoPutEndpoint != null) {
-                    for (clientRole in roleRepo.findAllByPlatformID(platform.id)) { //TODO: It could be redundant to notify each party. Perhaps it's better to assume single receiver interface
-
-                        // Only push the update if the role has whitelisted the ClientInfo owner
-                        val counterParty = BasicRole(id = clientInfo.partyID, country = clientInfo.countryCode)
-                        if (ocnRulesService.isWhitelisted(platform, counterParty)) {
-                            clientsToNotify.add(clientRole)
-                        }
-                    }
-                }
-            }
+    fun getPartiesToNotifyOfClientInfoChange(changedPlatformID: Long? = null, clientInfo: ClientInfo) : List<RoleEntity> {
+        // Only push the update if the platform has implemented the HubClientInfo Receiver endpoint and it isn't the
+        // platform that triggered the event
+        val subscribers = hubClientInfoSubscriberService.getSubscribers().filterKeys { it != changedPlatformID }
+        if (subscribers.isEmpty()) {
+            return listOf()
         }
 
-        return clientsToNotify
+        val counterParty = BasicRole(id = clientInfo.partyID, country = clientInfo.countryCode)
+
+        //TODO: It could be redundant to notify each party. Perhaps it's better to assume single receiver interface
+        return platformRepo.findAllById(subscribers.keys)
+                // Only push the update if the platform is connected and has whitelisted the ClientInfo owner
+                .filter { it.status == ConnectionStatus.CONNECTED && ocnRulesService.isWhitelisted(it, counterParty) }
+                .flatMap { subscribers.getValue(it.id!!).roles }
     }
 
     /**
-     * Save a client info object
+     * Save a client info object. Updates older than the one already saved for the party and role are ignored.
      */
     fun saveClientInfo(clientInfo: ClientInfo) {
         val basicRole = BasicRole(id = clientInfo.partyID, country = clientInfo.countryCode)
+        val lock = saveLocks[Math.floorMod("${basicRole.toUpperCase()}/${clientInfo.role}".hashCode(), SAVE_LOCKS)]
+
+        synchronized(lock) {
+            saveClientInfo(basicRole, clientInfo)
+        }
+    }
+
+    private fun saveClientInfo(basicRole: BasicRole, clientInfo: ClientInfo) {
+        val lastUpdated = getInstant(clientInfo.lastUpdated)
 
-        val updatedClientInfo: NetworkClientInfoEntity? = networkClientInfoRepo.findByPartyAndRole(basicRole, clientInfo.role)?.let {
-            // check status has changed
-            if (it.status != clientInfo.status) {
-                it.apply {
+        val updatedClientInfo = when (val saved = networkClientInfoRepo.findByPartyAndRole(basicRole, clientInfo.role)) {
+            null -> NetworkClientInfoEntity(
+                    party = basicRole,
+                    role = clientInfo.role,
+                    status = clientInfo.status,
+                    lastUpdated = lastUpdated)
+            else -> {
+                // nothing to save if the status is unchanged or the update is outdated
+                if (saved.status == clientInfo.status || lastUpdated.isBefore(saved.lastUpdated)) {
+                    return
+                }
+                saved.apply {
                     status = clientInfo.status
-                    lastUpdated = clientInfo.lastUpdated
+                    this.lastUpdated = lastUpdated
                 }
-            } else {
-                null
             }
-        } ?: NetworkClientInfoEntity(
-                party = basicRole,
-                role = clientInfo.role,
-                status = clientInfo.status,
-                lastUpdated = clientInfo.lastUpdated)
-
-        if (updatedClientInfo != null) {
-            networkClientInfoRepo.save(updatedClientInfo)
         }
+
+        // interested local parties are notified via the outbox (see HubClientInfoListener)
+        updatedClientInfo.changed()
+        networkClientInfoRepo.save(updatedClientInfo)
     }
 
     /**
-     * Send a notification of a ClientInfo change to a list of parties
+     * Save client info received from another node, on the thread receiving it. Returns once all of it has been saved,
+     * so that the sending node keeps (and retries) updates which could not be saved.
      */
-    fun notifyPartiesOfClientInfoChange(parties: Iterable<RoleEntity>, changedClientInfo: ClientInfo) {
-        for (party in parties) {
-            val sender = BasicRole(id = "OCN", country = "CH") // TODO: put node platformID and countryCode in a shared, configurable location
-            val receiver = BasicRole(party.partyID, party.countryCode)
-            val requestVariables = OcpiRequestVariables(
-                    module = ModuleID.HUB_CLIENT_INFO,
-                    interfaceRole = InterfaceRole.RECEIVER,
-                    method = HttpMethod.PUT,
-                    headers = OcnHeaders(
-                            authorization = "Token ${platformRepo.findById(party.platformID).get().auth.tokenB}",
-                            requestID = generateUUIDv4Token(),
-                            correlationID = generateUUIDv4Token(),
-                            sender = sender,
-                            receiver = receiver),
-                    body = changedClientInfo,
-                    urlPath = "${changedClientInfo.countryCode}/${changedClientInfo.partyID}")
-
-            val (url, headers) = routingService.prepareLocalPlatformRequest(requestVariables, proxied = false)
-
+    fun ingestClientInfo(clientInfoList: List<ClientInfo>) {
+        // save all received client info (even if connected parties are not interested, they might be in the future)
+        for (clientInfo in clientInfoList) {
             try {
-                httpService.makeOcpiRequest<Unit>(url, headers, requestVariables)
-            } catch (e: Exception) { // fire and forget; catch any error and log
-                logger.warn("Error notifying $receiver of client info change: ${e.message}")
+                saveClientInfo(clientInfo)
+            } catch (e: Exception) {
+                logger.warn("Error saving client info: ${e.message}")
+                throw e
             }
         }
     }
 
     /**
-     * Send a notification of a ClientInfo change to other nodes on the network
+     * Send a HubClientInfo Push notification to a party of a local platform
+     * @throws OcpiServerGenericException if the platform responded with a server error
      */
-    fun notifyNodesOfClientInfoChange(changedClientInfo: ClientInfo) {
-        val requestBodyString = httpService.mapper.writeValueAsString(changedClientInfo)
-        val signature = walletService.sign(requestBodyString)
+    fun pushClientInfo(platform: PlatformEntity, party: BasicRole, clientInfo: ClientInfo) {
+        val requestVariables = OcpiRequestVariables(
+                module = ModuleID.HUB_CLIENT_INFO,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PUT,
+                headers = OcnHeaders(
+                        authorization = "Token ${platform.auth.tokenB}",
+                        requestID = generateUUIDv4Token(),
+                        correlationID = generateUUIDv4Token(),
+                        sender = BasicRole(id = "OCN", country = "CH"), // TODO: put node platformID and countryCode in a shared, configurable location
+                        receiver = party),
+                body = clientInfo,
+                urlPath = "${clientInfo.countryCode}/${clientInfo.partyID}")
 
-        val nodes = registryService.getNodes(omitMine = true)
+        val url = hubClientInfoSubscriberService.getSubscribers()[platform.id]?.let { urlJoin(it.url, requestVariables.urlPath) }
+                ?: routingService.prepareLocalPlatformRequest(requestVariables, proxied = false).first
+        val response = httpService.makeOcpiRequest<Unit>(url, requestVariables.headers, requestVariables, timeout = timeoutSeconds)
+        if (response.statusCode >= 500) {
+            throw OcpiServerGenericException("HubClientInfo Push to $party failed with status ${response.statusCode}")
+        }
+    }
 
-        for (node in nodes) {
-            try {
-                httpService.putOcnClientInfo(node.url, signature, changedClientInfo)
-            } catch (e: Exception) { // fire and forget; catch any error and log
-                logger.warn("Error notifying $node of client info change: ${e.message}")
-            }
+    /**
+     * Sign a ClientInfo change once, to be sent to each node on the network
+     */
+    fun getNodeUpdate(clientInfo: ClientInfo): OutboxClientInfoNodeUpdate {
+        val requestBodyString = httpService.mapper.writeValueAsString(clientInfo)
+        return OutboxClientInfoNodeUpdate(signature = walletService.sign(requestBodyString), clientInfo = clientInfo)
+    }
+
+    /**
+     * Send a (signed) ClientInfo change to another node on the network
+     */
+    fun sendNodeUpdate(url: String, update: OutboxClientInfoNodeUpdate) {
+        channelService.putOcnClientInfo(url, update.signature, update.clientInfo)
+    }
+
+    /**
+     * Check whether ClientInfo changes can be sent to another node in batches
+     */
+    fun supportsNodeUpdateBatch(url: String): Boolean {
+        return properties.clientInfoBatchEnabled && nodeFeatureService.supports(url, OcnNodeFeature.CLIENT_INFO_BATCH)
+    }
+
+    /**
+     * Send a batch of ClientInfo changes to another node on the network, signed once. The changes are sent individually
+     * if the node does not accept the batch.
+     */
+    fun sendNodeUpdates(url: String, updates: List<OutboxClientInfoNodeUpdate>) {
+        val requestBodyString = httpService.mapper.writeValueAsString(updates.map { it.clientInfo })
+        val signature = walletService.sign(requestBodyString)
+
+        if (!channelService.putOcnClientInfoBatch(url, signature, requestBodyString)) {
+            nodeFeatureService.setUnsupported(url, OcnNodeFeature.CLIENT_INFO_BATCH)
+            updates.forEach { sendNodeUpdate(url, it) }
         }
     }
 
     /**
-     * Confirm the online status of the client corresponding to a role
+     * Confirm the online status of the client corresponding to a role (written to the platforms table in batches, see
+     * ConnectionHeartbeatService)
      */
-    @Async
     fun renewClientConnection(sender: BasicRole) {
-        val role = roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase(countryCode = sender.country, partyID = sender.id)
-                ?: throw IllegalArgumentException("sender could not be found")
-
-        val client = platformRepo.findById(role.platformID).get()
-        client.renewConnection(Instant.now())
-        platformRepo.save(client)
+        connectionHeartbeatService.renew(sender)
     }
 }
@@ -0,0 +1,98 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.models.entities.EndpointEntity
+import snc.openchargingnetwork.node.models.entities.RoleEntity
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.repositories.EndpointRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.tools.afterCommit
+
+/**
+ * In-memory index of the platforms which implement the HubClientInfo receiver interface (subscribers to client info
+ * changes), with their roles and receiver endpoint. Loaded from the database on first use and kept up to date by the
+ * CredentialsController when platforms register, update their credentials or unregister.
+ */
+@Service
+class HubClientInfoSubscriberService(private val endpointRepo: EndpointRepository,
+                                     private val roleRepo: RoleRepository) {
+
+    class Subscriber(val platformID: Long, val roles: List<RoleEntity>, val url: String)
+
+    // subscribers by platform ID (guarded by lock)
+    private val subscribers = mutableMapOf<Long, Subscriber>()
+    private var loaded = false
+    private val lock = Any()
+
+    /**
+     * Get the current subscribers, by platform ID
+     */
+    fun getSubscribers(): Map<Long, Subscriber> {
+        synchronized(lock) {
+            load()
+            return HashMap(subscribers)
+        }
+    }
+
+    /**
+     * Set the roles and endpoints of a platform, once the current transaction (if any) has been committed
+     */
+    fun update(platformID: Long, roles: List<RoleEntity>, endpoints: List<EndpointEntity>) {
+        val endpoint = endpoints.firstOrNull { isHubClientInfoReceiver(it) }
+        afterCommit {
+            synchronized(lock) {
+                if (endpoint != null) {
+                    subscribers[platformID] = Subscriber(platformID, roles, endpoint.url)
+                } else {
+                    subscribers.remove(platformID)
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a platform, once the current transaction (if any) has been committed
+     */
+    fun remove(platformID: Long) {
+        afterCommit {
+            synchronized(lock) {
+                subscribers.remove(platformID)
+            }
+        }
+    }
+
+    // must be called holding the lock
+    private fun load() {
+        if (loaded) {
+            return
+        }
+        val endpoints = endpointRepo.findAllByIdentifierAndRole(ModuleID.HUB_CLIENT_INFO.id, InterfaceRole.RECEIVER)
+        for (endpoint in endpoints) {
+            val roles = roleRepo.findAllByPlatformID(endpoint.platformID).toList()
+            subscribers[endpoint.platformID] = Subscriber(endpoint.platformID, roles, endpoint.url)
+        }
+        loaded = true
+    }
+
+    private fun isHubClientInfoReceiver(endpoint: EndpointEntity): Boolean {
+        return endpoint.identifier == ModuleID.HUB_CLIENT_INFO.id && endpoint.role == InterfaceRole.RECEIVER
+    }
+
+}
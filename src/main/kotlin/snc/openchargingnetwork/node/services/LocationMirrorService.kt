@@ -0,0 +1,163 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ObjectNode
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.tools.LruMap
+
+/**
+ * Mirrors the Location/EVSE/Connector state of receivers (e.g. eMSPs) which have opted in, by applying the
+ * receiver interface PUT and PATCH requests forwarded to them. Receiver interface GET requests for known objects
+ * can then be answered by the node, without a round-trip to the receiver.
+ */
+@Service
+class LocationMirrorService(private val properties: NodeProperties,
+                            private val routingService: RoutingService,
+                            private val httpService: HttpService) {
+
+    /**
+     * Locations stored as their serialized JSON bytes, keyed by receiver and location
+     */
+    private val locations = LruMap<String, ByteArray>(properties.locationMirrorMaxLocations)
+
+    /**
+     * Apply a successfully forwarded receiver interface PUT or PATCH request to the mirrored state of its receiver.
+     * EVSE and Connector updates are only applied if the Location they belong to is already known.
+     */
+    fun apply(request: OcpiRequestVariables) {
+        if (request.method != HttpMethod.PUT && request.method != HttpMethod.PATCH) {
+            return
+        }
+        val path = getObjectPath(request) ?: return
+        val update = request.body?.let { httpService.mapper.valueToTree<JsonNode>(it) } as? ObjectNode ?: return
+
+        synchronized(locations) {
+            if (request.method == HttpMethod.PUT && path.evseUID == null) {
+                locations[path.key] = httpService.mapper.writeValueAsBytes(update)
+                return
+            }
+
+            val location = read(path.key) ?: return
+            val evse = path.evseUID?.let { findById(location, "evses", "uid", it) }
+
+            when (request.method) {
+                HttpMethod.PUT -> {
+                    if (path.connectorID == null) {
+                        replaceById(location, "evses", "uid", path.evseUID!!, update)
+                    } else {
+                        replaceById(evse ?: return, "connectors", "id", path.connectorID, update)
+                        update.get("last_updated")?.let { evse.set<JsonNode>("last_updated", it) }
+                    }
+                    update.get("last_updated")?.let { location.set<JsonNode>("last_updated", it) }
+                }
+                else -> {
+                    val target = when {
+                        path.connectorID != null -> evse?.let { findById(it, "connectors", "id", path.connectorID) }
+                        path.evseUID != null -> evse
+                        else -> location
+                    }
+                    target?.setAll<JsonNode>(update) ?: return
+                }
+            }
+
+            locations[path.key] = httpService.mapper.writeValueAsBytes(location)
+        }
+    }
+
+    /**
+     * Get the mirrored Location, EVSE or Connector requested by a receiver interface GET request. Returns null if
+     * the receiver has not opted in or the requested object is not known.
+     */
+    fun get(request: OcpiRequestVariables): JsonNode? {
+        if (request.method != HttpMethod.GET) {
+            return null
+        }
+        val path = getObjectPath(request) ?: return null
+        val location = synchronized(locations) { read(path.key) } ?: return null
+
+        if (path.evseUID == null) {
+            return location
+        }
+        val evse = findById(location, "evses", "uid", path.evseUID) ?: return null
+
+        return if (path.connectorID == null) evse else findById(evse, "connectors", "id", path.connectorID)
+    }
+
+    /**
+     * Parse the url path of a Locations receiver interface request (i.e. /{country_code}/{party_id}/{location_id}
+     * with optional evse_uid and connector_id), if the mirror is enabled, the receiver has opted in and the location
+     * belongs to the sender.
+     */
+    private fun getObjectPath(request: OcpiRequestVariables): ObjectPath? {
+        if (request.module != ModuleID.LOCATIONS || request.interfaceRole != InterfaceRole.RECEIVER ||
+                !properties.locationMirrorEnabled) {
+            return null
+        }
+
+        val segments = request.urlPath?.split("/")?.filter { it.isNotEmpty() } ?: return null
+        if (segments.size < 3 || segments.size > 5) {
+            return null
+        }
+
+        if (!routingService.getPlatformRules(request.headers.receiver).locationMirror) {
+            return null
+        }
+
+        // only the owner of a location (the CPO) may update or read it back, so the path must name the sender
+        val receiver = request.headers.receiver.toUpperCase()
+        val sender = request.headers.sender.toUpperCase()
+        if (BasicRole(id = segments[1], country = segments[0]).toUpperCase() != sender) {
+            return null
+        }
+
+        return ObjectPath(
+                key = "${receiver.country}/${receiver.id}/${sender.country}/${sender.id}/${segments[2]}",
+                evseUID = segments.getOrNull(3),
+                connectorID = segments.getOrNull(4))
+    }
+
+    private fun read(key: String): ObjectNode? {
+        return locations[key]?.let { httpService.mapper.readTree(it) as? ObjectNode }
+    }
+
+    private fun findById(parent: ObjectNode, arrayField: String, idField: String, id: String): ObjectNode? {
+        return parent.get(arrayField)
+                ?.firstOrNull { it.get(idField)?.asText() == id }
+                as? ObjectNode
+    }
+
+    private fun replaceById(parent: ObjectNode, arrayField: String, idField: String, id: String, value: ObjectNode) {
+        val array = parent.withArray(arrayField)
+        val index = array.indexOfFirst { it.get(idField)?.asText() == id }
+        if (index == -1) {
+            array.add(value)
+        } else {
+            array.set(index, value)
+        }
+    }
+
+    private class ObjectPath(val key: String, val evseUID: String?, val connectorID: String?)
+
+}
@@ -0,0 +1,66 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Negotiates optional features with other OCN Nodes, using the features they advertise in their node-info.
+ */
+@Service
+class NodeFeatureService(private val httpService: HttpService) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NodeFeatureService::class.java)
+
+        // how long the features advertised by a node are cached
+        private const val FEATURES_CACHE_TIME = 600000L
+    }
+
+    private val features = ConcurrentHashMap<String, Pair<Set<String>, Long>>()
+
+    /**
+     * Check whether the OCN Node at the given url supports a feature
+     */
+    fun supports(url: String, feature: OcnNodeFeature): Boolean {
+        val now = System.currentTimeMillis()
+        val cached = features[url]
+        if (cached != null && now - cached.second < FEATURES_CACHE_TIME) {
+            return cached.first.contains(feature.id)
+        }
+
+        val nodeFeatures = try {
+            httpService.getOcnNodeFeatures(url).toSet()
+        } catch (e: Exception) {
+            logger.warn("Could not get features of OCN Node at $url: ${e.message}")
+            setOf<String>()
+        }
+        features[url] = Pair(nodeFeatures, now)
+        return nodeFeatures.contains(feature.id)
+    }
+
+    /**
+     * Stop using a feature of an OCN Node (e.g. after it has been rejected) until its node-info is requested again
+     */
+    fun setUnsupported(url: String, feature: OcnNodeFeature) {
+        features.computeIfPresent(url) { _, (nodeFeatures, checked) -> Pair(nodeFeatures - feature.id, checked) }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.bouncycastle.crypto.ec.CustomNamedCurves
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import org.web3j.crypto.Keys
+import org.web3j.utils.Numeric
+import snc.openchargingnetwork.node.config.NodeIdentity
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import snc.openchargingnetwork.node.models.OcnSessionRequest
+import snc.openchargingnetwork.node.models.OcnSessionResponse
+import snc.openchargingnetwork.node.models.exceptions.InvalidOcnSessionException
+import snc.openchargingnetwork.node.models.exceptions.InvalidOcnSignatureException
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.tools.checksum
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import java.math.BigInteger
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.concurrent.ConcurrentHashMap
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Authenticates OCN messages sent between nodes. By default, messages are signed by the sending node's wallet. If both
+ * nodes support the OcnNodeFeature.SESSION_KEY feature, the sending node instead opens a session with the receiving
+ * node, in which both nodes authenticate each other once with their registered keys and derive a shared key (ECDH).
+ * Messages in the session are then authenticated with an HMAC of the shared key, which is much cheaper to create and
+ * verify than a signature. Sessions are renewed before they expire; if a session is not available (or no longer known
+ * to the receiving node) messages are signed as before.
+ *
+ * Note that this only concerns the authentication between nodes: signatures of the parties (OCN Notary) are not
+ * affected.
+ */
+@Service
+class NodeSessionService(private val properties: NodeProperties,
+                         private val nodeIdentity: NodeIdentity,
+                         private val registryService: RegistryService,
+                         private val walletService: WalletService,
+                         private val httpService: HttpService,
+                         private val nodeFeatureService: NodeFeatureService) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(NodeSessionService::class.java)
+
+        private const val MAC_ALGORITHM = "HmacSHA256"
+
+        // maximum clock difference accepted for the timestamp of a session request
+        private const val MAX_REQUEST_AGE = 300000L
+
+        // time to wait before trying to open a session with a node again after a failed attempt
+        private const val RETRY_INTERVAL = 60000L
+
+        private val curve = CustomNamedCurves.getByName("secp256k1").curve
+    }
+
+    private class Session(val id: String, val key: SecretKeySpec, val operator: String, val expires: Long) {
+        fun isExpired() = System.currentTimeMillis() > expires
+    }
+
+    private val random = SecureRandom()
+
+    // sessions opened with other nodes, by node url
+    private val outboundSessions = ConcurrentHashMap<String, Session>()
+
+    // sessions opened by other nodes, by session id
+    private val inboundSessions = ConcurrentHashMap<String, Session>()
+
+    // time of the last failed attempt to open a session, by node url
+    private val failedAttempts = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Check whether messages to the OCN Node at the given url can be authenticated with a session key
+     */
+    fun isEnabled(url: String): Boolean {
+        return properties.sessionKeyEnabled && nodeFeatureService.supports(url, OcnNodeFeature.SESSION_KEY)
+    }
+
+    /**
+     * Authenticate a message to the OCN Node at the given url, with the MAC of the session if available and its
+     * signature otherwise
+     */
+    fun authenticate(url: String, headers: OcnMessageHeaders, body: String): OcnMessageHeaders {
+        return authenticate(url, headers, body.toByteArray(StandardCharsets.UTF_8))
+    }
+
+    /**
+     * Authenticate a (binary) message to the OCN Node at the given url (see above)
+     */
+    fun authenticate(url: String, headers: OcnMessageHeaders, body: ByteArray): OcnMessageHeaders {
+        val session = if (isEnabled(url)) getSession(url) else null
+        return if (session != null) {
+            headers.copy(signature = null, sessionID = session.id, mac = mac(session.key, body))
+        } else {
+            headers.copy(signature = walletService.sign(body), sessionID = null, mac = null)
+        }
+    }
+
+    /**
+     * Stop using the current session with the OCN Node at the given url (e.g. after the node has rejected it)
+     */
+    fun invalidate(url: String) {
+        outboundSessions.remove(url)
+    }
+
+    /**
+     * Verify that a message (as JSON string) was sent by the node of all of the given senders, using either its
+     * OCN-Signature or OCN-MAC
+     */
+    fun verify(request: String, headers: OcnMessageHeaders, senders: Collection<BasicRole>) {
+        verify(request.toByteArray(StandardCharsets.UTF_8), headers, senders)
+    }
+
+    /**
+     * Verify that a (binary) message was sent by the node of all of the given senders (see above)
+     */
+    fun verify(request: ByteArray, headers: OcnMessageHeaders, senders: Collection<BasicRole>) {
+        val mac = headers.mac
+        if (mac == null) {
+            val signature = headers.signature ?: throw InvalidOcnSignatureException("Missing OCN-Signature header")
+            walletService.verify(request, signature, senders)
+            return
+        }
+
+        val session = headers.sessionID?.let { inboundSessions[it] }
+        if (session == null || session.isExpired()) {
+            throw InvalidOcnSessionException()
+        }
+        val expectedMac = mac(session.key, request)
+        if (!MessageDigest.isEqual(expectedMac.toByteArray(), mac.toByteArray())) {
+            throw OcpiHubConnectionProblemException("Could not verify OCN-MAC of request")
+        }
+        walletService.verifyOperator(session.operator, senders, "Could not verify OCN-MAC of request")
+    }
+
+    /**
+     * Open a session requested by another OCN Node (the initiator), which must be listed in the Registry
+     * @return the response (as JSON string) and its signature
+     */
+    fun openSession(requestString: String, signature: String): Pair<String, String> {
+        if (!properties.sessionKeyEnabled) {
+            throw InvalidOcnSessionException("Sessions not enabled on this OCN Node")
+        }
+
+        val request: OcnSessionRequest = httpService.mapper.readValue(requestString)
+        if (Math.abs(System.currentTimeMillis() - request.timestamp) > MAX_REQUEST_AGE) {
+            throw InvalidOcnSignatureException("Session request timestamp out of range")
+        }
+
+        val initiatorKey = walletService.recoverSigningKey(requestString, signature)
+        val initiator = "0x${Keys.getAddress(initiatorKey)}".checksum()
+        registryService.getNodes().find { it.operator == initiator && isSameUrl(it.url, request.nodeUrl) }
+                ?: throw InvalidOcnSignatureException("Session request not signed by a registered OCN Node operator")
+
+        // clean up expired sessions whenever a new one is opened
+        inboundSessions.values.removeIf { it.isExpired() }
+
+        val sessionID = generateUUIDv4Token()
+        val nonce = generateNonce()
+        val key = deriveKey(initiatorKey, sessionID, request.nonce, nonce)
+        inboundSessions[sessionID] = Session(sessionID, key, initiator, System.currentTimeMillis() + properties.sessionKeyLifetime)
+
+        val response = OcnSessionResponse(
+                sessionID = sessionID,
+                initiatorNonce = request.nonce,
+                nonce = nonce,
+                expiresIn = properties.sessionKeyLifetime)
+        val responseString = httpService.mapper.writeValueAsString(response)
+        return Pair(responseString, walletService.sign(responseString))
+    }
+
+    /**
+     * Get the session with the OCN Node at the given url, opening a new one if there is none or if the current one
+     * is about to expire. Returns null if no session could be opened.
+     */
+    private fun getSession(url: String): Session? {
+        outboundSessions[url]?.let { if (!isDueForRenewal(it)) return it }
+
+        synchronized(outboundSessions) {
+            val current = outboundSessions[url]
+            if (current != null && !isDueForRenewal(current)) {
+                return current
+            }
+
+            failedAttempts[url]?.let {
+                if (System.currentTimeMillis() - it < RETRY_INTERVAL) {
+                    return current?.takeIf { session -> !session.isExpired() }
+                }
+            }
+
+            return try {
+                val session = requestSession(url)
+                outboundSessions[url] = session
+                failedAttempts.remove(url)
+                session
+            } catch (e: Exception) {
+                logger.warn("Could not open session with OCN Node at $url: ${e.message}")
+                failedAttempts[url] = System.currentTimeMillis()
+                current?.takeIf { !it.isExpired() }
+            }
+        }
+    }
+
+    // sessions are renewed once 80% of their lifetime has passed
+    private fun isDueForRenewal(session: Session): Boolean {
+        return session.expires - System.currentTimeMillis() < properties.sessionKeyLifetime / 5
+    }
+
+    private fun requestSession(url: String): Session {
+        val responder = registryService.getNodes().find { isSameUrl(it.url, url) }?.operator
+                ?: throw IllegalStateException("OCN Node not listed in Registry")
+
+        val request = OcnSessionRequest(nodeUrl = properties.url, nonce = generateNonce(), timestamp = System.currentTimeMillis())
+        val requestString = httpService.mapper.writeValueAsString(request)
+        val (responseString, signature) = httpService.postOcnSession(url, walletService.sign(requestString), requestString)
+
+        val responderKey = walletService.recoverSigningKey(responseString, signature)
+        if ("0x${Keys.getAddress(responderKey)}".checksum() != responder) {
+            throw InvalidOcnSignatureException("Session response not signed by registered operator $responder")
+        }
+
+        val response: OcnSessionResponse = httpService.mapper.readValue(responseString)
+        if (response.initiatorNonce != request.nonce) {
+            throw InvalidOcnSignatureException("Session response does not match request")
+        }
+
+        val key = deriveKey(responderKey, response.sessionID, request.nonce, response.nonce)
+        return Session(response.sessionID, key, responder, System.currentTimeMillis() + response.expiresIn)
+    }
+
+    /**
+     * Derive the session key from the ECDH secret of this node's key pair and the other node's public key
+     */
+    private fun deriveKey(publicKey: BigInteger, sessionID: String, initiatorNonce: String, responderNonce: String): SecretKeySpec {
+        val privateKey = nodeIdentity.keyPair.privateKey
+        val encodedPublicKey = byteArrayOf(0x04) + Numeric.toBytesPadded(publicKey, 64)
+        val secret = curve.decodePoint(encodedPublicKey).multiply(privateKey).normalize().affineXCoord.encoded
+
+        val mac = Mac.getInstance(MAC_ALGORITHM)
+        mac.init(SecretKeySpec(secret, MAC_ALGORITHM))
+        val key = mac.doFinal("$sessionID:$initiatorNonce:$responderNonce".toByteArray(StandardCharsets.UTF_8))
+        return SecretKeySpec(key, MAC_ALGORITHM)
+    }
+
+    private fun mac(key: SecretKeySpec, body: ByteArray): String {
+        val mac = Mac.getInstance(MAC_ALGORITHM)
+        mac.init(key)
+        return Numeric.toHexStringNoPrefix(mac.doFinal(body))
+    }
+
+    private fun generateNonce(): String {
+        val nonce = ByteArray(16)
+        random.nextBytes(nonce)
+        return Numeric.toHexStringNoPrefix(nonce)
+    }
+
+    private fun isSameUrl(a: String, b: String) = a.trimEnd('/') == b.trimEnd('/')
+
+}
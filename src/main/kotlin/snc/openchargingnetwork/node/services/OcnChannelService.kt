@@ -0,0 +1,308 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import org.springframework.web.socket.CloseStatus
+import org.springframework.web.socket.PingMessage
+import org.springframework.web.socket.PongMessage
+import org.springframework.web.socket.TextMessage
+import org.springframework.web.socket.WebSocketSession
+import org.springframework.web.socket.client.standard.StandardWebSocketClient
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator
+import org.springframework.web.socket.handler.TextWebSocketHandler
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnChannelFrame
+import snc.openchargingnetwork.node.models.OcnMessageBatchResult
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubTimeoutOnRequestException
+import snc.openchargingnetwork.node.models.ocpi.ClientInfo
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import snc.openchargingnetwork.node.tools.urlJoin
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+import javax.annotation.PreDestroy
+
+/**
+ * Sends OCN messages (/ocn/message, /ocn/message/batch, /ocn/client-info) to other OCN Nodes over long-lived
+ * WebSocket channels, which carry many concurrent requests. Channels are opened lazily, on the first request to a node
+ * which advertises the OcnNodeFeature.MESSAGE_CHANNEL feature, and are kept alive with a heartbeat.
+ *
+ * Requests fall back to plain HTTP if there is no open channel to the node, or if the channel's maximum number of
+ * concurrent requests has been reached.
+ */
+@Service
+class OcnChannelService(private val properties: NodeProperties,
+                        private val httpService: HttpService,
+                        private val nodeFeatureService: NodeFeatureService) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(OcnChannelService::class.java)
+    }
+
+    private val channels = ConcurrentHashMap<String, Channel>()
+
+    // time of the last failed attempt to open a channel, by node url
+    private val failedAttempts = ConcurrentHashMap<String, Long>()
+
+    private val heartbeat: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor {
+        val thread = Thread(it, "ocn-channel-heartbeat")
+        thread.isDaemon = true
+        thread
+    }
+
+    init {
+        if (properties.channelEnabled) {
+            heartbeat.scheduleAtFixedRate({ checkChannels() }, properties.channelHeartbeatInterval,
+                    properties.channelHeartbeatInterval, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    /**
+     * Make a POST request to an OCN Node's /ocn/message, over a channel if possible
+     */
+    fun <T: Any> postOcnMessage(url: String, headers: OcnMessageHeaders, body: String): HttpResponse<T> {
+        val response = request(url, "/ocn/message", headers.toMap(), body)
+                ?: return httpService.postOcnMessage(url, headers, body)
+
+        return HttpResponse(
+                statusCode = response.status!!,
+                headers = response.headers,
+                body = httpService.mapper.readValue(response.body!!))
+    }
+
+    /**
+     * Make a POST request to an OCN Node's /ocn/message/batch, over a channel if possible
+     * @return the results of the individual requests, or null if the node does not have the batch endpoint (404)
+     */
+    fun postOcnMessageBatch(url: String, headers: OcnMessageHeaders, body: String): List<OcnMessageBatchResult>? {
+        val response = request(url, "/ocn/message/batch", headers.toMap(), body)
+                ?: return httpService.postOcnMessageBatch(url, headers, body)
+
+        if (response.status == 404) {
+            return null
+        }
+        val responseBody: OcpiResponse<List<OcnMessageBatchResult>> = httpService.mapper.readValue(response.body!!)
+        return responseBody.data
+                ?: throw OcpiHubConnectionProblemException("Batch to $url failed with status ${response.status}")
+    }
+
+    /**
+     * Make a PUT request to an OCN Node's /ocn/client-info, over a channel if possible (over HTTP with the client info
+     * timeout)
+     */
+    fun putOcnClientInfo(url: String, signature: String, body: ClientInfo) {
+        val bodyString = httpService.mapper.writeValueAsString(body)
+        val response = request(url, "/ocn/client-info", mapOf("OCN-Signature" to signature), bodyString)
+        if (response == null) {
+            httpService.putOcnClientInfo(url, signature, body, properties.clientInfoTimeout / 1000.0)
+        } else if (response.status != 200) {
+            throw OcpiHubConnectionProblemException("Client info update to $url failed with status ${response.status}")
+        }
+    }
+
+    /**
+     * Make a PUT request to an OCN Node's /ocn/client-info/batch, over a channel if possible (over HTTP with the client
+     * info timeout)
+     * @return false if the batch was not accepted
+     */
+    fun putOcnClientInfoBatch(url: String, signature: String, body: String): Boolean {
+        val response = request(url, "/ocn/client-info/batch", mapOf("OCN-Signature" to signature), body)
+                ?: return httpService.putOcnClientInfoBatch(url, signature, body, properties.clientInfoTimeout / 1000.0)
+
+        if (response.status == 404) {
+            return false
+        }
+        if (response.status != 200) {
+            throw OcpiHubConnectionProblemException("Client info batch to $url failed with status ${response.status}")
+        }
+        return true
+    }
+
+    /**
+     * Send a request over the channel to an OCN Node. Returns null if the request could not be sent over a channel.
+     */
+    private fun request(url: String, path: String, headers: Map<String, String>, body: String): OcnChannelFrame? {
+        if (!properties.channelEnabled || !nodeFeatureService.supports(url, OcnNodeFeature.MESSAGE_CHANNEL)) {
+            return null
+        }
+        val channel = getChannel(url) ?: return null
+        return channel.request(OcnChannelFrame(id = generateUUIDv4Token(), path = path, headers = headers, body = body))
+    }
+
+    private fun getChannel(url: String): Channel? {
+        channels[url]?.let { if (it.isOpen()) return it }
+
+        synchronized(channels) {
+            channels[url]?.let { if (it.isOpen()) return it }
+
+            // don't retry straight away if the last attempt failed
+            failedAttempts[url]?.let {
+                if (System.currentTimeMillis() - it < properties.channelHeartbeatInterval) {
+                    return null
+                }
+            }
+
+            return try {
+                val channel = Channel(url)
+                val session = StandardWebSocketClient()
+                        .doHandshake(channel, getChannelUrl(url))
+                        .get(properties.channelRequestTimeout, TimeUnit.MILLISECONDS)
+                channel.open(session)
+                channels[url] = channel
+                failedAttempts.remove(url)
+                channel
+            } catch (e: Exception) {
+                logger.warn("Could not open channel to OCN Node at $url: ${e.message}")
+                failedAttempts[url] = System.currentTimeMillis()
+                null
+            }
+        }
+    }
+
+    private fun getChannelUrl(url: String): String {
+        return urlJoin(url, "/ocn/channel")
+                .replaceFirst("https://", "wss://")
+                .replaceFirst("http://", "ws://")
+    }
+
+    /**
+     * Send a ping over every channel, closing channels which have not answered the previous pings
+     */
+    private fun checkChannels() {
+        for ((url, channel) in channels) {
+            if (!channel.isOpen() || channel.isStale()) {
+                logger.info("Closing channel to OCN Node at $url")
+                channel.close()
+                channels.remove(url, channel)
+            } else {
+                channel.ping()
+            }
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        heartbeat.shutdown()
+        channels.values.forEach { it.close() }
+    }
+
+    /**
+     * A channel to a single OCN Node. Requests are matched to their responses by ID.
+     */
+    private inner class Channel(private val url: String): TextWebSocketHandler() {
+
+        private lateinit var session: WebSocketSession
+
+        private val pending = ConcurrentHashMap<String, CompletableFuture<OcnChannelFrame>>()
+        private val streams = Semaphore(properties.channelMaxStreams)
+        private val lastPong = AtomicLong(System.currentTimeMillis())
+        private val partialMessage = StringBuilder()
+
+        fun open(session: WebSocketSession) {
+            this.session = ConcurrentWebSocketSessionDecorator(session, properties.channelRequestTimeout.toInt(),
+                    properties.channelMaxBufferSize)
+        }
+
+        fun isOpen() = ::session.isInitialized && session.isOpen
+
+        fun isStale() = System.currentTimeMillis() - lastPong.get() > 3 * properties.channelHeartbeatInterval
+
+        fun request(frame: OcnChannelFrame): OcnChannelFrame? {
+            // flow control: use plain HTTP rather than waiting for a free stream
+            if (!streams.tryAcquire()) {
+                return null
+            }
+
+            try {
+                val response = CompletableFuture<OcnChannelFrame>()
+                pending[frame.id] = response
+
+                try {
+                    session.sendMessage(TextMessage(httpService.mapper.writeValueAsString(frame)))
+                } catch (e: IOException) {
+                    pending.remove(frame.id)
+                    return null
+                }
+
+                return response.get(properties.channelRequestTimeout, TimeUnit.MILLISECONDS)
+
+            } catch (e: TimeoutException) {
+                throw OcpiHubTimeoutOnRequestException("Timeout on request to OCN Node at $url")
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            } finally {
+                pending.remove(frame.id)
+                streams.release()
+            }
+        }
+
+        fun ping() {
+            try {
+                session.sendMessage(PingMessage())
+            } catch (e: IOException) {
+                logger.warn("Could not send heartbeat to OCN Node at $url: ${e.message}")
+            }
+        }
+
+        fun close() {
+            try {
+                session.close()
+            } catch (e: IOException) {
+                logger.warn("Could not close channel to OCN Node at $url: ${e.message}")
+            }
+        }
+
+        override fun supportsPartialMessages() = true
+
+        override fun handleTextMessage(session: WebSocketSession, message: TextMessage) {
+            partialMessage.append(message.payload)
+            if (!message.isLast) {
+                return
+            }
+            val frame: OcnChannelFrame = httpService.mapper.readValue(partialMessage.toString())
+            partialMessage.setLength(0)
+            pending[frame.id]?.complete(frame)
+        }
+
+        override fun handlePongMessage(session: WebSocketSession, message: PongMessage) {
+            lastPong.set(System.currentTimeMillis())
+        }
+
+        override fun afterConnectionClosed(session: WebSocketSession, status: CloseStatus) {
+            channels.remove(url, this)
+            val error = OcpiHubConnectionProblemException("Channel to OCN Node at $url closed: $status")
+            pending.values.forEach { it.completeExceptionally(error) }
+        }
+
+    }
+
+}
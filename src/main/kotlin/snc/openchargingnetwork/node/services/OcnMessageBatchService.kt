@@ -0,0 +1,213 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import java.io.StringWriter
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+
+/**
+ * Collects OCN messages destined for the same OCN Node over a short window and sends them as a single batch, signed
+ * once, to the node's /ocn/message/batch endpoint. Batches are only sent to nodes which advertise the
+ * OcnNodeFeature.MESSAGE_BATCH feature in their node-info.
+ *
+ * There is no dedicated batching thread: the first message of a batch waits for the window to pass and then sends
+ * the batch on behalf of all messages in it (unless the batch has already been sent for having reached its maximum
+ * size). Each caller blocks until the response to its own message is available.
+ */
+@Service
+class OcnMessageBatchService(private val properties: NodeProperties,
+                             private val httpService: HttpService,
+                             private val channelService: OcnChannelService,
+                             private val walletService: WalletService,
+                             private val nodeFeatureService: NodeFeatureService,
+                             private val nodeSessionService: NodeSessionService) {
+
+    private class PendingMessage(val requestID: String, val body: String) {
+        // completes with null if the message needs to be sent individually (only if the batch endpoint is not found)
+        val response = CompletableFuture<HttpResponse<Any>?>()
+    }
+
+    private class Batch {
+        val messages = mutableListOf<PendingMessage>()
+    }
+
+    private val batches = mutableMapOf<String, Batch>()
+
+    /**
+     * Check whether messages to the OCN Node at the given url are batched (and therefore not signed individually)
+     */
+    fun isBatched(url: String): Boolean {
+        return properties.messageBatchEnabled && nodeFeatureService.supports(url, OcnNodeFeature.MESSAGE_BATCH)
+    }
+
+    /**
+     * Check whether messages to the OCN Node at the given url are authenticated when they are sent, either as part of
+     * a batch or with a session key, rather than signed individually beforehand
+     */
+    fun isAuthenticatedOnSend(url: String): Boolean {
+        return isBatched(url) || isSmile(url) || nodeSessionService.isEnabled(url)
+    }
+
+    /**
+     * Check whether individual messages to the OCN Node at the given url are encoded as Smile. Messages sent over a
+     * channel (which carries text frames) or in batches remain JSON.
+     */
+    fun isSmile(url: String): Boolean {
+        return properties.messageSmileEnabled &&
+                nodeFeatureService.supports(url, OcnNodeFeature.MESSAGE_SMILE) &&
+                !(properties.channelEnabled && nodeFeatureService.supports(url, OcnNodeFeature.MESSAGE_CHANNEL))
+    }
+
+    /**
+     * Send an OCN message, as part of a batch if it has not been signed individually (see isAuthenticatedOnSend)
+     */
+    fun <T: Any> postOcnMessage(url: String, headers: OcnMessageHeaders, body: String): HttpResponse<T> {
+        if (headers.signature != null) {
+            return channelService.postOcnMessage(url, headers, body)
+        }
+
+        if (isBatched(url)) {
+            val response = postAsPartOfBatch(url, PendingMessage(headers.requestID, body))
+            if (response != null) {
+                @Suppress("UNCHECKED_CAST")
+                return response as HttpResponse<T>
+            }
+        }
+
+        if (isSmile(url)) {
+            return postSmile(url, headers, httpService.toSmile(body))
+        }
+
+        val authenticatedHeaders = nodeSessionService.authenticate(url, headers, body)
+        val response = channelService.postOcnMessage<T>(url, authenticatedHeaders, body)
+
+        if (authenticatedHeaders.mac != null && response.headers["OCN-Session-Invalid"] != null) {
+            // session no longer known to the receiving node (e.g. after a restart); sign the message instead
+            nodeSessionService.invalidate(url)
+            return channelService.postOcnMessage(url, headers.copy(signature = walletService.sign(body)), body)
+        }
+        return response
+    }
+
+    /**
+     * Send a message encoded as Smile, authenticated over the encoded bytes
+     */
+    private fun <T: Any> postSmile(url: String, headers: OcnMessageHeaders, body: ByteArray): HttpResponse<T> {
+        val authenticatedHeaders = nodeSessionService.authenticate(url, headers, body)
+        val response = httpService.postOcnMessageSmile<T>(url, authenticatedHeaders, body)
+
+        if (authenticatedHeaders.mac != null && response.headers["OCN-Session-Invalid"] != null) {
+            nodeSessionService.invalidate(url)
+            return httpService.postOcnMessageSmile(url, headers.copy(signature = walletService.sign(body)), body)
+        }
+        return response
+    }
+
+    private fun postAsPartOfBatch(url: String, message: PendingMessage): HttpResponse<Any>? {
+        var isFirst = false
+        var fullBatch: Batch? = null
+
+        val batch = synchronized(batches) {
+            val batch = batches.getOrPut(url) {
+                isFirst = true
+                Batch()
+            }
+            batch.messages.add(message)
+            if (batch.messages.size >= properties.messageBatchMaxSize) {
+                batches.remove(url)
+                fullBatch = batch
+            }
+            batch
+        }
+
+        fullBatch?.let { send(url, it) }
+
+        if (isFirst && fullBatch == null) {
+            Thread.sleep(properties.messageBatchWindow)
+            val dueBatch = synchronized(batches) {
+                if (batches[url] === batch) batches.remove(url) else null
+            }
+            dueBatch?.let { send(url, it) }
+        }
+
+        try {
+            return message.response.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    private fun send(url: String, batch: Batch) {
+        try {
+            val body = serialize(batch)
+            val headers = OcnMessageHeaders(requestID = generateUUIDv4Token(), signature = walletService.sign(body))
+            val results = channelService.postOcnMessageBatch(url, headers, body)
+
+            if (results == null) {
+                // batch endpoint not found (node no longer supports batches), so none of the messages have been
+                // processed and they can be sent individually
+                nodeFeatureService.setUnsupported(url, OcnNodeFeature.MESSAGE_BATCH)
+                batch.messages.forEach { it.response.complete(null) }
+                return
+            }
+
+            // a message without a result may still have been processed, so is failed rather than sent again
+            val resultsByID = results.associateBy { it.requestID }
+            for (message in batch.messages) {
+                val result = resultsByID[message.requestID]
+                if (result == null) {
+                    message.response.completeExceptionally(OcpiHubConnectionProblemException(
+                            "No result for message ${message.requestID} in batch to $url"))
+                } else {
+                    message.response.complete(HttpResponse(statusCode = result.httpStatus, headers = result.headers, body = result.response))
+                }
+            }
+        } catch (e: Exception) {
+            batch.messages.forEach { it.response.completeExceptionally(e) }
+        }
+    }
+
+    /**
+     * Serialize the batch, embedding the messages as they have been prepared (and would otherwise have been signed)
+     */
+    private fun serialize(batch: Batch): String {
+        val writer = StringWriter()
+        val generator = httpService.mapper.factory.createGenerator(writer)
+        generator.writeStartObject()
+        generator.writeArrayFieldStart("messages")
+        for (message in batch.messages) {
+            generator.writeStartObject()
+            generator.writeStringField("request_id", message.requestID)
+            generator.writeFieldName("request")
+            generator.writeRawValue(message.body)
+            generator.writeEndObject()
+        }
+        generator.writeEndArray()
+        generator.writeEndObject()
+        generator.close()
+        return writer.toString()
+    }
+
+}
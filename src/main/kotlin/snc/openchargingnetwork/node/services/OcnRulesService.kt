@@ -29,12 +29,14 @@ import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.models.ocpi.ModuleID
 import snc.openchargingnetwork.node.repositories.OcnRulesListRepository
 import snc.openchargingnetwork.node.repositories.PlatformRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
 import snc.openchargingnetwork.node.tools.extractToken
 
 
 @Service
 class OcnRulesService(private val platformRepo: PlatformRepository,
-                      private val ocnRulesListRepo: OcnRulesListRepository) {
+                      private val ocnRulesListRepo: OcnRulesListRepository,
+                      private val roleRepo: RoleRepository) {
 
     /**
      * OcnRules GET receiver interface (retrieve list of client-owned rules as saved on node)
@@ -62,7 +64,11 @@ class OcnRulesService(private val platformRepo: PlatformRepository,
                         list = when (platform.rules.blacklist) {
                             true -> rulesList
                             false -> listOf()
-                        }))
+                        }),
+                locationMirror = platform.rules.locationMirror,
+                deltaSync = platform.rules.deltaSync,
+                localAuthorization = platform.rules.localAuthorization,
+                serviceDigest = platform.rules.serviceDigest)
     }
 
     /**
@@ -74,6 +80,42 @@ class OcnRulesService(private val platformRepo: PlatformRepository,
         platformRepo.save(platform)
     }
 
+    /**
+     * OcnRules PUT receiver interface to update location mirror setting
+     */
+    fun updateLocationMirror(authorization: String) {
+        val platform = findPlatform(authorization)
+        platform.rules.locationMirror = !platform.rules.locationMirror
+        platformRepo.save(platform)
+    }
+
+    /**
+     * OcnRules PUT receiver interface to update delta sync setting
+     */
+    fun updateDeltaSync(authorization: String) {
+        val platform = findPlatform(authorization)
+        platform.rules.deltaSync = !platform.rules.deltaSync
+        platformRepo.save(platform)
+    }
+
+    /**
+     * OcnRules PUT receiver interface to update local token authorization setting
+     */
+    fun updateLocalAuthorization(authorization: String) {
+        val platform = findPlatform(authorization)
+        platform.rules.localAuthorization = !platform.rules.localAuthorization
+        platformRepo.save(platform)
+    }
+
+    /**
+     * OcnRules PUT receiver interface to update service digest setting (for OCN Services)
+     */
+    fun updateServiceDigest(authorization: String) {
+        val platform = findPlatform(authorization)
+        platform.rules.serviceDigest = !platform.rules.serviceDigest
+        platformRepo.save(platform)
+    }
+
     /**
      * OcnRules PUT receiver interface to blacklist all parties (by setting empty active whitelist)
      */
@@ -267,14 +309,26 @@ class OcnRulesService(private val platformRepo: PlatformRepository,
      * Checks a counter-party has been whitelisted by a connected platform
      */
     fun isWhitelisted(platform: PlatformEntity, counterParty: BasicRole): Boolean {
-        val rulesList = ocnRulesListRepo.findAllByPlatformID(platform.id)
+        return getWhitelistCheck(platform)(counterParty)
+    }
+
+    /**
+     * Compiles the whitelist/blacklist of a connected platform into a check of counter-parties, so that many
+     * counter-parties can be checked with a single query of the platform's rules list
+     */
+    fun getWhitelistCheck(platform: PlatformEntity): (BasicRole) -> Boolean {
+        if (!platform.rules.whitelist && !platform.rules.blacklist) {
+            return { true }
+        }
 
-        val compareParties = { party: BasicRole -> party.toUpperCase() == counterParty.toUpperCase() }
+        val listedParties = ocnRulesListRepo.findAllByPlatformID(platform.id)
+                .map { it.counterparty.toUpperCase() }
+                .toSet()
 
-        return when {
-            platform.rules.whitelist -> rulesList.any { compareParties(it.counterparty) }
-            platform.rules.blacklist -> rulesList.none { compareParties(it.counterparty) }
-            else -> true
+        return if (platform.rules.whitelist) {
+            { counterParty -> listedParties.contains(counterParty.toUpperCase()) }
+        } else {
+            { counterParty -> !listedParties.contains(counterParty.toUpperCase()) }
         }
     }
 
@@ -291,6 +345,14 @@ class OcnRulesService(private val platformRepo: PlatformRepository,
         }
     }
 
+    /**
+     * Get the roles of connected platforms which have whitelisted a counter-party for a given module
+     */
+    fun getPartiesWhitelisting(counterParty: BasicRole, moduleID: String): List<BasicRole> {
+        return roleRepo.findAllWhitelisting(counterParty.country, counterParty.id, moduleID)
+                .map { BasicRole(id = it.partyID, country = it.countryCode) }
+    }
+
     private fun findPlatform(authorization: String): PlatformEntity {
         return platformRepo.findByAuth_TokenC(authorization.extractToken())
                 ?: throw OcpiClientInvalidParametersException("Invalid CREDENTIALS_TOKEN_C")
@@ -0,0 +1,358 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics
+import org.slf4j.LoggerFactory
+import org.springframework.data.domain.PageRequest
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.*
+import snc.openchargingnetwork.node.models.entities.OutboxEntity
+import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.ClientInfo
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.repositories.OutboxRepository
+import snc.openchargingnetwork.node.repositories.PlatformRepository
+import snc.openchargingnetwork.node.tools.namedDaemonThreadFactory
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import javax.annotation.PreDestroy
+
+/**
+ * Delivers the notifications stored in the outbox table: client info changes (written in the same transaction as the
+ * change, see HubClientInfoListener) and requests which could not be forwarded to linked services.
+ *
+ * The outbox is drained in batches. Each destination (a local platform, a node or a service) receives its
+ * notifications in order: if a delivery fails, it is retried with exponential backoff and the following notifications
+ * of the destination wait for it. After the maximum number of attempts, a notification is dead-lettered (kept in the
+ * table, but no longer retried) and the destination moves on. Delivery is at least once.
+ *
+ * A client info change is delivered in two stages: first, it is expanded into a push per interested local party and
+ * an update per node on the network, which are then delivered (and retried) independently. Updates to a node which
+ * accepts batches (see OcnNodeFeature.CLIENT_INFO_BATCH) are held back for a short window and sent together.
+ *
+ * Status transitions (reconnected, disconnected) of a role are held back for a short window, opened by its first
+ * transition, so that a platform flapping between CONNECTED and OFFLINE does not cause a client info change for each
+ * transition. Once the window has passed, the transitions are collapsed into the net change of the role - or nothing,
+ * if the role is back to the status it had before the window.
+ *
+ * The number of pending notifications is reported as `ocn.outbox.depth`, the age in seconds of the oldest pending
+ * notification as `ocn.outbox.oldest_age` and dead-lettered notifications as `ocn.outbox.dead_lettered` (by type).
+ * Status transitions which were not passed on are reported as `ocn.client_info.coalesced`.
+ */
+@Service
+class OutboxService(private val outboxRepo: OutboxRepository,
+                    private val platformRepo: PlatformRepository,
+                    private val hubClientInfoService: HubClientInfoService,
+                    private val registryService: RegistryService,
+                    private val routingService: RoutingService,
+                    private val httpService: HttpService,
+                    private val properties: NodeProperties,
+                    private val registry: MeterRegistry) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(OutboxService::class.java)
+
+        // client info changes are expanded in order of their creation
+        private const val CLIENT_INFO_CHANGES = "client-info"
+
+        private val MAX_RETRY_DELAY = Duration.ofHours(1)
+    }
+
+    private val executor: ExecutorService = ExecutorServiceMetrics.monitor(registry,
+            Executors.newFixedThreadPool(properties.outboxParallelism, namedDaemonThreadFactory("ocn-outbox")), "ocn.outbox")
+
+    private val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "ocn-outbox").apply { isDaemon = true }
+    }
+
+    // values of the last dispatch run, so that scraping the gauges does not query the database
+    private val depth = AtomicLong()
+    private val oldestAge = AtomicLong()
+
+    init {
+        registry.gauge("ocn.outbox.depth", depth)
+        registry.gauge("ocn.outbox.oldest_age", oldestAge)
+        scheduler.scheduleWithFixedDelay({ dispatchSafely() }, properties.outboxInterval, properties.outboxInterval,
+                TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Add a client info change to the outbox, to be sent to interested local parties (sans those of the changed
+     * platform, if given) and, if notifyNodes is set, to the other nodes on the network. Should be called in the
+     * transaction making the change.
+     */
+    fun addClientInfoChange(clientInfo: ClientInfo, changedPlatformID: Long? = null, notifyNodes: Boolean = true) {
+        add(OutboxType.CLIENT_INFO_CHANGE, CLIENT_INFO_CHANGES,
+                OutboxClientInfoChange(clientInfo, changedPlatformID, notifyNodes))
+    }
+
+    /**
+     * Add a status transition of a role, from its previous status to the status of the given client info, to be
+     * collapsed with the further transitions of the role within the window (see above). Should be called in the
+     * transaction making the transition.
+     */
+    fun addClientInfoTransition(clientInfo: ClientInfo, previousStatus: ConnectionStatus, changedPlatformID: Long?) {
+        if (properties.clientInfoDebounceWindow <= 0) {
+            addClientInfoChange(clientInfo, changedPlatformID)
+            return
+        }
+
+        val transition = entry(OutboxType.CLIENT_INFO_TRANSITION, getTransitionsDestination(clientInfo),
+                OutboxClientInfoTransition(clientInfo, previousStatus, changedPlatformID))
+        transition.nextAttempt = Instant.now().plusMillis(properties.clientInfoDebounceWindow)
+        outboxRepo.save(transition)
+    }
+
+    /**
+     * Discard the pending status transitions of a role, e.g. if its status has been changed (and notified) by other
+     * means. Should be called in the transaction making the change.
+     */
+    fun discardClientInfoTransitions(clientInfo: ClientInfo) {
+        coalesced(outboxRepo.deleteByDestination(getTransitionsDestination(clientInfo)))
+    }
+
+    /**
+     * Add a request (copied for a linked service) to the outbox, to be forwarded to the service again
+     */
+    fun addLinkedServiceRequest(service: BasicRole, request: OcpiRequestVariables) {
+        add(OutboxType.LINKED_SERVICE, "service:${service.country}${service.id}".toUpperCase(), request)
+    }
+
+    /**
+     * Deliver a batch of due notifications, in parallel per destination
+     */
+    fun dispatch() {
+        val due = outboxRepo.findByDeadLetteredFalseAndNextAttemptLessThanEqualOrderByIdAsc(
+                Instant.now(), PageRequest.of(0, properties.outboxBatchSize))
+
+        if (due.isNotEmpty()) {
+            val groups = due.groupBy { it.destination }
+            val heads = outboxRepo.findHeadsByDestinationIn(groups.keys).associate { it.destination to it.id }
+            val tasks = groups.map { (destination, entries) ->
+                Callable { deliverInOrder(destination, entries, heads[destination]) }
+            }
+            executor.invokeAll(tasks)
+        }
+
+        updateMetrics()
+    }
+
+    private fun deliverInOrder(destination: String, entries: List<OutboxEntity>, headID: Long?) {
+        // an earlier notification to the destination is waiting to be retried
+        if (headID != null && headID != entries.first().id) {
+            outboxRepo.findById(headID).ifPresent { outboxRepo.postponeByDestination(destination, it.nextAttempt) }
+            return
+        }
+
+        var remaining = entries
+        while (remaining.isNotEmpty()) {
+            val delivered = try {
+                deliverNext(remaining)
+            } catch (e: Exception) {
+                fail(remaining.first(), e)
+                return
+            }
+            outboxRepo.deleteAll(delivered)
+            val deliveredIDs = delivered.map { it.id }.toSet()
+            remaining = remaining.filter { it.id !in deliveredIDs }
+        }
+    }
+
+    /**
+     * Deliver the next entry of a destination, the next run of client info updates to a node which accepts batches or
+     * the status transitions of a role
+     * @return the delivered entries
+     */
+    private fun deliverNext(entries: List<OutboxEntity>): List<OutboxEntity> {
+        val first = entries.first()
+        if (first.type == OutboxType.CLIENT_INFO_TRANSITION) {
+            return collapse(first.destination)
+        }
+        if (first.type == OutboxType.CLIENT_INFO_NODE) {
+            val url = first.destination.removePrefix("node:")
+            val run = entries.take(properties.clientInfoBatchMaxSize).takeWhile { it.type == OutboxType.CLIENT_INFO_NODE }
+            if (run.size > 1 && hubClientInfoService.supportsNodeUpdateBatch(url)) {
+                hubClientInfoService.sendNodeUpdates(url, run.map { httpService.mapper.readValue<OutboxClientInfoNodeUpdate>(it.payload) })
+                return run
+            }
+        }
+        deliver(first)
+        return listOf(first)
+    }
+
+    /**
+     * Add the net change of the pending status transitions of a role as a client info change
+     * @return the collapsed transitions
+     */
+    private fun collapse(destination: String): List<OutboxEntity> {
+        // including the transitions which are not due yet, as their window is the one of the first transition
+        val entries = outboxRepo.findByDestinationAndDeadLetteredFalseOrderByIdAsc(destination)
+        val transitions = entries.map { httpService.mapper.readValue<OutboxClientInfoTransition>(it.payload) }
+        if (transitions.isEmpty()) {
+            return entries
+        }
+
+        val latest = transitions.last()
+        if (latest.clientInfo.status == transitions.first().previousStatus) {
+            coalesced(transitions.size)
+        } else {
+            addClientInfoChange(latest.clientInfo, latest.changedPlatformID)
+            coalesced(transitions.size - 1)
+        }
+        return entries
+    }
+
+    private fun deliver(entry: OutboxEntity) {
+        when (entry.type) {
+            OutboxType.CLIENT_INFO_CHANGE -> expand(httpService.mapper.readValue(entry.payload))
+            OutboxType.CLIENT_INFO_TRANSITION -> collapse(entry.destination)
+            OutboxType.CLIENT_INFO_PUSH -> {
+                val push: OutboxClientInfoPush = httpService.mapper.readValue(entry.payload)
+                // nothing to deliver if the platform has been deleted in the meantime
+                platformRepo.findById(push.platformID).ifPresent {
+                    hubClientInfoService.pushClientInfo(it, push.party, push.clientInfo)
+                }
+            }
+            OutboxType.CLIENT_INFO_NODE -> {
+                val url = entry.destination.removePrefix("node:")
+                hubClientInfoService.sendNodeUpdate(url, httpService.mapper.readValue(entry.payload))
+            }
+            OutboxType.LINKED_SERVICE -> forward(httpService.convertToRequestVariables(entry.payload))
+        }
+    }
+
+    private fun expand(change: OutboxClientInfoChange) {
+        val entries = mutableListOf<OutboxEntity>()
+
+        val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(change.changedPlatformID, change.clientInfo)
+        for (party in parties) {
+            val push = OutboxClientInfoPush(party.platformID, BasicRole(party.partyID, party.countryCode), change.clientInfo)
+            entries.add(entry(OutboxType.CLIENT_INFO_PUSH, "platform:${party.platformID}", push))
+        }
+
+        if (change.notifyNodes) {
+            val nodes = registryService.getNodes(omitMine = true)
+            if (nodes.isNotEmpty()) {
+                val update = hubClientInfoService.getNodeUpdate(change.clientInfo)
+                // held back for a short window, so that further updates can be sent to the node in the same batch
+                val nextAttempt = Instant.now().plusMillis(if (properties.clientInfoBatchEnabled) properties.clientInfoBatchWindow else 0)
+                nodes.forEach {
+                    entries.add(entry(OutboxType.CLIENT_INFO_NODE, "node:${it.url}", update).apply { this.nextAttempt = nextAttempt })
+                }
+            }
+        }
+
+        // the change is deleted once expanded, so may be expanded again (at least once) if the node stops in between
+        outboxRepo.saveAll(entries)
+    }
+
+    private fun forward(request: OcpiRequestVariables) {
+        val response: HttpResponse<Any> = when (routingService.getReceiverType(request.headers.receiver)) {
+            Receiver.LOCAL -> {
+                val (url, headers) = routingService.prepareLocalPlatformRequest(request)
+                httpService.makeOcpiRequest(url, headers, request)
+            }
+            Receiver.REMOTE -> {
+                val (url, headers, body) = routingService.prepareRemotePlatformRequest(request)
+                routingService.postRemotePlatformRequest(url, headers, body)
+            }
+        }
+        if (response.statusCode >= 500) {
+            throw OcpiServerGenericException("Service ${request.headers.receiver} responded with status ${response.statusCode}")
+        }
+    }
+
+    private fun fail(entry: OutboxEntity, e: Exception) {
+        entry.attempts++
+        entry.lastError = e.message?.take(255)
+
+        if (entry.attempts >= properties.outboxMaxAttempts) {
+            logger.warn("Dead-lettered ${entry.type} notification ${entry.id} to ${entry.destination} after " +
+                    "${entry.attempts} attempts: ${e.message}")
+            entry.deadLettered = true
+            outboxRepo.save(entry)
+            registry.counter("ocn.outbox.dead_lettered", "type", entry.type.name).increment()
+            return
+        }
+
+        logger.info("Error delivering ${entry.type} notification ${entry.id} to ${entry.destination} " +
+                "(attempt ${entry.attempts}): ${e.message}")
+        entry.nextAttempt = Instant.now().plus(getRetryDelay(entry.attempts))
+        outboxRepo.save(entry)
+        outboxRepo.postponeByDestination(entry.destination, entry.nextAttempt)
+    }
+
+    /**
+     * Delay before the next attempt, doubling with each failed attempt
+     */
+    fun getRetryDelay(attempts: Int): Duration {
+        val delay = Duration.ofMillis(properties.outboxRetryDelay).multipliedBy(1L shl (attempts - 1).coerceIn(0, 30))
+        return if (delay > MAX_RETRY_DELAY) MAX_RETRY_DELAY else delay
+    }
+
+    private fun updateMetrics() {
+        depth.set(outboxRepo.countByDeadLetteredFalse())
+        oldestAge.set(outboxRepo.findFirstByDeadLetteredFalseOrderByIdAsc()
+                ?.let { Duration.between(it.created, Instant.now()).seconds.coerceAtLeast(0) }
+                ?: 0)
+    }
+
+    private fun getTransitionsDestination(clientInfo: ClientInfo): String {
+        return "role:${clientInfo.countryCode}${clientInfo.partyID}:${clientInfo.role}".toUpperCase()
+    }
+
+    private fun coalesced(transitions: Int) {
+        if (transitions > 0) {
+            registry.counter("ocn.client_info.coalesced").increment(transitions.toDouble())
+        }
+    }
+
+    private fun add(type: OutboxType, destination: String, payload: Any) {
+        outboxRepo.save(entry(type, destination, payload))
+    }
+
+    private fun entry(type: OutboxType, destination: String, payload: Any): OutboxEntity {
+        return OutboxEntity(type = type, destination = destination, payload = httpService.mapper.writeValueAsString(payload))
+    }
+
+    private fun dispatchSafely() {
+        try {
+            dispatch()
+        } catch (e: Exception) {
+            logger.warn("Error dispatching outbox: ${e.message}")
+        }
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        scheduler.shutdown()
+        executor.shutdown()
+    }
+
+}
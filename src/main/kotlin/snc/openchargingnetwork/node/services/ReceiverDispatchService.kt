@@ -0,0 +1,105 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import org.slf4j.LoggerFactory
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Orders receiver interface pushes (PUT/PATCH) per object (i.e. receiver, module and object ID): a push waits for the
+ * earlier pushes concerning the same object to be forwarded, so they reach the receiver in the order in which they
+ * arrived at the node. Pushes for different objects do not wait for each other, and are forwarded by the threads
+ * handling them, so no number of threads is shared between objects.
+ *
+ * A push waits on the thread handling it for at most the configured timeout, after which it is forwarded regardless,
+ * so that a receiver which hangs on one push does not hold up the following ones (and their threads) indefinitely.
+ * The ordering is therefore best effort, and opt-in (see ocn.node.receiverDispatchEnabled).
+ */
+@Service
+class ReceiverDispatchService(private val properties: NodeProperties) {
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(ReceiverDispatchService::class.java)
+    }
+
+    // completion of the latest push of each object with pushes in flight (guarded by itself)
+    private val tails = mutableMapOf<String, CompletableFuture<Unit>>()
+
+    /**
+     * Run the forwarding of a request, after the earlier pushes of its object if the request is an ordered receiver
+     * push. Rethrows any exception raised by the forwarding.
+     */
+    fun <T> dispatch(request: OcpiRequestVariables, forward: () -> T): T {
+        val key = getOrderingKey(request)
+        if (!properties.receiverDispatchEnabled || key == null) {
+            return forward()
+        }
+
+        val done = CompletableFuture<Unit>()
+        val previous = synchronized(tails) { tails.put(key, done) }
+
+        try {
+            previous?.let { awaitPrevious(key, it) }
+            return forward()
+        } finally {
+            done.complete(Unit)
+            synchronized(tails) { tails.remove(key, done) }
+        }
+    }
+
+    private fun awaitPrevious(key: String, previous: CompletableFuture<Unit>) {
+        try {
+            previous.get(properties.receiverDispatchTimeout, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            logger.warn("Forwarding push for $key without waiting further for the previous one")
+        }
+    }
+
+    /**
+     * Get the key identifying the object a receiver push concerns, i.e. "DE/ABC/LOC1" in the url path
+     * "/DE/ABC/LOC1/EVSE1". EVSE and connector pushes share the key of their location, so they are kept in order
+     * with updates to the location itself. Returns null if the request does not need to be ordered.
+     */
+    fun getOrderingKey(request: OcpiRequestVariables): String? {
+        val isPush = request.method == HttpMethod.PUT || request.method == HttpMethod.PATCH
+        if (request.interfaceRole != InterfaceRole.RECEIVER || !isPush || request.module == ModuleID.CUSTOM) {
+            return null
+        }
+
+        val objectPath = request.urlPath
+                ?.split("/")
+                ?.filter { it.isNotEmpty() }
+                ?.take(3)
+                ?: return null
+
+        if (objectPath.size < 3) {
+            return null
+        }
+
+        val receiver = request.headers.receiver.toUpperCase()
+        return "${receiver.country}/${receiver.id}/${request.module.id}/${objectPath.joinToString("/")}"
+    }
+
+}
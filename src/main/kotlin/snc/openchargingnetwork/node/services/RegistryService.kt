@@ -1,10 +1,10 @@
 package snc.openchargingnetwork.node.services
 
 import org.springframework.stereotype.Service
-import org.web3j.crypto.Credentials
 import org.web3j.crypto.Keys
 import snc.openchargingnetwork.contracts.Permissions
 import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.*
 import snc.openchargingnetwork.node.models.exceptions.OcpiHubUnknownReceiverException
@@ -20,7 +20,9 @@ import snc.openchargingnetwork.node.tools.checksum
 @Service
 class RegistryService(private val registry: Registry,
                       private val permissions: Permissions,
-                      private val properties: NodeProperties) {
+                      private val properties: NodeProperties,
+                      private val nodeIdentity: NodeIdentity,
+                      private val signatureCacheService: SignatureCacheService) {
 
     /**
      * Get nodes listed in registry
@@ -33,8 +35,7 @@ class RegistryService(private val registry: Registry,
                 }
 
         return if (omitMine) {
-            val myAddress = Credentials.create(properties.privateKey).address.checksum()
-            nodes.filter { it.operator != myAddress }
+            nodes.filter { it.operator != nodeIdentity.address }
         } else {
             nodes
         }
@@ -49,9 +50,9 @@ class RegistryService(private val registry: Registry,
 
 
         val (operator, domain) = registry.getOperatorByOcpi(country, id).sendAsync().get()
+        signatureCacheService.updateOperator(role, operator)
         if (belongsToMe) {
-            val myKey = Credentials.create(properties.privateKey).address
-            return domain == properties.url && Keys.toChecksumAddress(operator) == Keys.toChecksumAddress(myKey)
+            return domain == properties.url && Keys.toChecksumAddress(operator) == nodeIdentity.address
         }
 
         return domain != ""
@@ -79,6 +80,7 @@ class RegistryService(private val registry: Registry,
         val id = role.id.toByteArray()
 
         val result = registry.getPartyDetailsByOcpi(country, id).sendAsync().get()
+        signatureCacheService.updateOperator(role, result.component5())
         return RegistryPartyDetailsBasic(address = result.component1(), operator = result.component5())
     }
 
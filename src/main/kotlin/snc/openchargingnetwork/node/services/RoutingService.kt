@@ -39,7 +39,8 @@ class RoutingService(private val platformRepo: PlatformRepository,
                      private val registryService: RegistryService,
                      private val httpService: HttpService,
                      private val walletService: WalletService,
-                     private val ocnRulesService: OcnRulesService) {
+                     private val ocnRulesService: OcnRulesService,
+                     private val messageBatchService: OcnMessageBatchService) {
 
     /**
      * check database to see if basic role is connected to the node
@@ -204,14 +205,23 @@ class RoutingService(private val platformRepo: PlatformRepository,
 
         val bodyString = httpService.mapper.writeValueAsString(modifiedBody)
 
+        // messages which are sent in a batch or with a session key are authenticated when sent
         val headers = OcnMessageHeaders(
                 requestID = generateUUIDv4Token(),
-                signature = walletService.sign(bodyString))
+                signature = if (messageBatchService.isAuthenticatedOnSend(url)) null else walletService.sign(bodyString))
 
         return Triple(url, headers, bodyString)
     }
 
 
+    /**
+     * Send a request prepared with prepareRemotePlatformRequest to the remote recipient's OCN Node
+     */
+    fun <T: Any> postRemotePlatformRequest(url: String, headers: OcnMessageHeaders, body: String): HttpResponse<T> {
+        return messageBatchService.postOcnMessage(url, headers, body)
+    }
+
+
     /**
      * Get a generic proxy resource by its ID
      */
@@ -0,0 +1,168 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Tags
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Service
+import shareandcharge.openchargingnetwork.notary.Notary
+import snc.openchargingnetwork.node.config.NodeIdentity
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Collects the copies of requests forwarded to linked OCN Services into digests, for services (connected to this node)
+ * which have opted in via the "service-digest" OcnRules setting. A digest holds the copies of one sender and is
+ * delivered to the service's "ocn-digest" custom module (receiver interface) as a single POST request, signed by this
+ * node, once it is full or its time window has passed.
+ *
+ * The number of buffered copies is reported per service as `ocn.linked_services.digest.buffered`, and the number of
+ * delivered copies as `ocn.linked_services.digest.delivered`.
+ */
+@Service
+class ServiceDigestService(private val properties: NodeProperties,
+                           private val routingService: RoutingService,
+                           private val httpService: HttpService,
+                           private val nodeIdentity: NodeIdentity,
+                           private val cryptoService: CryptoService,
+                           private val registry: MeterRegistry) {
+
+    companion object {
+        const val DIGEST_MODULE_ID = "ocn-digest"
+    }
+
+    class Digest(val service: BasicRole, val sender: BasicRole) {
+        val messages = mutableListOf<OcpiRequestVariables>()
+        val created = System.currentTimeMillis()
+    }
+
+    // open digests, by service and sender
+    private val digests = mutableMapOf<Pair<BasicRole, BasicRole>, Digest>()
+
+    // number of copies in open digests, by service (reported as gauge)
+    private val buffered = ConcurrentHashMap<BasicRole, AtomicInteger>()
+
+    /**
+     * Check whether copies of requests for the service are collected into digests
+     */
+    fun isEnabled(service: BasicRole): Boolean {
+        return properties.serviceDigestEnabled &&
+                routingService.isRoleKnown(service) &&
+                routingService.getPlatformRules(service).serviceDigest
+    }
+
+    /**
+     * Add the copy of a request (as prepared for the service) to the digest of its receiver and sender
+     * @return the digest if it is full and needs to be delivered
+     */
+    fun add(message: OcpiRequestVariables): Digest? {
+        val service = message.headers.receiver.toUpperCase()
+        val sender = message.headers.sender.toUpperCase()
+
+        getBuffered(service).incrementAndGet()
+        synchronized(digests) {
+            val digest = digests.getOrPut(Pair(service, sender)) { Digest(service, sender) }
+            digest.messages.add(message)
+            if (digest.messages.size >= properties.serviceDigestMaxSize) {
+                return remove(digest)
+            }
+        }
+        return null
+    }
+
+    /**
+     * Take all digests whose time window has passed
+     */
+    fun takeDue(): List<Digest> {
+        val due = System.currentTimeMillis() - properties.serviceDigestWindow
+        synchronized(digests) {
+            return digests.values.filter { it.created <= due }.map { remove(it) }
+        }
+    }
+
+    /**
+     * Take all open digests, whether or not their time window has passed (e.g. on shutdown)
+     */
+    fun takeAll(): List<Digest> {
+        synchronized(digests) {
+            return digests.values.toList().map { remove(it) }
+        }
+    }
+
+    /**
+     * Deliver the digest to the service's "ocn-digest" endpoint
+     */
+    fun deliver(digest: Digest) {
+        val request = OcpiRequestVariables(
+                module = ModuleID.CUSTOM,
+                customModuleId = DIGEST_MODULE_ID,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.POST,
+                headers = OcnHeaders(
+                        authorization = "",
+                        requestID = generateUUIDv4Token(),
+                        correlationID = generateUUIDv4Token(),
+                        sender = digest.sender,
+                        receiver = digest.service),
+                body = digest.messages)
+
+        if (isSigningRequired(digest)) {
+            request.headers.signature = cryptoService.run("notary-sign") {
+                Notary().sign(request.toSignedValues(), nodeIdentity.privateKey).serialize()
+            }
+        }
+
+        val (url, headers) = routingService.prepareLocalPlatformRequest(request)
+        val response = httpService.makeOcpiRequest<Any>(url, headers, request)
+        if (response.statusCode != 200 || response.body.statusCode != 1000) {
+            throw OcpiServerGenericException("Digest not accepted (${response.statusCode}/${response.body.statusCode})")
+        }
+        registry.counter("ocn.linked_services.digest.delivered", "service", tag(digest.service))
+                .increment(digest.messages.size.toDouble())
+    }
+
+    private fun isSigningRequired(digest: Digest): Boolean {
+        return properties.signatures ||
+                digest.messages.any { it.headers.signature != null } ||
+                routingService.getPlatformRules(digest.service).signatures
+    }
+
+    // must be called holding the lock on digests
+    private fun remove(digest: Digest): Digest {
+        digests.remove(Pair(digest.service, digest.sender))
+        getBuffered(digest.service).addAndGet(-digest.messages.size)
+        return digest
+    }
+
+    private fun getBuffered(service: BasicRole): AtomicInteger {
+        return buffered.computeIfAbsent(service) {
+            registry.gauge("ocn.linked_services.digest.buffered", Tags.of("service", tag(it)), AtomicInteger())
+        }
+    }
+
+    private fun tag(service: BasicRole) = "${service.country}${service.id}".toUpperCase()
+
+}
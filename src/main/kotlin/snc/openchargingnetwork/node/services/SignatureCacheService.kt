@@ -0,0 +1,136 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.springframework.stereotype.Service
+import org.web3j.utils.Numeric
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.tools.LruMap
+import java.security.MessageDigest
+
+/**
+ * Caches the results of signature verifications, as the same message is often verified more than once (e.g. retries
+ * and repeated HubClientInfo pushes). Two kinds of results are cached, both for a short time only:
+ *
+ *  - the signer recovered from a signature, keyed by the digest of the signed data and the signature
+ *  - the parties for which a signer has been checked against the Registry, along with the party's operator at the
+ *    time. These are invalidated as soon as the party is seen with a different operator (see updateOperator).
+ *    Each kind of check is cached separately, as passing the more lenient one (signatory) does not pass the other.
+ */
+@Service
+class SignatureCacheService(private val properties: NodeProperties) {
+
+    companion object {
+        private const val DIGEST_ALGORITHM = "SHA-256"
+
+        // used to get the digest of signed values (e.g. of the OCN Notary)
+        private val mapper = jacksonObjectMapper()
+    }
+
+    /**
+     * The kind of check done against the Registry: either the signer is the party or its operator (e.g. the OCN Notary
+     * signature of a request), or the signer must be the operator of the party (e.g. the OCN-Signature of a node)
+     */
+    enum class Check {
+        SIGNATORY,
+        OPERATOR
+    }
+
+    private class Entry(val value: String, val expires: Long) {
+        fun isExpired() = System.currentTimeMillis() > expires
+    }
+
+    /**
+     * Signers by digest and signature
+     */
+    private val signers = LruMap<String, Entry>(properties.signatureCacheMaxEntries)
+
+    /**
+     * Operators against which signers have been checked, by party and check/signer
+     */
+    private val verifiedParties = LruMap<BasicRole, MutableMap<String, Entry>>(properties.signatureCacheMaxEntries)
+
+    /**
+     * Get the signer of the given data and signature, using the recover function if it is not cached
+     */
+    fun getSigner(data: ByteArray, signature: String, recover: () -> String): String {
+        if (properties.signatureCacheMaxEntries <= 0) {
+            return recover()
+        }
+
+        val key = "${digest(data)}:$signature"
+        synchronized(signers) {
+            signers[key]?.let { if (!it.isExpired()) return it.value }
+        }
+
+        val signer = recover()
+        synchronized(signers) {
+            signers[key] = Entry(signer, System.currentTimeMillis() + properties.signatureCacheTtl)
+        }
+        return signer
+    }
+
+    /**
+     * Get the signer of the given values (serialized to get their digest) and signature
+     */
+    fun getSignerOfValues(values: Any, signature: String, recover: () -> String): String {
+        return getSigner(mapper.writeValueAsBytes(values), signature, recover)
+    }
+
+    /**
+     * Check whether the signer has recently passed the given check for the party
+     */
+    fun isVerified(party: BasicRole, signer: String, check: Check): Boolean {
+        synchronized(verifiedParties) {
+            val entry = verifiedParties[party.toUpperCase()]?.get(verifiedKey(signer, check)) ?: return false
+            return !entry.isExpired()
+        }
+    }
+
+    /**
+     * Remember that the signer has passed the given check for the party, which is registered with the given operator
+     */
+    fun setVerified(party: BasicRole, signer: String, operator: String, check: Check) {
+        if (properties.signatureCacheMaxEntries <= 0) {
+            return
+        }
+        synchronized(verifiedParties) {
+            val signers = verifiedParties.getOrPut(party.toUpperCase()) { mutableMapOf() }
+            signers.values.removeIf { it.isExpired() }
+            signers[verifiedKey(signer, check)] = Entry(operator.toLowerCase(), System.currentTimeMillis() + properties.signatureCacheTtl)
+        }
+    }
+
+    /**
+     * Invalidate verifications of the party if its operator (as seen in the Registry) has changed
+     */
+    fun updateOperator(party: BasicRole, operator: String) {
+        synchronized(verifiedParties) {
+            val signers = verifiedParties[party.toUpperCase()] ?: return
+            signers.values.removeIf { it.value != operator.toLowerCase() }
+        }
+    }
+
+    private fun verifiedKey(signer: String, check: Check) = "$check:${signer.toLowerCase()}"
+
+    private fun digest(data: ByteArray): String {
+        return Numeric.toHexStringNoPrefix(MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data))
+    }
+
+}
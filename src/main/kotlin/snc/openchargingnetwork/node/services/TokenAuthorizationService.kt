@@ -0,0 +1,167 @@
+/*
+    Copyright 2019-2020 eMobilify GmbH
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.databind.node.ObjectNode
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.Timer
+import org.springframework.http.HttpMethod
+import org.springframework.stereotype.Service
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.tools.LruMap
+import java.io.IOException
+
+/**
+ * Answers real-time token authorization requests (POST tokens/{uid}/authorize) on behalf of eMSPs which have opted
+ * in, using an index of the tokens they have pushed to CPOs via this node.
+ *
+ * Following the token's whitelist type, ALWAYS and ALLOWED tokens are authorized by the node directly. ALLOWED_OFFLINE
+ * tokens are only authorized by the node if the eMSP is OFFLINE or cannot be reached. NEVER tokens (and tokens not in
+ * the index) are always forwarded to the eMSP.
+ */
+@Service
+class TokenAuthorizationService(private val properties: NodeProperties,
+                                private val routingService: RoutingService,
+                                private val httpService: HttpService,
+                                private val registry: MeterRegistry) {
+
+    /**
+     * Tokens keyed by owner, uid and type
+     */
+    private val tokens = LruMap<String, Token>(properties.localAuthorizationMaxTokens)
+
+    /**
+     * Add a token pushed by an eMSP (receiver interface PUT or PATCH) to the index, if the eMSP has opted in and the
+     * token belongs to it. Partial updates are only applied to tokens already in the index.
+     */
+    fun index(request: OcpiRequestVariables) {
+        if (!properties.localAuthorizationEnabled || request.module != ModuleID.TOKENS ||
+                request.interfaceRole != InterfaceRole.RECEIVER) {
+            return
+        }
+        if (request.method != HttpMethod.PUT && request.method != HttpMethod.PATCH) {
+            return
+        }
+
+        val segments = request.urlPath?.split("/")?.filter { it.isNotEmpty() } ?: return
+        if (segments.size != 3 || !routingService.getPlatformRules(request.headers.sender).localAuthorization) {
+            return
+        }
+        // an eMSP may only index its own tokens, so the path must name the sender
+        val sender = request.headers.sender.toUpperCase()
+        if (BasicRole(id = segments[1], country = segments[0]).toUpperCase() != sender) {
+            return
+        }
+        val key = getKey(sender, segments[2], request.queryParams?.get("type"))
+
+        synchronized(tokens) {
+            val token = when (request.method) {
+                HttpMethod.PUT -> httpService.mapper.convertValue(request.body, Token::class.java)
+                else -> {
+                    val patched = httpService.mapper.valueToTree<ObjectNode>(tokens[key] ?: return)
+                    patched.setAll<ObjectNode>(httpService.mapper.valueToTree<ObjectNode>(request.body))
+                    httpService.mapper.treeToValue(patched, Token::class.java)
+                }
+            }
+            tokens[key] = token
+        }
+    }
+
+    /**
+     * Authorize a real-time authorization request locally if the token's whitelist type (or the eMSP being
+     * unreachable) allows it, otherwise (and for any other request) use the provided forward function.
+     *
+     * @param isSigningRequired checked before authorizing locally, as the node cannot sign on behalf of the eMSP
+     * @param forward forwards the request to the eMSP
+     */
+    fun <T: Any> authorize(request: OcpiRequestVariables,
+                           isSigningRequired: () -> Boolean,
+                           forward: () -> HttpResponse<T>): HttpResponse<T> {
+
+        if (!properties.localAuthorizationEnabled || !isAuthorizationRequest(request)) {
+            return forward()
+        }
+
+        val sample = Timer.start(registry)
+        val token = getIndexedToken(request, isSigningRequired)
+        registry.counter("ocn.tokens.index.lookups", "result", if (token != null) "hit" else "miss").increment()
+
+        val forwarded = when (token?.whitelist) {
+            WhitelistType.ALWAYS, WhitelistType.ALLOWED -> null
+            WhitelistType.ALLOWED_OFFLINE -> forwardIfReachable(request, forward)
+            else -> forward()
+        }
+        // only null if the token is known and allows authorizing locally
+        val response = forwarded ?: getLocalResponse(request, token!!)
+
+        sample.stop(registry.timer("ocn.tokens.authorization", "source", if (forwarded == null) "local" else "emsp"))
+        return response
+    }
+
+    /**
+     * Forward the authorization of an ALLOWED_OFFLINE token to the eMSP. Returns null if the eMSP is OFFLINE or the
+     * request fails to reach it.
+     */
+    private fun <T: Any> forwardIfReachable(request: OcpiRequestVariables, forward: () -> HttpResponse<T>): HttpResponse<T>? {
+        if (routingService.getPlatform(request.headers.receiver).status == ConnectionStatus.OFFLINE) {
+            return null
+        }
+
+        val response = try {
+            forward()
+        } catch (e: IOException) {
+            return null
+        }
+
+        return if (response.statusCode >= 500) null else response
+    }
+
+    private fun isAuthorizationRequest(request: OcpiRequestVariables): Boolean {
+        return request.module == ModuleID.TOKENS && request.interfaceRole == InterfaceRole.SENDER &&
+                request.method == HttpMethod.POST && request.urlPath?.endsWith("/authorize") == true
+    }
+
+    private fun getIndexedToken(request: OcpiRequestVariables, isSigningRequired: () -> Boolean): Token? {
+        if (!routingService.getPlatformRules(request.headers.receiver).localAuthorization || isSigningRequired()) {
+            return null
+        }
+        val uid = request.urlPath!!.removeSuffix("/authorize").trim('/')
+        val key = getKey(request.headers.receiver, uid, request.queryParams?.get("type"))
+        return synchronized(tokens) { tokens[key] }
+    }
+
+    private fun <T: Any> getLocalResponse(request: OcpiRequestVariables, token: Token): HttpResponse<T> {
+        val info = AuthorizationInfo(
+                allowed = if (token.valid) Allowed.ALLOWED else Allowed.BLOCKED,
+                token = token,
+                location = request.body?.let { httpService.mapper.convertValue(it, LocationReferences::class.java) })
+
+        @Suppress("UNCHECKED_CAST")
+        return HttpResponse(statusCode = 200, headers = mapOf(), body = OcpiResponse(statusCode = 1000, data = info as T))
+    }
+
+    /**
+     * Token type defaults to RFID, as in the OCPI tokens module.
+     */
+    private fun getKey(owner: BasicRole, uid: String, type: Any?): String {
+        val role = owner.toUpperCase()
+        return "${role.country}/${role.id}/$uid/${type ?: TokenType.RFID}"
+    }
+
+}
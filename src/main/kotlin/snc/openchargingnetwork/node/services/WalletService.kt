@@ -18,26 +18,28 @@ package snc.openchargingnetwork.node.services
 
 import com.fasterxml.jackson.module.kotlin.readValue
 import org.springframework.stereotype.Service
-import org.web3j.crypto.Credentials
 import org.web3j.crypto.Keys
 import org.web3j.crypto.Sign
 import org.web3j.utils.Numeric
 import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.contracts.Registry
-import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.models.exceptions.InvalidOcnSignatureException
 import snc.openchargingnetwork.node.models.ocpi.ClientInfo
 import snc.openchargingnetwork.node.tools.checksum
+import java.math.BigInteger
 import java.nio.charset.StandardCharsets
 
 /**
  * Provides methods for the node's wallet; sign and verify messages sent between nodes
  */
 @Service
-class WalletService(private val properties: NodeProperties,
+class WalletService(private val nodeIdentity: NodeIdentity,
                     private val registry: Registry,
-                    private val httpService: HttpService) {
+                    private val httpService: HttpService,
+                    private val cryptoService: CryptoService,
+                    private val signatureCacheService: SignatureCacheService) {
 
     /**
      * Take a component of a signature (r,s,v) and convert it to a string to include as an OCN-Signature header
@@ -64,9 +66,14 @@ class WalletService(private val properties: NodeProperties,
      * Sign an arbitrary string (used to sign the JSON body of a message sent over the network)
      */
     fun sign(request: String): String {
-        val dataToSign = request.toByteArray(StandardCharsets.UTF_8)
-        val credentials = Credentials.create(properties.privateKey)
-        val signature = Sign.signPrefixedMessage(dataToSign, credentials.ecKeyPair)
+        return sign(request.toByteArray(StandardCharsets.UTF_8))
+    }
+
+    /**
+     * Sign arbitrary data (e.g. the binary body of a message sent over the network)
+     */
+    fun sign(dataToSign: ByteArray): String {
+        val signature = cryptoService.run("sign") { Sign.signPrefixedMessage(dataToSign, nodeIdentity.keyPair) }
         val r = toHexStringNoPrefix(signature.r)
         val s = toHexStringNoPrefix(signature.s)
         val v = toHexStringNoPrefix(signature.v)
@@ -78,28 +85,92 @@ class WalletService(private val properties: NodeProperties,
      * Verify that a request (as JSON string) was signed by the sender using the provided OCN-Signature
      */
     fun verify(request: String, signature: String, sender: BasicRole) {
-        val dataToVerify = request.toByteArray(StandardCharsets.UTF_8)
-        val (r, s, v) = signatureStringToByteArray(signature)
-        val signingKey = Sign.signedPrefixedMessageToKey(dataToVerify, Sign.SignatureData(v, r, s))
-        val signingAddress = "0x${Keys.getAddress(signingKey)}"
-        val (operator, _) = registry.getOperatorByOcpi(sender.country.toByteArray(), sender.id.toByteArray()).sendAsync().get()
-        if (signingAddress.toLowerCase() != operator.toLowerCase()) {
-            throw OcpiHubConnectionProblemException("Could not verify OCN-Signature of request")
+        verify(request, signature, listOf(sender))
+    }
+
+    /**
+     * Verify that a batch of requests (as JSON string) was signed by the node of all of the given senders
+     */
+    fun verify(request: String, signature: String, senders: Collection<BasicRole>) {
+        verify(request.toByteArray(StandardCharsets.UTF_8), signature, senders)
+    }
+
+    /**
+     * Verify that a (binary) request was signed by the node of all of the given senders
+     */
+    fun verify(request: ByteArray, signature: String, senders: Collection<BasicRole>) {
+        verifyOperator(recoverSigner(request, signature), senders, "Could not verify OCN-Signature of request")
+    }
+
+    /**
+     * Verify that the given address is the operator of the node of all of the given senders
+     */
+    fun verifyOperator(address: String, senders: Collection<BasicRole>, errorMessage: String) {
+        for (sender in senders) {
+            if (signatureCacheService.isVerified(sender, address, SignatureCacheService.Check.OPERATOR)) {
+                continue
+            }
+            val (operator, _) = registry.getOperatorByOcpi(sender.country.toByteArray(), sender.id.toByteArray()).sendAsync().get()
+            if (address.toLowerCase() != operator.toLowerCase()) {
+                throw OcpiHubConnectionProblemException(errorMessage)
+            }
+            signatureCacheService.setVerified(sender, address, operator, SignatureCacheService.Check.OPERATOR)
+        }
+    }
+
+    /**
+     * Recover the address which signed a request from its OCN-Signature, if not recently recovered
+     */
+    private fun recoverSigner(request: ByteArray, signature: String): String {
+        return signatureCacheService.getSigner(request, signature) {
+            "0x${Keys.getAddress(recoverSigningKey(request, signature))}"
         }
     }
 
+    /**
+     * Recover the public key which signed a request (as JSON string) from its OCN-Signature
+     */
+    fun recoverSigningKey(request: String, signature: String): BigInteger {
+        return recoverSigningKey(request.toByteArray(StandardCharsets.UTF_8), signature)
+    }
+
+    /**
+     * Recover the public key which signed a (binary) request from its OCN-Signature
+     */
+    fun recoverSigningKey(dataToVerify: ByteArray, signature: String): BigInteger {
+        val (r, s, v) = signatureStringToByteArray(signature)
+        return cryptoService.run("recover") { Sign.signedPrefixedMessageToKey(dataToVerify, Sign.SignatureData(v, r, s)) }
+    }
+
     /**
      * Verify that a ClientInfo update belongs to the correct node of the party
      */
     fun verifyClientInfo(clientInfoString: String, signature: String): ClientInfo {
-        val dataToVerify = clientInfoString.toByteArray(StandardCharsets.UTF_8)
-        val (r, s, v) = signatureStringToByteArray(signature)
-        val signingKey = Sign.signedPrefixedMessageToKey(dataToVerify, Sign.SignatureData(v, r, s))
-        val signingAddress = "0x${Keys.getAddress(signingKey)}"
+        val signingAddress = recoverSigner(clientInfoString.toByteArray(StandardCharsets.UTF_8), signature)
 
         val clientInfo: ClientInfo = httpService.mapper.readValue(clientInfoString)
+        verifyClientInfoSigner(clientInfo, signingAddress)
+        return clientInfo
+    }
+
+    /**
+     * Verify that a batch of ClientInfo updates, signed once, belongs to the correct node of each of the parties
+     */
+    fun verifyClientInfoBatch(clientInfoListString: String, signature: String): List<ClientInfo> {
+        val signingAddress = recoverSigner(clientInfoListString.toByteArray(StandardCharsets.UTF_8), signature)
 
+        val clientInfoList: List<ClientInfo> = httpService.mapper.readValue(clientInfoListString)
+        clientInfoList.forEach { verifyClientInfoSigner(it, signingAddress) }
+        return clientInfoList
+    }
+
+    private fun verifyClientInfoSigner(clientInfo: ClientInfo, signingAddress: String) {
         // validate party registered with signer
+        val party = BasicRole(id = clientInfo.partyID, country = clientInfo.countryCode)
+        if (signatureCacheService.isVerified(party, signingAddress, SignatureCacheService.Check.OPERATOR)) {
+            return
+        }
+
         val countryCode = clientInfo.countryCode.toByteArray()
         val partyID = clientInfo.partyID.toByteArray()
 
@@ -108,7 +179,7 @@ class WalletService(private val properties: NodeProperties,
         if (operator.checksum() != signingAddress.checksum()) {
             throw InvalidOcnSignatureException("Invalid OCN-Signature header. Client registered with operator $operator but update signed by $signingAddress.")
         }
-        return clientInfo
+        signatureCacheService.setVerified(party, signingAddress, operator, SignatureCacheService.Check.OPERATOR)
     }
 
 }
\ No newline at end of file
@@ -16,10 +16,14 @@
 
 package snc.openchargingnetwork.node.tools
 
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 import org.web3j.crypto.Keys
 import java.time.Instant
 import java.time.format.DateTimeFormatter
 import java.util.UUID
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
 
 fun generateUUIDv4Token(): String {
     return UUID.randomUUID().toString()
@@ -65,3 +69,26 @@ fun generatePrivateKey(): String {
     val keys = Keys.createEcKeyPair()
     return keys.privateKey.toString(16)
 }
+
+/**
+ * Creates daemon threads (which do not hold up shutdown) for a worker pool, named "<prefix>-<number>"
+ */
+fun namedDaemonThreadFactory(prefix: String, newThread: (Runnable, String) -> Thread = ::Thread): ThreadFactory {
+    val count = AtomicInteger()
+    return ThreadFactory { runnable ->
+        newThread(runnable, "$prefix-${count.incrementAndGet()}").apply { isDaemon = true }
+    }
+}
+
+/**
+ * Runs the action once the current transaction has been committed, or immediately if there is no transaction
+ */
+fun afterCommit(action: () -> Unit) {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+        TransactionSynchronizationManager.registerSynchronization(object : TransactionSynchronizationAdapter() {
+            override fun afterCommit() = action()
+        })
+    } else {
+        action()
+    }
+}
@@ -0,0 +1,18 @@
+-- Indexes for the lookups made on (almost) every request (see the PostgreSQL variant). H2 does not support indexes on
+-- expressions, so roles are indexed on the plain columns instead.
+
+CREATE INDEX IF NOT EXISTS roles_party_upper_idx ON roles (country_code, partyid);
+CREATE INDEX IF NOT EXISTS roles_platform_idx ON roles (platformid);
+
+CREATE INDEX IF NOT EXISTS platforms_tokena_idx ON platforms (tokena);
+CREATE INDEX IF NOT EXISTS platforms_tokenc_idx ON platforms (tokenc);
+
+CREATE INDEX IF NOT EXISTS endpoints_platform_identifier_role_idx ON endpoints (platformid, identifier, role);
+
+CREATE INDEX IF NOT EXISTS proxy_resources_uid_idx
+    ON proxy_resources (alternativeuid, sender_id, sender_country, receiver_id, receiver_country);
+
+CREATE INDEX IF NOT EXISTS ocn_rules_list_platform_idx ON ocn_rules_list (platformid);
+CREATE INDEX IF NOT EXISTS ocn_rules_list_modules_idx ON ocn_rules_list_entity_modules (ocn_rules_list_entity_id);
+
+CREATE INDEX IF NOT EXISTS network_client_info_party_role_idx ON network_client_info (sender_id, sender_country, role);
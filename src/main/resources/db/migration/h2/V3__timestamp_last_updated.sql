@@ -0,0 +1,8 @@
+-- Last updated times were stored as ISO 8601 strings. They are now stored as UTC timestamps (see the PostgreSQL
+-- variant).
+
+ALTER TABLE platforms ALTER COLUMN last_updated SET DATA TYPE TIMESTAMP;
+
+ALTER TABLE network_client_info ALTER COLUMN last_updated SET DATA TYPE TIMESTAMP;
+
+CREATE INDEX IF NOT EXISTS platforms_status_last_updated_idx ON platforms (status, last_updated);
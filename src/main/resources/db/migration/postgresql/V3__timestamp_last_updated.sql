@@ -0,0 +1,10 @@
+-- Last updated times were stored as ISO 8601 strings (e.g. 2020-01-01T00:00:00.000Z). They are now stored as UTC
+-- timestamps (see spring.jpa.properties.hibernate.jdbc.time_zone), so that stale platforms can be queried directly.
+
+ALTER TABLE platforms
+    ALTER COLUMN last_updated TYPE TIMESTAMP USING (last_updated::timestamptz AT TIME ZONE 'UTC');
+
+ALTER TABLE network_client_info
+    ALTER COLUMN last_updated TYPE TIMESTAMP USING (last_updated::timestamptz AT TIME ZONE 'UTC');
+
+CREATE INDEX IF NOT EXISTS platforms_status_last_updated_idx ON platforms (status, last_updated);
@@ -0,0 +1,18 @@
+-- Notifications (client info changes, retried linked service forwards) waiting to be delivered, written in the same
+-- transaction as the change they notify of and drained by the OutboxService.
+
+CREATE TABLE IF NOT EXISTS outbox (
+    id BIGINT NOT NULL,
+    type VARCHAR(255) NOT NULL,
+    destination VARCHAR(255) NOT NULL,
+    payload TEXT NOT NULL,
+    attempts INTEGER NOT NULL DEFAULT 0,
+    next_attempt TIMESTAMP NOT NULL,
+    created TIMESTAMP NOT NULL,
+    dead_lettered BOOLEAN NOT NULL DEFAULT FALSE,
+    last_error VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE INDEX IF NOT EXISTS outbox_dead_lettered_next_attempt_idx ON outbox (dead_lettered, next_attempt, id);
+CREATE INDEX IF NOT EXISTS outbox_destination_idx ON outbox (destination, id);
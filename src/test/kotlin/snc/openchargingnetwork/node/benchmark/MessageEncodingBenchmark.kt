@@ -0,0 +1,79 @@
+package snc.openchargingnetwork.node.benchmark
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.data.exampleCDR
+import snc.openchargingnetwork.node.data.exampleLocation1
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.services.HttpService
+
+/**
+ * Compares the size and encoding/decoding time of OCN messages as JSON and Smile (see OcnNodeFeature.MESSAGE_SMILE).
+ * Run with `./gradlew benchmark`; results are printed to stdout.
+ */
+class MessageEncodingBenchmark {
+
+    private val httpService = HttpService()
+
+    private val iterations = 20000
+
+    private fun message(module: ModuleID, urlPath: String, body: Any) = OcpiRequestVariables(
+            module = module,
+            interfaceRole = InterfaceRole.RECEIVER,
+            method = HttpMethod.PUT,
+            headers = OcnHeaders(
+                    authorization = "Token token-c",
+                    requestID = "4d4c5a6e-9b39-4d1f-8f8a-6a1c3e0a2b7f",
+                    correlationID = "0b8f2a0c-3c5e-4a4e-a6f9-d8e1f5f7c9b2",
+                    sender = BasicRole("CPO", "DE"),
+                    receiver = BasicRole("MSP", "NL")),
+            urlPath = urlPath,
+            body = body)
+
+    // a location with a typical number of EVSEs (the example has one)
+    private val location = exampleLocation1.copy(evses = (1..12).map {
+        exampleLocation1.evses!!.first().copy(uid = "DE*CPO*E$it")
+    })
+
+    @Test
+    fun `location message`() {
+        run("location", message(ModuleID.LOCATIONS, "DE/CPO/LOC1", location))
+    }
+
+    @Test
+    fun `cdr message`() {
+        run("cdr", message(ModuleID.CDRS, "", exampleCDR))
+    }
+
+    private fun run(name: String, message: OcpiRequestVariables) {
+        val json = httpService.mapper.writeValueAsString(message)
+        val smile = httpService.toSmile(json)
+
+        val jsonEncode = measure { httpService.mapper.writeValueAsString(message) }
+        val smileEncode = measure { httpService.smileMapper.writeValueAsBytes(message) }
+        val transcode = measure { httpService.toSmile(json) }
+        val jsonDecode = measure { httpService.convertToRequestVariables(json) }
+        val smileDecode = measure { httpService.convertToRequestVariables(smile) }
+
+        println("[$name] size: json=${json.toByteArray().size}B smile=${smile.size}B " +
+                "(${smile.size * 100 / json.toByteArray().size}%)")
+        println("[$name] encode: json=${jsonEncode}us smile=${smileEncode}us json->smile=${transcode}us")
+        println("[$name] decode: json=${jsonDecode}us smile=${smileDecode}us")
+
+        assertThat(smile.size).isLessThan(json.toByteArray().size)
+        assertThat(httpService.convertToRequestVariables(smile)).isEqualTo(httpService.convertToRequestVariables(json))
+    }
+
+    /**
+     * Average time of the operation in microseconds, after warming up
+     */
+    private fun measure(operation: () -> Any): Double {
+        repeat(iterations) { operation() }
+        val start = System.nanoTime()
+        repeat(iterations) { operation() }
+        return (System.nanoTime() - start) / iterations / 1000.0
+    }
+
+}
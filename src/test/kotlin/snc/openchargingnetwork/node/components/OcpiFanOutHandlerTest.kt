@@ -0,0 +1,216 @@
+package snc.openchargingnetwork.node.components
+
+import io.mockk.Runs
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import org.springframework.http.ResponseEntity
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.data.exampleLocation1
+import snc.openchargingnetwork.node.models.AggregateResult
+import snc.openchargingnetwork.node.models.MulticastRequest
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.OcnMessageBatch
+import snc.openchargingnetwork.node.models.OcnMessageBatchEntry
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubUnknownReceiverException
+import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.services.HubClientInfoService
+import snc.openchargingnetwork.node.services.NodeSessionService
+import snc.openchargingnetwork.node.services.OcnRulesService
+import snc.openchargingnetwork.node.services.RoutingService
+
+class OcpiFanOutHandlerTest {
+
+    private val requestHandlerBuilder: OcpiRequestHandlerBuilder = mockk()
+    private val routingService: RoutingService = mockk()
+    private val hubClientInfoService: HubClientInfoService = mockk()
+    private val ocnRulesService: OcnRulesService = mockk()
+
+    private val nodeSessionService: NodeSessionService = mockk()
+
+    private val fanOutHandler = OcpiFanOutHandler(requestHandlerBuilder, routingService, hubClientInfoService,
+            ocnRulesService, nodeSessionService, HttpService(), NodeProperties().apply {
+                aggregateTimeout = 500
+                multicastTimeout = 500
+            })
+
+    private val sender = BasicRole("CPO", "DE")
+    private val msp1 = BasicRole("MSP", "DE")
+    private val msp2 = BasicRole("MSP", "NL")
+
+    private val multicast = MulticastRequest(
+            module = "locations",
+            method = HttpMethod.PUT,
+            urlPath = "/DE/CPO/LOC1",
+            body = exampleLocation1,
+            targets = listOf(msp1),
+            allWhitelisted = true)
+
+    init {
+        every { routingService.checkSenderKnown("Token token-c", sender) } just Runs
+        every { hubClientInfoService.renewClientConnection(sender) } just Runs
+        every { ocnRulesService.getPartiesWhitelisting(sender, "locations") } returns listOf(msp1, msp2, sender)
+        every { hubClientInfoService.getList("Token token-c") } returns listOf(
+                ClientInfo(partyID = "CPO", countryCode = "NL", role = Role.CPO, status = ConnectionStatus.CONNECTED, lastUpdated = "2020-01-01T00:00:00Z"),
+                ClientInfo(partyID = "MSP", countryCode = "NL", role = Role.EMSP, status = ConnectionStatus.CONNECTED, lastUpdated = "2020-01-01T00:00:00Z"))
+    }
+
+    @Test
+    fun `multicast forwards to each distinct recipient and reports errors per recipient`() {
+        val handler1: OcpiRequestHandler<Any> = mockk()
+        val handler2: OcpiRequestHandler<Any> = mockk()
+        val responseHandler: OcpiResponseHandler<Any> = mockk()
+
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp1 }) } returns handler1
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp2 }) } returns handler2
+        every { handler1.forwardDefault(senderValidated = true) } returns responseHandler
+        every { responseHandler.getResponse() } returns ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+        every { handler2.forwardDefault(senderValidated = true) } throws OcpiHubUnknownReceiverException()
+
+        val results = fanOutHandler.multicast("Token token-c", "1", sender, multicast).associateBy { it.target }
+
+        assertThat(results.keys).containsExactlyInAnyOrder(msp1, msp2)
+        assertThat(results.getValue(msp1).response.statusCode).isEqualTo(1000)
+        assertThat(results.getValue(msp2).response.statusCode).isEqualTo(OcpiStatus.HUB_UNKNOWN_RECEIVER.code)
+    }
+
+    @Test
+    fun `multicast reports recipients not responding in time as timed out`() {
+        val fastHandler: OcpiRequestHandler<Any> = mockk()
+        val slowHandler: OcpiRequestHandler<Any> = mockk()
+        val responseHandler: OcpiResponseHandler<Any> = mockk()
+
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp1 }) } returns fastHandler
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp2 }) } returns slowHandler
+        every { fastHandler.forwardDefault(senderValidated = true) } returns responseHandler
+        every { responseHandler.getResponse() } returns ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+        every { slowHandler.forwardDefault(senderValidated = true) } answers {
+            Thread.sleep(5000)
+            responseHandler
+        }
+
+        val started = System.currentTimeMillis()
+        val results = fanOutHandler.multicast("Token token-c", "1", sender, multicast).associateBy { it.target }
+
+        assertThat(System.currentTimeMillis() - started).isLessThan(4000)
+        assertThat(results.getValue(msp1).response.statusCode).isEqualTo(1000)
+        assertThat(results.getValue(msp2).response.statusCode).isEqualTo(OcpiStatus.HUB_REQUEST_TIMEOUT.code)
+    }
+
+    @Test
+    fun `multicast rejects unsupported modules and methods`() {
+        assertThatThrownBy { fanOutHandler.multicast("Token token-c", "1", sender, multicast.copy(module = "credentials")) }
+                .isInstanceOf(OcpiClientInvalidParametersException::class.java)
+        assertThatThrownBy { fanOutHandler.multicast("Token token-c", "1", sender, multicast.copy(method = HttpMethod.GET)) }
+                .isInstanceOf(OcpiClientInvalidParametersException::class.java)
+    }
+
+    @Test
+    fun `getAggregateRequests resolves data owners by list and role`() {
+        val requests = fanOutHandler.getAggregateRequests("Token token-c", "1", sender, "locations",
+                listOf(BasicRole("cpo", "be")), Role.CPO, mapOf("limit" to 100))
+
+        assertThat(requests.map { it.headers.receiver }).containsExactly(BasicRole("CPO", "BE"), BasicRole("CPO", "NL"))
+        assertThat(requests.all { it.interfaceRole == InterfaceRole.SENDER && it.method == HttpMethod.GET }).isTrue()
+        assertThat(requests.first().queryParams).isEqualTo(mapOf("limit" to 100))
+    }
+
+    @Test
+    fun `gather streams results per data owner and times out slow data owners`() {
+        val fast = BasicRole("CPO", "BE")
+        val slow = BasicRole("CPO", "NL")
+        val requests = fanOutHandler.getAggregateRequests("Token token-c", "1", sender, "locations",
+                listOf(fast, slow), null, mapOf())
+
+        val fastHandler: OcpiRequestHandler<Any> = mockk()
+        val slowHandler: OcpiRequestHandler<Any> = mockk()
+        val responseHandler: OcpiResponseHandler<Any> = mockk()
+
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == fast }) } returns fastHandler
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == slow }) } returns slowHandler
+        every { fastHandler.forwardDefault(senderValidated = true) } returns responseHandler
+        every { slowHandler.forwardDefault(senderValidated = true) } answers {
+            Thread.sleep(5000)
+            responseHandler
+        }
+        every { responseHandler.getResponseWithPaginationHeaders() } returns ResponseEntity.ok()
+                .header("X-Total-Count", "1")
+                .body(OcpiResponse<Any>(statusCode = 1000, data = listOf(exampleLocation1), signature = "0x123"))
+
+        val results = mutableListOf<AggregateResult>()
+        fanOutHandler.gather(requests) { results.add(it) }
+
+        assertThat(results.map { it.source }).containsExactly(fast, slow)
+        assertThat(results[0].headers["X-Total-Count"]).isEqualTo("1")
+        assertThat(results[0].response.signature).isEqualTo("0x123")
+        assertThat(results[1].response.statusCode).isEqualTo(OcpiStatus.HUB_REQUEST_TIMEOUT.code)
+    }
+
+    @Test
+    fun `gather times out data owners still waiting for a worker`() {
+        val singleWorker = OcpiFanOutHandler(requestHandlerBuilder, routingService, hubClientInfoService,
+                ocnRulesService, nodeSessionService, HttpService(), NodeProperties().apply {
+                    aggregateTimeout = 500
+                    fanOutParallelism = 1
+                })
+        val first = BasicRole("CPO", "BE")
+        val second = BasicRole("CPO", "NL")
+        val requests = singleWorker.getAggregateRequests("Token token-c", "1", sender, "locations",
+                listOf(first, second), null, mapOf())
+
+        val slowHandler: OcpiRequestHandler<Any> = mockk()
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver in listOf(first, second) }) } returns slowHandler
+        every { slowHandler.forwardDefault(senderValidated = true) } answers {
+            Thread.sleep(5000)
+            mockk()
+        }
+
+        val started = System.currentTimeMillis()
+        val results = mutableListOf<AggregateResult>()
+        singleWorker.gather(requests) { results.add(it) }
+        singleWorker.shutdown()
+
+        assertThat(System.currentTimeMillis() - started).isLessThan(4000)
+        assertThat(results.map { it.source }).containsExactlyInAnyOrder(first, second)
+        assertThat(results.all { it.response.statusCode == OcpiStatus.HUB_REQUEST_TIMEOUT.code }).isTrue()
+    }
+
+    @Test
+    fun `forwardBatchFromOcn verifies the batch once and returns results per message`() {
+        val remoteSender = BasicRole("MSP", "NL")
+        val batch = OcnMessageBatch(listOf(msp1, msp2).mapIndexed { index, receiver ->
+            OcnMessageBatchEntry(requestID = "request-$index", request = OcpiRequestVariables(
+                    module = ModuleID.LOCATIONS,
+                    interfaceRole = InterfaceRole.RECEIVER,
+                    method = HttpMethod.PUT,
+                    headers = OcnHeaders("", null, "$index", "1", remoteSender, receiver),
+                    urlPath = "/NL/MSP/LOC1",
+                    body = exampleLocation1))
+        })
+        val batchString = HttpService().mapper.writeValueAsString(batch)
+
+        val handler1: OcpiRequestHandler<Any> = mockk()
+        val handler2: OcpiRequestHandler<Any> = mockk()
+        val responseHandler: OcpiResponseHandler<Any> = mockk()
+
+        every { nodeSessionService.verify(batchString, OcnMessageHeaders("1", "0x1234"), setOf(remoteSender)) } just Runs
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp1 }) } returns handler1
+        every { requestHandlerBuilder.build<Any>(match<OcpiRequestVariables> { it.headers.receiver == msp2 }) } returns handler2
+        every { handler1.forwardFromOcnBatch() } returns responseHandler
+        every { responseHandler.getResponseWithAllHeaders() } returns ResponseEntity.ok(OcpiResponse(statusCode = 1000))
+        every { handler2.forwardFromOcnBatch() } throws OcpiHubUnknownReceiverException()
+
+        val results = fanOutHandler.forwardBatchFromOcn(batchString, OcnMessageHeaders("1", "0x1234")).associateBy { it.requestID }
+
+        assertThat(results.getValue("request-0").response.statusCode).isEqualTo(1000)
+        assertThat(results.getValue("request-1").response.statusCode).isEqualTo(OcpiStatus.HUB_UNKNOWN_RECEIVER.code)
+    }
+
+}
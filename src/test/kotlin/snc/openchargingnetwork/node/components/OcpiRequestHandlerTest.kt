@@ -1,17 +1,22 @@
 package snc.openchargingnetwork.node.components
 
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.Runs
 import io.mockk.every
 import io.mockk.just
 import io.mockk.mockk
+import io.mockk.verify
 import org.junit.jupiter.api.Assertions
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.springframework.http.HttpMethod
 import org.springframework.http.ResponseEntity
 import shareandcharge.openchargingnetwork.notary.Notary
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.data.exampleLocation1
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
 import snc.openchargingnetwork.node.models.*
 import snc.openchargingnetwork.node.models.entities.OcnRules
 import snc.openchargingnetwork.node.models.ocpi.*
@@ -23,14 +28,24 @@ class OcpiRequestHandlerTest {
     private val routingService: RoutingService = mockk()
     private val registryService: RegistryService = mockk()
     private val httpService: HttpService = mockk()
-    private val walletService: WalletService = mockk()
+    private val nodeSessionService: NodeSessionService = mockk()
     private val hubClientInfoService: HubClientInfoService = mockk()
     private val asyncTaskService: AsyncTaskService = mockk()
     private val properties: NodeProperties = mockk()
+    private val nodeIdentity: NodeIdentity = mockk()
+    private val cryptoService = CryptoService(NodeProperties(), SimpleMeterRegistry())
+    private val signatureCacheService = SignatureCacheService(NodeProperties())
     private val responseHandlerBuilder: OcpiResponseHandlerBuilder = mockk()
+    private val receiverDispatchService = ReceiverDispatchService(NodeProperties())
+    private val locationMirrorService = LocationMirrorService(NodeProperties(), routingService, httpService)
+    private val deltaSyncService = DeltaSyncService(NodeProperties(), routingService, httpService)
+    private val tokenAuthorizationService = TokenAuthorizationService(NodeProperties(), routingService, httpService,
+            SimpleMeterRegistry())
 
-    private val requestHandlerBuilder = OcpiRequestHandlerBuilder(routingService, registryService, httpService, walletService,
-            hubClientInfoService, asyncTaskService, responseHandlerBuilder, properties)
+    private val requestHandlerBuilder = OcpiRequestHandlerBuilder(routingService, registryService, httpService, nodeSessionService,
+            hubClientInfoService, asyncTaskService, receiverDispatchService, locationMirrorService, deltaSyncService,
+            tokenAuthorizationService, responseHandlerBuilder, properties, nodeIdentity, cryptoService,
+            signatureCacheService)
 
     @Test
     fun forwardRequest_local() {
@@ -174,7 +189,7 @@ class OcpiRequestHandlerTest {
         every { properties.signatures } returns false
         every { routingService.prepareRemotePlatformRequest(variables, false) } returns Triple(
                 recipientUrl, outgoingHeaders, outgoingBody)
-        every { httpService.postOcnMessage<Unit>(recipientUrl, outgoingHeaders, outgoingBody) } returns expectedResponse
+        every { routingService.postRemotePlatformRequest<Unit>(recipientUrl, outgoingHeaders, outgoingBody) } returns expectedResponse
         every { hubClientInfoService.renewClientConnection(variables.headers.sender) } just Runs
         every { routingService.isRoleKnown(variables.headers.receiver) } returns false
         every { asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler) } just Runs
@@ -231,7 +246,7 @@ class OcpiRequestHandlerTest {
                 receiverSig.signatory, "0xd49ead20b0ae060161c9ddea9b1bc46bb29b3c58")
         every { routingService.prepareRemotePlatformRequest(variables, false) } returns Triple(
                 recipientUrl, outgoingHeaders, outgoingBody)
-        every { httpService.postOcnMessage<Unit>(recipientUrl, outgoingHeaders, outgoingBody) } returns expectedResponse
+        every { routingService.postRemotePlatformRequest<Unit>(recipientUrl, outgoingHeaders, outgoingBody) } returns expectedResponse
         every { asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler) } just Runs
         every { responseHandlerBuilder.build(variables, expectedResponse) } returns responseHandler
         every { responseHandler.getResponse() } returns ResponseEntity.ok(expectedResponse.body)
@@ -240,4 +255,61 @@ class OcpiRequestHandlerTest {
         Assertions.assertEquals(expectedResponse.statusCode, response.statusCodeValue)
     }
 
-}
\ No newline at end of file
+    @Test
+    fun forwardRequest_remote_missingSignature_notForwarded() {
+        val variables = OcpiRequestVariables(
+                module = ModuleID.LOCATIONS,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PUT,
+                headers = OcnHeaders(
+                        authorization = "",
+                        requestID = "123",
+                        correlationID = "456",
+                        sender = BasicRole("ABC", "DE"),
+                        receiver = BasicRole("XYZ", "DE")),
+                body = exampleLocation1)
+
+        val requestHandler = requestHandlerBuilder.build<Unit>(variables)
+
+        every { routingService.checkSenderKnown(variables.headers.authorization, variables.headers.sender) } just Runs
+        every { routingService.getReceiverType(variables.headers.receiver) } returns Receiver.REMOTE
+        every { properties.signatures } returns true
+
+        assertThrows<OcpiClientInvalidParametersException> { requestHandler.forwardDefault() }
+        verify(exactly = 0) { routingService.prepareRemotePlatformRequest(any(), any()) }
+        verify(exactly = 0) { routingService.postRemotePlatformRequest<Unit>(any(), any(), any()) }
+    }
+
+    @Test
+    fun forwardRequest_remote_wrongSignatory_notForwarded() {
+        val variables = OcpiRequestVariables(
+                module = ModuleID.LOCATIONS,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PUT,
+                headers = OcnHeaders(
+                        authorization = "",
+                        requestID = "123",
+                        correlationID = "456",
+                        sender = BasicRole("FOR", "DE"),
+                        receiver = BasicRole("XYZ", "DE")),
+                body = exampleLocation1)
+
+        // signed with a key which is neither the party's nor its operator's
+        variables.headers.signature = Notary().sign(variables.toSignedValues(), generatePrivateKey()).serialize()
+
+        val requestHandler = requestHandlerBuilder.build<Unit>(variables)
+
+        every { routingService.checkSenderKnown(variables.headers.authorization, variables.headers.sender) } just Runs
+        every { routingService.getReceiverType(variables.headers.receiver) } returns Receiver.REMOTE
+        every { properties.signatures } returns true
+        every { registryService.getPartyDetails(variables.headers.sender) } returns RegistryPartyDetailsBasic(
+                "0x7c514d15709fb091243a4dffb649361354a9b038", "0xd49ead20b0ae060161c9ddea9b1bc46bb29b3c58")
+        every { routingService.prepareRemotePlatformRequest(variables, false) } returns Triple(
+                "https://node.ocn.com/ocpi/locations", OcnMessageHeaders(signature = "0x12345", requestID = "666"), "{}")
+
+        assertThrows<OcpiClientInvalidParametersException> { requestHandler.forwardDefault() }
+        verify(exactly = 0) { routingService.postRemotePlatformRequest<Unit>(any(), any(), any()) }
+        verify(exactly = 0) { asyncTaskService.forwardOcpiRequestToLinkedServices(any(), any()) }
+    }
+
+}
@@ -1,10 +1,12 @@
 package snc.openchargingnetwork.node.components
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.every
 import io.mockk.mockk
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.HttpResponse
 import snc.openchargingnetwork.node.models.OcnHeaders
@@ -18,9 +20,12 @@ class OcpiResponseHandlerTest {
     private val registryService: RegistryService = mockk()
     private val hubClientInfoService: HubClientInfoService = mockk()
     private val properties: NodeProperties = mockk()
+    private val nodeIdentity: NodeIdentity = mockk()
+    private val cryptoService = CryptoService(NodeProperties(), SimpleMeterRegistry())
+    private val signatureCacheService = SignatureCacheService(NodeProperties())
 
     private val responseHandlerBuilder = OcpiResponseHandlerBuilder(routingService, registryService,
-            hubClientInfoService, properties)
+            hubClientInfoService, properties, nodeIdentity, cryptoService, signatureCacheService)
 
     @Test
     fun getResponse() {
@@ -18,6 +18,7 @@ import org.springframework.test.web.servlet.result.MockMvcResultMatchers.status
 import snc.openchargingnetwork.node.data.exampleLocation2
 import snc.openchargingnetwork.node.models.*
 import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.components.OcpiFanOutHandler
 import snc.openchargingnetwork.node.components.OcpiRequestHandler
 import snc.openchargingnetwork.node.components.OcpiRequestHandlerBuilder
 
@@ -27,6 +28,9 @@ class MessageControllerTest(@Autowired val mockMvc: MockMvc) {
     @MockkBean
     lateinit var requestHandlerBuilder: OcpiRequestHandlerBuilder
 
+    @MockkBean
+    lateinit var fanOutHandler: OcpiFanOutHandler
+
     @Test
     fun `When POST OCN message should forward the request to local recipient and return their OCPI response`() {
 
@@ -53,7 +57,7 @@ class MessageControllerTest(@Autowired val mockMvc: MockMvc) {
 
         every {
             mockkRequestHandler
-                    .forwardFromOcn("0x1234")
+                    .forwardFromOcn(OcnMessageHeaders("xyz", "0x1234"))
                     .getResponseWithAllHeaders()
         } returns ResponseEntity
                 .status(200)
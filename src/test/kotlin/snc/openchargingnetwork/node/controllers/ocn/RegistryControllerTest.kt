@@ -18,6 +18,7 @@ import org.springframework.test.web.servlet.setup.MockMvcBuilders
 import org.springframework.web.context.WebApplicationContext
 import org.web3j.tuples.generated.Tuple2
 import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 
 
@@ -30,6 +31,9 @@ class RegistryControllerTest {
     @MockkBean
     lateinit var properties: NodeProperties
 
+    @MockkBean
+    lateinit var nodeIdentity: NodeIdentity
+
     @MockkBean
     lateinit var registry: Registry
 
@@ -47,10 +51,20 @@ class RegistryControllerTest {
         val expectedUrl = "https://node.ocn.org"
         val expectedAddress = "0x9bC1169Ca09555bf2721A5C9eC6D69c8073bfeB4"
         every { properties.url } returns expectedUrl
-        every { properties.privateKey } returns "0x1c3e5453c0f9aa74a8eb0216310b2b013f017813a648fce364bf41dbc0b37647"
+        every { nodeIdentity.address } returns expectedAddress
+        every { properties.messageBatchEnabled } returns true
+        every { properties.channelEnabled } returns true
+        every { properties.sessionKeyEnabled } returns true
+        every { properties.messageSmileEnabled } returns true
+        every { properties.clientInfoBatchEnabled } returns true
         mockMvc.perform(get("/ocn/registry/node-info"))
                 .andExpect(jsonPath("\$.url").value(expectedUrl))
                 .andExpect(jsonPath("\$.address").value(expectedAddress.toLowerCase()))
+                .andExpect(jsonPath("\$.features[0]").value("message-batch"))
+                .andExpect(jsonPath("\$.features[1]").value("message-channel"))
+                .andExpect(jsonPath("\$.features[2]").value("session-key"))
+                .andExpect(jsonPath("\$.features[3]").value("message-smile"))
+                .andExpect(jsonPath("\$.features[4]").value("client-info-batch"))
                 .andDo(document("registry/node-info"))
     }
 
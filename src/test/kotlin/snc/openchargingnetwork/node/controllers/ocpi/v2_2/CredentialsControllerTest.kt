@@ -19,7 +19,9 @@ import snc.openchargingnetwork.node.models.entities.*
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.models.ocpi.Role
 import snc.openchargingnetwork.node.repositories.*
+import snc.openchargingnetwork.node.services.ConnectionHeartbeatService
 import snc.openchargingnetwork.node.services.HttpService
+import snc.openchargingnetwork.node.services.HubClientInfoSubscriberService
 import snc.openchargingnetwork.node.services.RegistryService
 
 @WebMvcTest(CredentialsController::class)
@@ -49,6 +51,12 @@ class CredentialsControllerTest(@Autowired val mockMvc: MockMvc) {
     @MockkBean
     lateinit var httpService: HttpService
 
+    @MockkBean
+    lateinit var hubClientInfoSubscriberService: HubClientInfoSubscriberService
+
+    @MockkBean
+    lateinit var connectionHeartbeatService: ConnectionHeartbeatService
+
     @Test
     fun `When GET credentials then return broker credentials`() {
         val platform = PlatformEntity(auth = Auth(tokenC = "0987654321"))
@@ -114,6 +122,8 @@ class CredentialsControllerTest(@Autowired val mockMvc: MockMvc) {
 
         every { platformRepo.save<PlatformEntity>(any()) } returns platform
         every { endpointRepo.save<EndpointEntity>(any()) } returns mockk()
+        every { hubClientInfoSubscriberService.update(platform.id!!, any(), any()) } just Runs
+        every { connectionHeartbeatService.evict(platform.id!!) } just Runs
         every { roleRepo.saveAll(any<List<RoleEntity>>())} returns mockk()
 
         mockMvc.perform(post("/ocpi/2.2/credentials")
@@ -172,6 +182,8 @@ class CredentialsControllerTest(@Autowired val mockMvc: MockMvc) {
         every { platformRepo.save<PlatformEntity>(any()) } returns platform
         every { endpointRepo.deleteByPlatformID(platform.id) } returns mockk()
         every { endpointRepo.save<EndpointEntity>(any()) } returns mockk()
+        every { hubClientInfoSubscriberService.update(platform.id!!, any(), any()) } just Runs
+        every { connectionHeartbeatService.evict(platform.id!!) } just Runs
         every { roleRepo.findAllByPlatformID(platform.id) } returns listOf()
         every { roleRepo.deleteByPlatformID(platform.id) } returns mockk()
         every { roleRepo.saveAll(any<List<RoleEntity>>())} returns mockk()
@@ -208,6 +220,8 @@ class CredentialsControllerTest(@Autowired val mockMvc: MockMvc) {
         every { roleRepo.deleteByPlatformID(platform.id) } just Runs
         every { endpointRepo.deleteByPlatformID(platform.id) } just Runs
         every { ocnRulesListRepo.deleteByPlatformID(platform.id) } just Runs
+        every { hubClientInfoSubscriberService.remove(platform.id!!) } just Runs
+        every { connectionHeartbeatService.evict(platform.id!!) } just Runs
         
         mockMvc.perform(delete("/ocpi/2.2/credentials")
                 .header("Authorization", "Token ${platform.auth.tokenC}"))
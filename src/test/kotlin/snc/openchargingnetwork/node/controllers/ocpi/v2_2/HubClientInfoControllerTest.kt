@@ -8,17 +8,21 @@ import org.hamcrest.Matchers
 import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest
+import org.springframework.data.domain.PageImpl
 import org.springframework.http.HttpMethod
 import org.springframework.http.MediaType
 import org.springframework.test.web.servlet.MockMvc
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers
+import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.data.exampleClientInfo
 import snc.openchargingnetwork.node.models.OcnHeaders
 import snc.openchargingnetwork.node.models.ocpi.*
+import snc.openchargingnetwork.node.repositories.OffsetPageRequest
 import snc.openchargingnetwork.node.services.HubClientInfoService
 import snc.openchargingnetwork.node.services.RoutingService
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import snc.openchargingnetwork.node.tools.getInstant
 import snc.openchargingnetwork.node.tools.getTimestamp
 
 @WebMvcTest(HubClientInfoController::class)
@@ -30,6 +34,9 @@ class HubClientInfoControllerTest(@Autowired val mockMvc: MockMvc) {
     @MockkBean
     lateinit var routingService: RoutingService
 
+    @MockkBean
+    lateinit var properties: NodeProperties
+
     @Test
     fun `When GET sender HubClientInfo return paginated clientInfo list`() {
 
@@ -50,8 +57,10 @@ class HubClientInfoControllerTest(@Autowired val mockMvc: MockMvc) {
                         receiver = receiver),
                 queryParams = mapOf("date_from" to dateFrom))
 
-        every { hubClientInfoService.getList(requestVariables.headers.authorization) } returns listOf(exampleClientInfo)
+        every { hubClientInfoService.getPage(requestVariables.headers.authorization, getInstant(dateFrom), null, 0, 1000) } returns
+                PageImpl(listOf(exampleClientInfo))
         every { routingService.checkSenderKnown(requestVariables.headers.authorization, sender) } just Runs
+        every { properties.clientInfoPageLimit } returns 1000
 
         mockMvc.perform(MockMvcRequestBuilders.get("/ocpi/2.2/hubclientinfo")
                 .header("Authorization", "Token token-c")
@@ -65,13 +74,73 @@ class HubClientInfoControllerTest(@Autowired val mockMvc: MockMvc) {
                 .andExpect(MockMvcResultMatchers.status().isOk)
                 .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_JSON))
                 .andExpect(MockMvcResultMatchers.header().string("X-Total-Count", "1"))
-                .andExpect(MockMvcResultMatchers.header().string("X-Limit", "1"))
+                .andExpect(MockMvcResultMatchers.header().string("X-Limit", "1000"))
+                .andExpect(MockMvcResultMatchers.header().exists("ETag"))
+                .andExpect(MockMvcResultMatchers.header().doesNotExist("Link"))
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.status_code").value(OcpiStatus.SUCCESS.code))
-                .andExpect(MockMvcResultMatchers.jsonPath("\$.status_message").isString)
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.timestamp").isString)
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.data").isArray)
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.data", Matchers.hasSize<Array<ClientInfo>>(1)))
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.data[0].status").value(exampleClientInfo.status.toString()))
                 .andExpect(MockMvcResultMatchers.jsonPath("\$.data[0].party_id").value(exampleClientInfo.partyID))
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `When GET sender HubClientInfo with offset and limit return page with link to next`() {
+        val sender = BasicRole("EMY", "DE")
+        val dateTo = "2020-01-01T00:00:00Z"
+
+        every { hubClientInfoService.getPage("Token token-c", null, getInstant(dateTo), 1, 1) } returns
+                PageImpl(listOf(exampleClientInfo.copy(partyID = "ZU2")), OffsetPageRequest(1, 1), 3)
+        every { routingService.checkSenderKnown("Token token-c", sender) } just Runs
+        every { properties.clientInfoPageLimit } returns 1000
+        every { properties.url } returns "http://localhost:8080"
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/ocpi/2.2/hubclientinfo")
+                .header("Authorization", "Token token-c")
+                .header("X-Request-ID", generateUUIDv4Token())
+                .header("X-Correlation-ID", generateUUIDv4Token())
+                .header("OCPI-from-country-code", sender.country)
+                .header("OCPI-from-party-id", sender.id)
+                .header("OCPI-to-country-code", "DE")
+                .header("OCPI-to-party-id", "IGY")
+                .param("offset", "1")
+                .param("limit", "1")
+                .param("date_to", dateTo))
+                .andExpect(MockMvcResultMatchers.status().isOk)
+                .andExpect(MockMvcResultMatchers.header().string("X-Total-Count", "3"))
+                .andExpect(MockMvcResultMatchers.header().string("X-Limit", "1"))
+                .andExpect(MockMvcResultMatchers.header().string("Link",
+                        "<http://localhost:8080/ocpi/2.2/hubclientinfo?offset=2&limit=1&date_to=$dateTo>; rel=\"next\""))
+                .andExpect(MockMvcResultMatchers.jsonPath("\$.data", Matchers.hasSize<Array<ClientInfo>>(1)))
+                .andExpect(MockMvcResultMatchers.jsonPath("\$.data[0].party_id").value("ZU2"))
+    }
+
+    @Test
+    fun `When GET sender HubClientInfo with matching ETag return not modified`() {
+        val sender = BasicRole("EMY", "DE")
+
+        every { hubClientInfoService.getPage("Token token-c", null, null, 0, 1000) } returns PageImpl(listOf(exampleClientInfo))
+        every { routingService.checkSenderKnown("Token token-c", sender) } just Runs
+        every { properties.clientInfoPageLimit } returns 1000
+
+        val request = {
+            MockMvcRequestBuilders.get("/ocpi/2.2/hubclientinfo")
+                    .header("Authorization", "Token token-c")
+                    .header("X-Request-ID", generateUUIDv4Token())
+                    .header("X-Correlation-ID", generateUUIDv4Token())
+                    .header("OCPI-from-country-code", sender.country)
+                    .header("OCPI-from-party-id", sender.id)
+                    .header("OCPI-to-country-code", "DE")
+                    .header("OCPI-to-party-id", "IGY")
+        }
+
+        val eTag = mockMvc.perform(request())
+                .andExpect(MockMvcResultMatchers.status().isOk)
+                .andReturn().response.getHeader("ETag")
+
+        mockMvc.perform(request().header("If-None-Match", eTag!!))
+                .andExpect(MockMvcResultMatchers.status().isNotModified)
+                .andExpect(MockMvcResultMatchers.header().string("ETag", eTag))
+    }
+}
@@ -0,0 +1,41 @@
+package snc.openchargingnetwork.node.repositories
+
+import org.assertj.core.api.Assertions.assertThat
+import org.flywaydb.core.Flyway
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager
+import snc.openchargingnetwork.node.models.entities.OcnRules
+import snc.openchargingnetwork.node.models.entities.PlatformEntity
+
+/**
+ * Migrates a database created with the schema of the last release (baseline version 0, as in production) and
+ * validates the entities against the result, as in production (ddl-auto=validate).
+ */
+@DataJpaTest(properties = [
+    "spring.datasource.url=jdbc:h2:mem:baseline;DB_CLOSE_DELAY=-1;INIT=RUNSCRIPT FROM 'classpath:db/baseline/h2_schema.sql'",
+    "spring.flyway.baseline-on-migrate=true",
+    "spring.flyway.baseline-version=0",
+    "spring.jpa.hibernate.ddl-auto=validate"])
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+class MigrationTests @Autowired constructor(
+        val entityManager: TestEntityManager,
+        val flyway: Flyway,
+        val platformRepository: PlatformRepository) {
+
+    @Test
+    fun migrate_fromBaseline() {
+        val applied = flyway.info().applied().map { it.version.version }
+        assertThat(applied).containsExactly("0", "1", "2", "3", "4")
+
+        val platform = PlatformEntity(rules = OcnRules(locationMirror = true, serviceDigest = true))
+        entityManager.persistAndFlush(platform)
+        entityManager.clear()
+        val found = platformRepository.findById(platform.id!!).get()
+        assertThat(found.rules.locationMirror).isEqualTo(true)
+        assertThat(found.rules.deltaSync).isEqualTo(false)
+    }
+
+}
@@ -5,9 +5,12 @@ import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager
+import org.springframework.data.domain.PageRequest
+import snc.openchargingnetwork.node.models.OutboxType
 import snc.openchargingnetwork.node.models.entities.*
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.tools.generateUUIDv4Token
+import java.time.Instant
 
 @DataJpaTest
 class RepositoriesTests @Autowired constructor(
@@ -16,7 +19,8 @@ class RepositoriesTests @Autowired constructor(
         val roleRepository: RoleRepository,
         val endpointRepository: EndpointRepository,
         val proxyResourceRepository: ProxyResourceRepository,
-        val networkClientInfoRepository: NetworkClientInfoRepository) {
+        val networkClientInfoRepository: NetworkClientInfoRepository,
+        val outboxRepository: OutboxRepository) {
 
 
     /**
@@ -66,6 +70,41 @@ class RepositoriesTests @Autowired constructor(
         assertThat(found).isEqualTo(platform2)
     }
 
+    @Test
+    fun platformRepository_updateLastUpdatedByIdAndStatus() {
+        val before = Instant.now().minusSeconds(60)
+        val connected = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = before)
+        val suspended = PlatformEntity(status = ConnectionStatus.SUSPENDED, lastUpdated = before)
+        entityManager.persist(connected)
+        entityManager.persist(suspended)
+        entityManager.flush()
+
+        val now = Instant.now()
+        assertThat(platformRepository.updateLastUpdatedByIdAndStatus(connected.id!!, ConnectionStatus.CONNECTED, now)).isEqualTo(1)
+        assertThat(platformRepository.updateLastUpdatedByIdAndStatus(suspended.id!!, ConnectionStatus.CONNECTED, now)).isEqualTo(0)
+        assertThat(platformRepository.updateLastUpdatedByIdAndStatus(connected.id!!, ConnectionStatus.CONNECTED, before)).isEqualTo(0)
+    }
+
+    @Test
+    fun platformRepository_findByStatusInAndLastUpdatedBefore() {
+        val cutoff = Instant.now().minusSeconds(60)
+        val stale1 = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = cutoff.minusSeconds(1))
+        val stale2 = PlatformEntity(status = ConnectionStatus.OFFLINE, lastUpdated = cutoff.minusSeconds(120))
+        val stale3 = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = cutoff.minusSeconds(5))
+        val recent = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = cutoff.plusSeconds(1))
+        val suspended = PlatformEntity(status = ConnectionStatus.SUSPENDED, lastUpdated = cutoff.minusSeconds(1))
+        listOf(stale1, stale2, stale3, recent, suspended).forEach { entityManager.persist(it) }
+        entityManager.flush()
+
+        val statuses = listOf(ConnectionStatus.CONNECTED, ConnectionStatus.OFFLINE)
+        val page1 = platformRepository.findByStatusInAndLastUpdatedBeforeAndIdGreaterThanOrderByIdAsc(
+                statuses, cutoff, 0L, PageRequest.of(0, 2))
+        assertThat(page1).containsExactly(stale1, stale2)
+        val page2 = platformRepository.findByStatusInAndLastUpdatedBeforeAndIdGreaterThanOrderByIdAsc(
+                statuses, cutoff, stale2.id!!, PageRequest.of(0, 2))
+        assertThat(page2).containsExactly(stale3)
+    }
+
 
     /**
      *   RoleRepository Tests
@@ -111,6 +150,60 @@ class RepositoriesTests @Autowired constructor(
         assertThat(roleRepository.findAll()).isEqualTo(listOf(role3))
     }
 
+    @Test
+    fun roleRepository_findAllWithStatusUpdatedBetween() {
+        val from = Instant.parse("2020-01-01T00:00:00Z")
+        val to = Instant.parse("2020-02-01T00:00:00Z")
+        val platform = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = from)
+        val laterPlatform = PlatformEntity(status = ConnectionStatus.CONNECTED, lastUpdated = to)
+        val requester = PlatformEntity(rules = OcnRules(whitelist = true))
+        listOf(platform, laterPlatform, requester).forEach { entityManager.persist(it) }
+        val role1 = RoleEntity(platform.id!!, Role.CPO, BusinessDetails("S&C"), "SNC", "DE")
+        val role2 = RoleEntity(platform.id!!, Role.EMSP, BusinessDetails("eMobilify"), "EMO", "DE")
+        val role3 = RoleEntity(platform.id!!, Role.NSP, BusinessDetails("NSP"), "NSP", "DE")
+        val role4 = RoleEntity(laterPlatform.id!!, Role.CPO, BusinessDetails("Later"), "LAT", "DE")
+        listOf(role1, role2, role3, role4).forEach { entityManager.persist(it) }
+        listOf(BasicRole("snc", "de"), BasicRole("NSP", "DE"), BasicRole("LAT", "DE")).forEach {
+            entityManager.persist(OcnRulesListEntity(requester.id!!, it))
+        }
+        entityManager.flush()
+
+        // all roles updated before date_to, from the second onwards
+        val all = roleRepository.findAllWithStatusUpdatedBetween(requester.id, false, false, from, to, OffsetPageRequest(1, 5))
+        assertThat(all.map { it.partyID }).containsExactly("EMO", "NSP")
+        assertThat(roleRepository.countWithStatusUpdatedBetween(requester.id, false, false, from, to)).isEqualTo(3)
+
+        // only roles on the whitelist of the requesting platform (ignoring case)
+        val whitelisted = roleRepository.findAllWithStatusUpdatedBetween(requester.id, true, false, from, to, OffsetPageRequest(0, 5))
+        assertThat(whitelisted.map { it.partyID }).containsExactly("SNC", "NSP")
+        assertThat(whitelisted[0].status).isEqualTo(ConnectionStatus.CONNECTED)
+        assertThat(roleRepository.countWithStatusUpdatedBetween(requester.id, true, false, from, to)).isEqualTo(2)
+
+        // only roles not on the blacklist of the requesting platform
+        val notBlacklisted = roleRepository.findAllWithStatusUpdatedBetween(requester.id, false, true, from, to, OffsetPageRequest(0, 5))
+        assertThat(notBlacklisted.map { it.partyID }).containsExactly("EMO")
+    }
+
+    @Test
+    fun roleRepository_findAllWhitelisting() {
+        val whitelisting = PlatformEntity(rules = OcnRules(whitelist = true))
+        val otherModule = PlatformEntity(rules = OcnRules(whitelist = true))
+        val blacklisting = PlatformEntity(rules = OcnRules(blacklist = true))
+        listOf(whitelisting, otherModule, blacklisting).forEach { entityManager.persist(it) }
+        val role1 = RoleEntity(whitelisting.id!!, Role.EMSP, BusinessDetails("eMobilify"), "EMO", "DE")
+        val role2 = RoleEntity(whitelisting.id!!, Role.NSP, BusinessDetails("NSP"), "NSP", "DE")
+        val role3 = RoleEntity(otherModule.id!!, Role.EMSP, BusinessDetails("Other"), "OTH", "DE")
+        val role4 = RoleEntity(blacklisting.id!!, Role.EMSP, BusinessDetails("Black"), "BLK", "DE")
+        listOf(role1, role2, role3, role4).forEach { entityManager.persist(it) }
+        entityManager.persist(OcnRulesListEntity(whitelisting.id!!, BasicRole("snc", "de"), listOf("locations", "tariffs")))
+        entityManager.persist(OcnRulesListEntity(otherModule.id!!, BasicRole("SNC", "DE"), listOf("tariffs")))
+        entityManager.persist(OcnRulesListEntity(blacklisting.id!!, BasicRole("SNC", "DE"), listOf("locations")))
+        entityManager.flush()
+
+        val roles = roleRepository.findAllWhitelisting("DE", "SNC", "locations")
+        assertThat(roles.map { it.partyID }).containsExactly("EMO", "NSP")
+    }
+
 
     /**
      *   EndpointRepository Tests
@@ -211,4 +304,54 @@ class RepositoriesTests @Autowired constructor(
 
 
     }
-}
\ No newline at end of file
+
+    @Test
+    fun networkClientInfoRepository_findAllUpdatedBetween() {
+        val from = Instant.parse("2020-01-01T00:00:00Z")
+        val to = Instant.parse("2020-02-01T00:00:00Z")
+        val before = NetworkClientInfoEntity(BasicRole("OLD", "DE"), Role.CPO, ConnectionStatus.PLANNED, from.minusSeconds(1))
+        val info1 = NetworkClientInfoEntity(BasicRole("SNC", "DE"), Role.CPO, ConnectionStatus.PLANNED, from)
+        val info2 = NetworkClientInfoEntity(BasicRole("EMO", "DE"), Role.EMSP, ConnectionStatus.PLANNED, from.plusSeconds(1))
+        val after = NetworkClientInfoEntity(BasicRole("NEW", "DE"), Role.CPO, ConnectionStatus.PLANNED, to)
+        listOf(before, info1, info2, after).forEach { entityManager.persist(it) }
+        entityManager.persist(OcnRulesListEntity(1L, BasicRole("snc", "de")))
+        entityManager.flush()
+
+        assertThat(networkClientInfoRepository.findAllUpdatedBetween(1L, false, false, from, to, OffsetPageRequest(0, 1)))
+                .containsExactly(info1)
+        assertThat(networkClientInfoRepository.countUpdatedBetween(1L, false, false, from, to)).isEqualTo(2)
+        assertThat(networkClientInfoRepository.findAllUpdatedBetween(1L, true, false, from, to, OffsetPageRequest(0, 5)))
+                .containsExactly(info1)
+        assertThat(networkClientInfoRepository.findAllUpdatedBetween(1L, false, true, from, to, OffsetPageRequest(0, 5)))
+                .containsExactly(info2)
+    }
+
+    /**
+     * OutboxRepository Tests
+     */
+
+    @Test
+    fun outboxRepository_findDueAndHeads() {
+        val now = Instant.now()
+        val failed = OutboxEntity(OutboxType.CLIENT_INFO_PUSH, "platform:1", "{}", attempts = 1, nextAttempt = now.plusSeconds(60))
+        val waiting = OutboxEntity(OutboxType.CLIENT_INFO_PUSH, "platform:1", "{}", nextAttempt = now.minusSeconds(1))
+        val due = OutboxEntity(OutboxType.CLIENT_INFO_NODE, "node:https://node.b.net", "{}", nextAttempt = now.minusSeconds(1))
+        val dead = OutboxEntity(OutboxType.CLIENT_INFO_NODE, "node:https://node.b.net", "{}", deadLettered = true, nextAttempt = now.minusSeconds(1))
+        listOf(failed, waiting, due, dead).forEach { entityManager.persist(it) }
+        entityManager.flush()
+
+        val found = outboxRepository.findByDeadLetteredFalseAndNextAttemptLessThanEqualOrderByIdAsc(now, PageRequest.of(0, 10))
+        assertThat(found).containsExactly(waiting, due)
+
+        val heads = outboxRepository.findHeadsByDestinationIn(listOf("platform:1", "node:https://node.b.net"))
+                .associate { it.destination to it.id }
+        assertThat(heads).isEqualTo(mapOf("platform:1" to failed.id, "node:https://node.b.net" to due.id))
+
+        assertThat(outboxRepository.postponeByDestination("platform:1", failed.nextAttempt)).isEqualTo(1)
+        entityManager.clear()
+        assertThat(outboxRepository.findByDeadLetteredFalseAndNextAttemptLessThanEqualOrderByIdAsc(now, PageRequest.of(0, 10))
+                .map { it.id }).containsExactly(due.id)
+        assertThat(outboxRepository.countByDeadLetteredFalse()).isEqualTo(3)
+        assertThat(outboxRepository.findFirstByDeadLetteredFalseOrderByIdAsc()?.id).isEqualTo(failed.id)
+    }
+}
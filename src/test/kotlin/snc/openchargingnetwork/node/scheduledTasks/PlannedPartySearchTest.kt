@@ -6,10 +6,12 @@ import io.mockk.verify
 import org.junit.jupiter.api.Test
 import org.web3j.tuples.generated.Tuple7
 import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
 import snc.openchargingnetwork.node.repositories.NetworkClientInfoRepository
 import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.services.SignatureCacheService
 
 class PlannedPartySearchTest {
 
@@ -25,7 +27,8 @@ class PlannedPartySearchTest {
                 registry,
                 roleRepo,
                 networkClientInfoRepo,
-                properties
+                NodeIdentity(properties),
+                SignatureCacheService(NodeProperties())
         )
     }
 
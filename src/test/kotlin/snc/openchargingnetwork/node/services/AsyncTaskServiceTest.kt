@@ -0,0 +1,147 @@
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.components.OcpiRequestHandler
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.OcnService
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class AsyncTaskServiceTest {
+
+    private val registryService: RegistryService = mockk()
+    private val registry = SimpleMeterRegistry()
+    private val serviceDigestService: ServiceDigestService = mockk()
+    private val outboxService: OutboxService = mockk()
+
+    private val properties = NodeProperties().apply {
+        serviceInterfaceEnabled = true
+        linkedServiceParallelism = 2
+        // kept below the number of workers, i.e. 1 pending request per service
+        linkedServiceMaxPending = 100
+    }
+
+    private val asyncTaskService = AsyncTaskService(registryService, properties, registry, serviceDigestService, outboxService)
+
+    private val slowService = BasicRole("SLO", "DE")
+    private val fastService = BasicRole("FST", "DE")
+
+    private val request = OcpiRequestVariables(
+            module = ModuleID.SESSIONS,
+            interfaceRole = InterfaceRole.RECEIVER,
+            method = HttpMethod.PUT,
+            headers = OcnHeaders(
+                    authorization = "Token token-c",
+                    requestID = "1",
+                    correlationID = "1",
+                    sender = BasicRole("ABC", "DE"),
+                    receiver = BasicRole("MSP", "NL")))
+
+    @AfterAll
+    fun tearDown() {
+        every { serviceDigestService.takeAll() } returns listOf<ServiceDigestService.Digest>()
+        asyncTaskService.shutdown()
+    }
+
+    @Test
+    fun `forwardOcpiRequestToLinkedServices defers requests exceeding the limit of a slow service to the outbox`() {
+        val release = CountDownLatch(1)
+        val forwarded = CountDownLatch(2)
+        val requestHandler: OcpiRequestHandler<*> = mockk()
+
+        every { requestHandler.request } returns request
+        every { serviceDigestService.isEnabled(any()) } returns false
+        every { registryService.getAgreementsByInterface(request.headers.sender, request.module, request.interfaceRole) } returns
+                sequenceOf(OcnService(slowService, listOf()), OcnService(fastService, listOf()))
+        every { requestHandler.forwardAgain(slowService) } answers {
+            release.await(5, TimeUnit.SECONDS)
+            mockk()
+        }
+        every { requestHandler.forwardAgain(fastService) } answers {
+            forwarded.countDown()
+            mockk()
+        }
+        val copy = request.copy(headers = request.headers.copy(receiver = slowService))
+        every { requestHandler.copyFor(slowService) } returns copy
+        every { outboxService.addLinkedServiceRequest(slowService, copy) } returns Unit
+
+        asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler)
+        asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler)
+
+        assertThat(forwarded.await(5, TimeUnit.SECONDS)).isTrue()
+        release.countDown()
+
+        verify(timeout = 5000, exactly = 1) { requestHandler.forwardAgain(slowService) }
+        verify(exactly = 1) { outboxService.addLinkedServiceRequest(slowService, copy) }
+        val deferred = registry.counter("ocn.linked_services.deferred", "service", "DESLO", "reason", "service_limit")
+        assertThat(deferred.count()).isEqualTo(1.0)
+    }
+
+    @Test
+    fun `forwardOcpiRequestToLinkedServices adds failed requests to the outbox`() {
+        val failingService = BasicRole("FAI", "DE")
+        val copy = request.copy(headers = request.headers.copy(receiver = failingService))
+        val requestHandler: OcpiRequestHandler<*> = mockk()
+
+        every { requestHandler.request } returns request
+        every { serviceDigestService.isEnabled(failingService) } returns false
+        every { registryService.getAgreementsByInterface(request.headers.sender, request.module, request.interfaceRole) } returns
+                sequenceOf(OcnService(failingService, listOf()))
+        every { requestHandler.forwardAgain(failingService) } throws IllegalStateException("connection refused")
+        every { requestHandler.copyFor(failingService) } returns copy
+        every { outboxService.addLinkedServiceRequest(failingService, copy) } returns Unit
+
+        asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler)
+
+        verify(timeout = 5000, exactly = 1) { outboxService.addLinkedServiceRequest(failingService, copy) }
+    }
+
+    @Test
+    fun `forwardOcpiRequestToLinkedServices adds the requests of failed digests to the outbox`() {
+        val digestService = BasicRole("DIG", "DE")
+        val copy = request.copy(headers = request.headers.copy(receiver = digestService))
+        val digest = ServiceDigestService.Digest(digestService, request.headers.sender).apply { messages.add(copy) }
+        val requestHandler: OcpiRequestHandler<*> = mockk()
+
+        every { requestHandler.request } returns request
+        every { serviceDigestService.isEnabled(digestService) } returns true
+        every { registryService.getAgreementsByInterface(request.headers.sender, request.module, request.interfaceRole) } returns
+                sequenceOf(OcnService(digestService, listOf()))
+        every { requestHandler.copyFor(digestService) } returns copy
+        every { serviceDigestService.add(copy) } returns digest
+        every { serviceDigestService.deliver(digest) } throws IllegalStateException("connection refused")
+        every { outboxService.addLinkedServiceRequest(digestService, copy) } returns Unit
+
+        asyncTaskService.forwardOcpiRequestToLinkedServices(requestHandler)
+
+        verify(timeout = 5000, exactly = 1) { outboxService.addLinkedServiceRequest(digestService, copy) }
+    }
+
+    @Test
+    fun `shutdown adds the requests of open digests to the outbox`() {
+        val service = AsyncTaskService(registryService, properties, registry, serviceDigestService, outboxService)
+        val digestService = BasicRole("OPN", "DE")
+        val copy = request.copy(headers = request.headers.copy(receiver = digestService))
+        val digest = ServiceDigestService.Digest(digestService, request.headers.sender).apply { messages.add(copy) }
+
+        every { serviceDigestService.takeAll() } returns listOf(digest)
+        every { outboxService.addLinkedServiceRequest(digestService, copy) } returns Unit
+
+        service.shutdown()
+
+        verify(exactly = 1) { outboxService.addLinkedServiceRequest(digestService, copy) }
+    }
+
+}
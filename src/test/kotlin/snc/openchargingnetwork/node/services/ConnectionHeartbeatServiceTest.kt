@@ -0,0 +1,124 @@
+package snc.openchargingnetwork.node.services
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Test
+import org.springframework.transaction.support.TransactionCallback
+import org.springframework.transaction.support.TransactionTemplate
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.entities.PlatformEntity
+import snc.openchargingnetwork.node.models.entities.RoleEntity
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.BusinessDetails
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+import snc.openchargingnetwork.node.models.ocpi.Role
+import snc.openchargingnetwork.node.repositories.PlatformRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
+import java.time.Instant
+
+class ConnectionHeartbeatServiceTest {
+
+    private val platformRepo: PlatformRepository = mockk()
+    private val roleRepo: RoleRepository = mockk()
+    private val transactionTemplate: TransactionTemplate = mockk()
+
+    // long interval, so that batches are only written when flushed by the test
+    private val properties = NodeProperties().apply { heartbeatFlushInterval = 3600000 }
+
+    private val connectionHeartbeatService = ConnectionHeartbeatService(platformRepo, roleRepo, transactionTemplate, properties)
+
+    init {
+        every { transactionTemplate.execute(any<TransactionCallback<Any?>>()) } answers {
+            firstArg<TransactionCallback<Any?>>().doInTransaction(mockk())
+        }
+    }
+
+    @AfterAll
+    fun tearDown() {
+        connectionHeartbeatService.shutdown()
+    }
+
+    @Test
+    fun `renew writes status change straight away and last seen time in batches`() {
+        val sender = BasicRole("ABC", "DE")
+        val platform = PlatformEntity(status = ConnectionStatus.OFFLINE, lastUpdated = Instant.parse("2020-01-01T00:00:00Z"), id = 5L)
+
+        every { roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase("DE", "ABC") } returns RoleEntity(
+                platformID = 5L, role = Role.CPO, businessDetails = BusinessDetails(name = "ABC"), partyID = "ABC", countryCode = "DE")
+        every { platformRepo.findLockedById(5L) } returns platform
+        every { platformRepo.save(platform) } returns platform
+        every { platformRepo.updateLastUpdatedByIdAndStatus(5L, ConnectionStatus.CONNECTED, any()) } returns 1
+        every { platformRepo.findIdsByStatus(ConnectionStatus.CONNECTED) } returns listOf(5L)
+
+        connectionHeartbeatService.renew(sender)
+        assertThat(platform.status).isEqualTo(ConnectionStatus.CONNECTED)
+        val reconnected = platform.lastUpdated
+
+        Thread.sleep(5)
+        connectionHeartbeatService.renew(sender)
+        connectionHeartbeatService.renew(sender)
+        verify(exactly = 1) { platformRepo.save(platform) }
+        verify(exactly = 1) { roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase("DE", "ABC") }
+
+        connectionHeartbeatService.flush()
+        verify(exactly = 1) {
+            platformRepo.updateLastUpdatedByIdAndStatus(5L, ConnectionStatus.CONNECTED, match { it.isAfter(reconnected) })
+        }
+
+        // nothing seen since
+        connectionHeartbeatService.flush()
+        verify(exactly = 1) { platformRepo.updateLastUpdatedByIdAndStatus(any(), any(), any()) }
+    }
+
+    @Test
+    fun `flush refreshes connected platforms instead of confirming each by its next request`() {
+        val sender = BasicRole("DEF", "DE")
+        val platform = PlatformEntity(status = ConnectionStatus.CONNECTED, id = 7L)
+
+        every { roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase("DE", "DEF") } returns RoleEntity(
+                platformID = 7L, role = Role.CPO, businessDetails = BusinessDetails(name = "DEF"), partyID = "DEF", countryCode = "DE")
+        every { platformRepo.findLockedById(7L) } returns platform
+        every { platformRepo.save(platform) } returns platform
+        every { platformRepo.findIdsByStatus(ConnectionStatus.CONNECTED) } returns listOf(7L)
+        // already up to date
+        every { platformRepo.updateLastUpdatedByIdAndStatus(7L, ConnectionStatus.CONNECTED, any()) } returns 0
+
+        connectionHeartbeatService.renew(sender)
+        connectionHeartbeatService.flush()
+        connectionHeartbeatService.renew(sender)
+        verify(exactly = 1) { platformRepo.findLockedById(7L) }
+
+        // set offline by the still-alive check; reconnected, as it has been seen since
+        platform.status = ConnectionStatus.OFFLINE
+        every { platformRepo.findIdsByStatus(ConnectionStatus.CONNECTED) } returns listOf<Long>()
+        connectionHeartbeatService.flush()
+        connectionHeartbeatService.renew(sender)
+        assertThat(platform.status).isEqualTo(ConnectionStatus.CONNECTED)
+        verify(exactly = 1) { platformRepo.save(platform) }
+    }
+
+    @Test
+    fun `flush does not reconnect unregistered platforms and evict forgets their roles`() {
+        val sender = BasicRole("SUS", "DE")
+        val platform = PlatformEntity(status = ConnectionStatus.SUSPENDED, id = 6L)
+
+        every { roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase("DE", "SUS") } returns RoleEntity(
+                platformID = 6L, role = Role.CPO, businessDetails = BusinessDetails(name = "SUS"), partyID = "SUS", countryCode = "DE")
+        every { platformRepo.findLockedById(6L) } returns platform
+        every { platformRepo.updateLastUpdatedByIdAndStatus(6L, ConnectionStatus.CONNECTED, any()) } returns 0
+        every { platformRepo.findIdsByStatus(ConnectionStatus.CONNECTED) } returns listOf<Long>()
+
+        connectionHeartbeatService.renew(sender)
+        connectionHeartbeatService.flush()
+        assertThat(platform.status).isEqualTo(ConnectionStatus.SUSPENDED)
+        verify(exactly = 0) { platformRepo.save(platform) }
+
+        connectionHeartbeatService.evict(6L)
+        connectionHeartbeatService.renew(sender)
+        verify(exactly = 2) { roleRepo.findByCountryCodeAndPartyIDAllIgnoreCase("DE", "SUS") }
+    }
+
+}
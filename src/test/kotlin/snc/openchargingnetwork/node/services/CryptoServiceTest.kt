@@ -0,0 +1,35 @@
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
+
+class CryptoServiceTest {
+
+    private val registry = SimpleMeterRegistry()
+
+    private val cryptoService = CryptoService(NodeProperties().apply { cryptoParallelism = 1 }, registry)
+
+    @Test
+    fun `run returns result of operation on worker`() {
+        val thread = cryptoService.run("test") { Thread.currentThread().name }
+        assertThat(thread).startsWith("ocn-crypto-")
+        assertThat(registry.timer("ocn.crypto.operations", "operation", "test").count()).isGreaterThanOrEqualTo(1)
+    }
+
+    @Test
+    fun `run rethrows exception of operation`() {
+        assertThatThrownBy { cryptoService.run("test") { throw IllegalArgumentException("bad signature") } }
+                .isInstanceOf(IllegalArgumentException::class.java)
+                .hasMessage("bad signature")
+    }
+
+    @Test
+    fun `operations started by a worker run directly`() {
+        val result = cryptoService.run("outer") { cryptoService.run("inner") { 42 } }
+        assertThat(result).isEqualTo(42)
+    }
+
+}
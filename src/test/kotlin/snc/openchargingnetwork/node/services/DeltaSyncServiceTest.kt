@@ -0,0 +1,202 @@
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.mockk.clearMocks
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.entities.OcnRules
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientUnknownLocationException
+import snc.openchargingnetwork.node.models.ocpi.*
+
+class DeltaSyncServiceTest {
+
+    private val routingService: RoutingService = mockk()
+    private val httpService: HttpService = mockk()
+    private val properties = NodeProperties().apply { deltaSyncEnabled = true; deltaSyncMinInterval = 0 }
+
+    private lateinit var deltaSyncService: DeltaSyncService
+
+    private val headers = OcnHeaders(
+            authorization = "Token token-c",
+            requestID = "1",
+            correlationID = "1",
+            sender = BasicRole("MSP", "DE"),
+            receiver = BasicRole("CPO", "DE"))
+
+    private val upstreamHeaders = headers.copy(authorization = "Token token-b")
+
+    @BeforeEach
+    fun setUp() {
+        clearMocks(routingService, httpService)
+        deltaSyncService = DeltaSyncService(properties, routingService, httpService)
+        every { httpService.mapper } returns jacksonObjectMapper()
+        every { routingService.getPlatformRules(headers.receiver) } returns OcnRules(deltaSync = true)
+        every { routingService.prepareLocalPlatformRequest(any(), any()) } returns Pair("https://cpo.com/locations", upstreamHeaders)
+    }
+
+    private fun request(queryParams: Map<String, Any?>? = null, proxyResource: String? = null) = OcpiRequestVariables(
+            module = ModuleID.LOCATIONS,
+            interfaceRole = InterfaceRole.SENDER,
+            method = HttpMethod.GET,
+            headers = headers,
+            queryParams = queryParams,
+            proxyResource = proxyResource)
+
+    private fun location(id: String, address: String) = mapOf(
+            "country_code" to "DE",
+            "party_id" to "CPO",
+            "id" to id,
+            "address" to address)
+
+    private fun ids(response: HttpResponse<Any>?): List<String> {
+        @Suppress("UNCHECKED_CAST")
+        return (response?.body?.data as List<JsonNode>).map { it.get("id").asText() }
+    }
+
+    @Test
+    fun `getResponse merges delta into snapshot`() {
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), match<OcpiRequestVariables> { it.queryParams?.get("date_from") == null }) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"), location("LOC2", "b"))))
+
+        val first = deltaSyncService.getResponse(request(), false) { false }
+        assertThat(ids(first)).containsExactly("LOC1", "LOC2")
+        assertThat(first?.headers?.get("X-Total-Count")).isEqualTo("2")
+
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), match<OcpiRequestVariables> { it.queryParams?.get("date_from") != null }) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "c"), location("LOC3", "d"))))
+
+        val second = deltaSyncService.getResponse(request(), false) { false }
+        assertThat(ids(second)).containsExactly("LOC2", "LOC1", "LOC3")
+
+        verify(exactly = 1) { httpService.makeOcpiRequest<Any>(any<String>(), any(), match<OcpiRequestVariables> { it.queryParams?.get("date_from") == null }) }
+        verify(exactly = 1) { httpService.makeOcpiRequest<Any>(any<String>(), any(), match<OcpiRequestVariables> { it.queryParams?.get("date_from") != null }) }
+    }
+
+    @Test
+    fun `getResponse does not sync within minimum interval`() {
+        val service = DeltaSyncService(NodeProperties().apply { deltaSyncEnabled = true; deltaSyncMinInterval = 60000 },
+                routingService, httpService)
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"))))
+
+        service.getResponse(request(), false) { false }
+        val second = service.getResponse(request(), false) { false }
+        assertThat(ids(second)).containsExactly("LOC1")
+
+        verify(exactly = 1) { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) }
+    }
+
+    @Test
+    fun `getResponse forwards lists exceeding maximum objects`() {
+        val service = DeltaSyncService(NodeProperties().apply { deltaSyncEnabled = true; deltaSyncMaxObjects = 1 },
+                routingService, httpService)
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"), location("LOC2", "b"))))
+
+        assertThat(service.getResponse(request(), false) { false }).isNull()
+        assertThat(service.getResponse(request(), false) { false }).isNull()
+
+        // not synced again until the next full sync is due
+        verify(exactly = 1) { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) }
+    }
+
+    @Test
+    fun `getResponse serves following pages from snapshot`() {
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"), location("LOC2", "b"))))
+
+        val first = deltaSyncService.getResponse(request(mapOf("limit" to 1)), false) { false }
+        assertThat(ids(first)).containsExactly("LOC1")
+        assertThat(first?.headers?.get("X-Limit")).isEqualTo("1")
+
+        val link = first?.headers?.get("Link")?.substringAfter("<")?.substringBefore(">")
+        val second = deltaSyncService.getResponse(request(proxyResource = link), false) { false }
+        assertThat(ids(second)).containsExactly("LOC2")
+        assertThat(second?.headers?.get("Link")).isNull()
+    }
+
+    @Test
+    fun `getResponse evicts least recently used snapshots`() {
+        val service = DeltaSyncService(NodeProperties().apply { deltaSyncEnabled = true; deltaSyncMaxSnapshots = 1 },
+                routingService, httpService)
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"))))
+
+        service.getResponse(request(), false) { false }
+        service.getResponse(request().copy(module = ModuleID.TARIFFS), false) { false }
+        service.getResponse(request(), false) { false }
+
+        // the locations snapshot was evicted by the tariffs snapshot, so is rebuilt from a full list
+        verify(exactly = 3) { httpService.makeOcpiRequest<Any>(any<String>(), any(), match<OcpiRequestVariables> { it.queryParams?.get("date_from") == null }) }
+    }
+
+    @Test
+    fun `getResponse does not serve following pages if receiver has opted out`() {
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"), location("LOC2", "b"))))
+
+        val first = deltaSyncService.getResponse(request(mapOf("limit" to 1)), false) { false }
+        val link = first?.headers?.get("Link")?.substringAfter("<")?.substringBefore(">")
+
+        every { routingService.getPlatformRules(headers.receiver) } returns OcnRules()
+        assertThatThrownBy { deltaSyncService.getResponse(request(proxyResource = link), false) { false } }
+                .isInstanceOf(OcpiClientUnknownLocationException::class.java)
+    }
+
+    @Test
+    fun `getResponse does not serve following pages if signing is required`() {
+        every { httpService.makeOcpiRequest<Any>(any<String>(), any(), any()) } returns HttpResponse(
+                statusCode = 200,
+                headers = mapOf(),
+                body = OcpiResponse(statusCode = 1000, data = listOf(location("LOC1", "a"), location("LOC2", "b"))))
+
+        val first = deltaSyncService.getResponse(request(mapOf("limit" to 1)), false) { false }
+        val link = first?.headers?.get("Link")?.substringAfter("<")?.substringBefore(">")
+
+        assertThatThrownBy { deltaSyncService.getResponse(request(proxyResource = link), false) { true } }
+                .isInstanceOf(OcpiClientUnknownLocationException::class.java)
+    }
+
+    @Test
+    fun `getResponse forwards filtered requests`() {
+        assertThat(deltaSyncService.getResponse(request(mapOf("date_from" to "2020-01-01T00:00:00Z")), false) { false }).isNull()
+        assertThat(deltaSyncService.getResponse(request(mapOf("offset" to 10)), false) { false }).isNull()
+        assertThat(deltaSyncService.getResponse(request(proxyResource = "https://cpo.com/locations?offset=10"), false) { false }).isNull()
+    }
+
+    @Test
+    fun `getResponse forwards requests if signing is required`() {
+        assertThat(deltaSyncService.getResponse(request(), false) { true }).isNull()
+    }
+
+    @Test
+    fun `getResponse forwards requests if receiver has not opted in`() {
+        every { routingService.getPlatformRules(headers.receiver) } returns OcnRules()
+        assertThat(deltaSyncService.getResponse(request(), false) { false }).isNull()
+    }
+
+}
@@ -6,6 +6,12 @@ import io.mockk.mockkStatic
 import khttp.responses.Response
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
 
 class HttpServiceTest {
 
@@ -42,4 +48,41 @@ class HttpServiceTest {
         assertThat(firstVersion.version).isEqualTo(versionNumber)
         assertThat(firstVersion.url).isEqualTo(versionUrl)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun extractRawBody() {
+        val body = """{ "id":"LOC1",  "evses": [ {"uid": "1"} ], "name": "a \"body\": b" }"""
+        val request = """{"module":"locations","body":$body,"headers":{"body":null}}"""
+
+        assertThat(httpService.extractRawBody(request)).isEqualTo(body)
+    }
+
+    @Test
+    fun toSmile() {
+        val requestVariables = OcpiRequestVariables(
+                module = ModuleID.LOCATIONS,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PUT,
+                headers = OcnHeaders(
+                        authorization = "Token token-c",
+                        requestID = "1",
+                        correlationID = "2",
+                        sender = BasicRole("EMY", "DE"),
+                        receiver = BasicRole("IGY", "DE")),
+                urlPath = "DE/IGY/LOC1",
+                body = mapOf("id" to "LOC1", "evses" to listOf(mapOf("uid" to "1"))))
+        val request = httpService.mapper.writeValueAsString(requestVariables)
+
+        val smile = httpService.toSmile(request)
+        assertThat(smile.size).isLessThan(request.length)
+        assertThat(httpService.convertToRequestVariables(smile)).isEqualTo(httpService.convertToRequestVariables(request))
+    }
+
+    @Test
+    fun extractRawBody_returnsNullWithoutObjectBody() {
+        assertThat(httpService.extractRawBody("""{"module":"locations","body":null}""")).isNull()
+        assertThat(httpService.extractRawBody("""{"module":"locations","body":"text"}""")).isNull()
+        assertThat(httpService.extractRawBody("""{"module":"locations"}""")).isNull()
+        assertThat(httpService.extractRawBody("""{"body":{"a":1},"body":{"a":2}}""")).isNull()
+    }
+}
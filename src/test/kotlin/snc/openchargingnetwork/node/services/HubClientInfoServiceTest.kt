@@ -1,31 +1,44 @@
 package snc.openchargingnetwork.node.services
 
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import io.mockk.every
 import io.mockk.mockk
+import io.mockk.verify
 import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
 import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.data.examplePlatforms
 import snc.openchargingnetwork.node.data.exampleRoles
-import snc.openchargingnetwork.node.models.entities.EndpointEntity
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnNodeFeature
+import snc.openchargingnetwork.node.models.OutboxClientInfoNodeUpdate
+import snc.openchargingnetwork.node.models.entities.NetworkClientInfoEntity
+import snc.openchargingnetwork.node.models.entities.OcnRules
 import snc.openchargingnetwork.node.models.entities.PlatformEntity
+import snc.openchargingnetwork.node.models.exceptions.OcpiServerGenericException
 import snc.openchargingnetwork.node.models.ocpi.*
-import snc.openchargingnetwork.node.repositories.EndpointRepository
 import snc.openchargingnetwork.node.repositories.NetworkClientInfoRepository
 import snc.openchargingnetwork.node.repositories.PlatformRepository
 import snc.openchargingnetwork.node.repositories.RoleRepository
+import snc.openchargingnetwork.node.repositories.RoleStatusView
 import snc.openchargingnetwork.node.tools.getTimestamp
+import java.time.Instant
 
 class HubClientInfoServiceTest {
 
     private val platformRepo: PlatformRepository = mockk()
     private val roleRepo: RoleRepository = mockk()
-    private val endpointRepo: EndpointRepository = mockk()
     private val networkClientInfoRepo: NetworkClientInfoRepository = mockk()
     private val httpService: HttpService = mockk()
     private val routingService: RoutingService = mockk()
     private val walletService: WalletService = mockk()
     private val ocnRulesService: OcnRulesService = mockk()
-    private val registryService: RegistryService = mockk()
+    private val channelService: OcnChannelService = mockk()
+    private val nodeFeatureService: NodeFeatureService = mockk()
+    private val connectionHeartbeatService: ConnectionHeartbeatService = mockk()
+    private val hubClientInfoSubscriberService: HubClientInfoSubscriberService = mockk()
+    private val properties = NodeProperties()
 
     private val hubClientInfoService: HubClientInfoService
 
@@ -33,34 +46,73 @@ class HubClientInfoServiceTest {
         hubClientInfoService = HubClientInfoService(
                 platformRepo,
                 roleRepo,
-                endpointRepo,
                 networkClientInfoRepo,
                 httpService,
                 routingService,
                 walletService,
                 ocnRulesService,
-                registryService)
+                channelService,
+                nodeFeatureService,
+                connectionHeartbeatService,
+                hubClientInfoSubscriberService,
+                properties)
     }
 
     @Test
-    fun getList() {
-        every { platformRepo.findByAuth_TokenC("123123") } returns examplePlatforms[0]
+    fun `getList lists all roles whitelisted by the requesting platform`() {
+        val since = Instant.parse("2020-01-01T00:00:00Z")
+        val platform = PlatformEntity(rules = OcnRules(whitelist = true), id = 7L)
+        val localRole = object : RoleStatusView {
+            override val partyID = "DEF"
+            override val countryCode = "CH"
+            override val role = Role.CPO
+            override val status = ConnectionStatus.CONNECTED
+            override val lastUpdated = since
+        }
 
-        every { platformRepo.findAll() } returns examplePlatforms.asIterable()
+        // the whitelist is applied by the same queries as for a page of the list
+        every { platformRepo.findByAuth_TokenC("123123") } returns platform
+        every { roleRepo.countWithStatusUpdatedBetween(7L, true, false, since, any()) } returns 1
+        every { networkClientInfoRepo.countUpdatedBetween(7L, true, false, since, any()) } returns 1
+        every { roleRepo.findAllWithStatusUpdatedBetween(7L, true, false, since, any(), match {
+            it.offset == 0L }) } returns listOf(localRole)
+        every { networkClientInfoRepo.findAllUpdatedBetween(7L, true, false, since, any(), match {
+            it.offset == 0L }) } returns listOf(NetworkClientInfoEntity(BasicRole("XYZ", "NL"), Role.CPO, ConnectionStatus.OFFLINE))
 
-        every { roleRepo.findAllByPlatformID(1L) } returns exampleRoles.filter { it.platformID == 1L }
-        every { roleRepo.findAllByPlatformID(2L) } returns exampleRoles.filter { it.platformID == 2L }
-        every { roleRepo.findAllByPlatformID(3L) } returns exampleRoles.filter { it.platformID == 3L }
+        val list = hubClientInfoService.getList("Token 123123", since)
+        assertThat(list.map { it.partyID }).containsExactly("DEF", "XYZ")
+        assertThat(list[0].status).isEqualTo(ConnectionStatus.CONNECTED)
+        assertThat(list[1].status).isEqualTo(ConnectionStatus.PLANNED)
+    }
 
-        for (role in exampleRoles) {
-            val basicRole = BasicRole(id = role.partyID, country = role.countryCode)
-            every { ocnRulesService.isWhitelisted(examplePlatforms[0], basicRole) } returns true
+    @Test
+    fun `getPage continues with network roles after local roles`() {
+        val from = Instant.parse("2020-01-01T00:00:00Z")
+        val to = Instant.parse("2020-02-01T00:00:00Z")
+        val platform = examplePlatforms[0]
+        val localRole = object : RoleStatusView {
+            override val partyID = "DEF"
+            override val countryCode = "CH"
+            override val role = Role.CPO
+            override val status = ConnectionStatus.CONNECTED
+            override val lastUpdated = from
         }
 
-        every { networkClientInfoRepo.findAll() } returns listOf()
-        val localList = hubClientInfoService.getList("Token 123123")
-        assertThat(localList.size).isEqualTo(exampleRoles.size)
-        assertThat(localList.filter { it.status == ConnectionStatus.CONNECTED }.size).isEqualTo(3)
+        every { platformRepo.findByAuth_TokenC("123123") } returns platform
+        every { roleRepo.countWithStatusUpdatedBetween(platform.id, false, false, from, to) } returns 2
+        every { networkClientInfoRepo.countUpdatedBetween(platform.id, false, false, from, to) } returns 3
+        every { roleRepo.findAllWithStatusUpdatedBetween(platform.id, false, false, from, to, match {
+            it.offset == 1L && it.pageSize == 3 }) } returns listOf(localRole)
+        every { networkClientInfoRepo.findAllUpdatedBetween(platform.id, false, false, from, to, match {
+            it.offset == 0L && it.pageSize == 2 }) } returns listOf(
+                NetworkClientInfoEntity(BasicRole("ABC", "DE"), Role.EMSP, ConnectionStatus.PLANNED),
+                NetworkClientInfoEntity(BasicRole("XYZ", "NL"), Role.CPO, ConnectionStatus.PLANNED))
+
+        val page = hubClientInfoService.getPage("Token 123123", from, to, 1, 3)
+        assertThat(page.totalElements).isEqualTo(5)
+        assertThat(page.content.map { it.partyID }).containsExactly("DEF", "ABC", "XYZ")
+        assertThat(page.content[0].status).isEqualTo(ConnectionStatus.CONNECTED)
+        assertThat(page.content[2].status).isEqualTo(ConnectionStatus.PLANNED)
     }
 
     @Test
@@ -74,20 +126,105 @@ class HubClientInfoServiceTest {
 
         val updatedPlatform = PlatformEntity(id = 3L)
 
-        every { platformRepo.findAll() } returns examplePlatforms.asIterable()
-        every { roleRepo.findAllByPlatformID(1L) } returns exampleRoles.filter { it.platformID == 1L }
-        every { endpointRepo.findByPlatformIDAndIdentifierAndRole(1L, ModuleID.HUB_CLIENT_INFO.id, InterfaceRole.RECEIVER) } returns EndpointEntity(
-                platformID = 1L,
-                identifier = ModuleID.HUB_CLIENT_INFO.id,
-                role = InterfaceRole.RECEIVER,
-                url = "http://testplatform.com/ocpi/cpo/2.2/clientinfo")
+        // platforms 1 (connected), 2 (offline) and 3 (changed) implement the HubClientInfo receiver interface
+        every { hubClientInfoSubscriberService.getSubscribers() } returns listOf(1L, 2L, 3L).associateWith { id ->
+            HubClientInfoSubscriberService.Subscriber(
+                    platformID = id,
+                    roles = exampleRoles.filter { it.platformID == id },
+                    url = "http://testplatform.com/ocpi/cpo/2.2/clientinfo")
+        }
+        every { platformRepo.findAllById(setOf(1L, 2L)) } returns examplePlatforms.filter { it.id != 3L }
 
         every { ocnRulesService.isWhitelisted(
                 platform = examplePlatforms.find { it.id == 1L }!!,
                 counterParty = BasicRole(id = updatedClientInfo.partyID, country = updatedClientInfo.countryCode))
         } returns true
 
-        val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(updatedPlatform, updatedClientInfo)
-        assertThat(parties.count() == 1)
+        val parties = hubClientInfoService.getPartiesToNotifyOfClientInfoChange(updatedPlatform.id, updatedClientInfo)
+        assertThat(parties).isEqualTo(exampleRoles.filter { it.platformID == 1L })
+    }
+
+    @Test
+    fun `pushClientInfo sends to the subscribed endpoint and fails on server errors`() {
+        val changedClientInfo = ClientInfo(
+                partyID = "ABC",
+                countryCode = "DE",
+                role = Role.EMSP,
+                status = ConnectionStatus.OFFLINE,
+                lastUpdated = getTimestamp())
+        val party = BasicRole("DEF", "DE")
+        val url = "http://testplatform.com/ocpi/cpo/2.2/clientinfo/DE/ABC"
+
+        every { hubClientInfoSubscriberService.getSubscribers() } returns mapOf(1L to HubClientInfoSubscriberService.Subscriber(
+                platformID = 1L,
+                roles = exampleRoles.filter { it.platformID == 1L },
+                url = "http://testplatform.com/ocpi/cpo/2.2/clientinfo"))
+        every { httpService.makeOcpiRequest<Unit>(url, any(), any(), timeout = 10.0) } returnsMany listOf(
+                HttpResponse(200, mapOf(), OcpiResponse(1000)),
+                HttpResponse(503, mapOf(), OcpiResponse(3000)))
+
+        hubClientInfoService.pushClientInfo(examplePlatforms[0], party, changedClientInfo)
+        assertThatThrownBy { hubClientInfoService.pushClientInfo(examplePlatforms[0], party, changedClientInfo) }
+                .isInstanceOf(OcpiServerGenericException::class.java)
+
+        verify(exactly = 2) { httpService.makeOcpiRequest<Unit>(url, any(), any(), timeout = 10.0) }
+        verify(exactly = 0) { routingService.prepareLocalPlatformRequest(any(), any()) }
+    }
+
+    @Test
+    fun `sendNodeUpdates signs the batch once and falls back to single updates if not accepted`() {
+        val updates = listOf("ABC", "DEF").map {
+            OutboxClientInfoNodeUpdate("0x$it", ClientInfo(it, "DE", Role.CPO, ConnectionStatus.OFFLINE, "2020-01-01T00:00:00Z"))
+        }
+        val body = jacksonObjectMapper().writeValueAsString(updates.map { it.clientInfo })
+
+        every { httpService.mapper } returns jacksonObjectMapper()
+        every { walletService.sign(body) } returns "0x1234"
+        every { channelService.putOcnClientInfoBatch("https://node.b.net", "0x1234", body) } returns true
+        every { channelService.putOcnClientInfoBatch("https://node.c.net", "0x1234", body) } returns false
+        every { nodeFeatureService.setUnsupported("https://node.c.net", OcnNodeFeature.CLIENT_INFO_BATCH) } returns Unit
+        every { channelService.putOcnClientInfo("https://node.c.net", any(), any()) } returns Unit
+
+        hubClientInfoService.sendNodeUpdates("https://node.b.net", updates)
+        verify(exactly = 0) { channelService.putOcnClientInfo(any(), any(), any()) }
+
+        hubClientInfoService.sendNodeUpdates("https://node.c.net", updates)
+        verify { channelService.putOcnClientInfo("https://node.c.net", "0xABC", updates[0].clientInfo) }
+        verify { channelService.putOcnClientInfo("https://node.c.net", "0xDEF", updates[1].clientInfo) }
+        verify(exactly = 2) { walletService.sign(body) }
+    }
+
+    @Test
+    fun `ingestClientInfo only saves new or changed client info`() {
+        val party = BasicRole("ABC", "DE")
+        val saved = NetworkClientInfoEntity(party, Role.CPO, ConnectionStatus.CONNECTED, Instant.parse("2020-01-01T12:00:00Z"))
+        val outdated = ClientInfo("ABC", "DE", Role.CPO, ConnectionStatus.OFFLINE, "2020-01-01T11:00:00Z")
+        val unchanged = ClientInfo("ABC", "DE", Role.CPO, ConnectionStatus.CONNECTED, "2020-01-01T13:00:00Z")
+        val changed = ClientInfo("ABC", "DE", Role.CPO, ConnectionStatus.OFFLINE, "2020-01-01T13:00:00Z")
+        val unknown = ClientInfo("DEF", "DE", Role.EMSP, ConnectionStatus.PLANNED, "2020-01-01T11:00:00Z")
+
+        every { networkClientInfoRepo.findByPartyAndRole(party, Role.CPO) } returns saved
+        every { networkClientInfoRepo.findByPartyAndRole(BasicRole("DEF", "DE"), Role.EMSP) } returns null
+        every { networkClientInfoRepo.save(any<NetworkClientInfoEntity>()) } answers { firstArg() }
+
+        hubClientInfoService.ingestClientInfo(listOf(outdated, unchanged))
+        assertThat(saved.status).isEqualTo(ConnectionStatus.CONNECTED)
+        verify(exactly = 0) { networkClientInfoRepo.save(any<NetworkClientInfoEntity>()) }
+
+        hubClientInfoService.ingestClientInfo(listOf(changed, unknown))
+        assertThat(saved.status).isEqualTo(ConnectionStatus.OFFLINE)
+        assertThat(saved.lastUpdated).isEqualTo(Instant.parse("2020-01-01T13:00:00Z"))
+        verify(exactly = 1) { networkClientInfoRepo.save(saved) }
+        verify(exactly = 1) { networkClientInfoRepo.save(match { it.party == BasicRole("DEF", "DE") && it.id == null }) }
+    }
+
+    @Test
+    fun `ingestClientInfo fails if client info could not be saved`() {
+        val unknown = ClientInfo("XYZ", "DE", Role.CPO, ConnectionStatus.OFFLINE, "2020-01-01T11:00:00Z")
+
+        every { networkClientInfoRepo.findByPartyAndRole(BasicRole("XYZ", "DE"), Role.CPO) } throws IllegalStateException("db down")
+
+        assertThatThrownBy { hubClientInfoService.ingestClientInfo(listOf(unknown)) }
+                .isInstanceOf(IllegalStateException::class.java)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package snc.openchargingnetwork.node.services
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.data.exampleRoles
+import snc.openchargingnetwork.node.models.entities.EndpointEntity
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.repositories.EndpointRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
+
+class HubClientInfoSubscriberServiceTest {
+
+    private val endpointRepo: EndpointRepository = mockk()
+    private val roleRepo: RoleRepository = mockk()
+
+    private val hubClientInfoSubscriberService = HubClientInfoSubscriberService(endpointRepo, roleRepo)
+
+    private fun hubClientInfoReceiver(platformID: Long) = EndpointEntity(
+            platformID = platformID,
+            identifier = ModuleID.HUB_CLIENT_INFO.id,
+            role = InterfaceRole.RECEIVER,
+            url = "http://platform$platformID.com/ocpi/2.2/clientinfo")
+
+    @Test
+    fun `getSubscribers loads index once and applies credentials changes`() {
+        every { endpointRepo.findAllByIdentifierAndRole(ModuleID.HUB_CLIENT_INFO.id, InterfaceRole.RECEIVER) } returns
+                listOf(hubClientInfoReceiver(1L))
+        every { roleRepo.findAllByPlatformID(1L) } returns exampleRoles.filter { it.platformID == 1L }
+
+        val loaded = hubClientInfoSubscriberService.getSubscribers()
+        assertThat(loaded.keys).containsExactly(1L)
+        assertThat(loaded.getValue(1L).roles).hasSize(2)
+        assertThat(loaded.getValue(1L).url).isEqualTo("http://platform1.com/ocpi/2.2/clientinfo")
+
+        // platform 2 registers with a HubClientInfo receiver endpoint, platform 1 updates without one
+        hubClientInfoSubscriberService.update(2L, exampleRoles.filter { it.platformID == 2L }, listOf(
+                EndpointEntity(2L, "locations", InterfaceRole.SENDER, "http://platform2.com/ocpi/2.2/locations"),
+                hubClientInfoReceiver(2L)))
+        hubClientInfoSubscriberService.update(1L, exampleRoles.filter { it.platformID == 1L }, listOf())
+        assertThat(hubClientInfoSubscriberService.getSubscribers().keys).containsExactly(2L)
+
+        hubClientInfoSubscriberService.remove(2L)
+        assertThat(hubClientInfoSubscriberService.getSubscribers()).isEmpty()
+
+        verify(exactly = 1) { endpointRepo.findAllByIdentifierAndRole(any(), any()) }
+    }
+
+}
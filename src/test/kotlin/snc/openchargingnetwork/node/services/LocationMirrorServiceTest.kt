@@ -0,0 +1,104 @@
+package snc.openchargingnetwork.node.services
+
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.data.exampleLocation1
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.entities.OcnRules
+import snc.openchargingnetwork.node.models.ocpi.*
+
+class LocationMirrorServiceTest {
+
+    private val routingService: RoutingService = mockk()
+    private val properties = NodeProperties().apply { locationMirrorEnabled = true }
+
+    private val locationMirrorService = LocationMirrorService(properties, routingService, HttpService())
+
+    private val receiver = BasicRole("MSP", "NL")
+
+    init {
+        every { routingService.getPlatformRules(receiver) } returns OcnRules(locationMirror = true)
+    }
+
+    private fun request(method: HttpMethod, urlPath: String, body: Any? = null, sender: BasicRole = BasicRole("ABC", "DE")) = OcpiRequestVariables(
+            module = ModuleID.LOCATIONS,
+            interfaceRole = InterfaceRole.RECEIVER,
+            method = method,
+            headers = OcnHeaders(
+                    authorization = "Token token-c",
+                    requestID = "1",
+                    correlationID = "1",
+                    sender = sender,
+                    receiver = receiver),
+            urlPath = urlPath,
+            body = body)
+
+    @Test
+    fun `get returns mirrored location, evse and connector`() {
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC1", exampleLocation1))
+
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1"))?.get("address")?.asText())
+                .isEqualTo("Flamingoweg 89")
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1/abc123"))?.get("status")?.asText())
+                .isEqualTo("AVAILABLE")
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1/abc123/1"))?.get("standard")?.asText())
+                .isEqualTo("IEC_62196_T2")
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1/abc123/2"))).isNull()
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC2"))).isNull()
+    }
+
+    @Test
+    fun `apply merges evse patches into mirrored location`() {
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC1", exampleLocation1))
+        locationMirrorService.apply(request(HttpMethod.PATCH, "/DE/ABC/LOC1/abc123", mapOf(
+                "status" to "CHARGING",
+                "last_updated" to "2020-01-01T00:00:00Z")))
+
+        val evse = locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1/abc123"))
+        assertThat(evse?.get("status")?.asText()).isEqualTo("CHARGING")
+        assertThat(evse?.get("connectors")?.size()).isEqualTo(1)
+    }
+
+    @Test
+    fun `apply adds new evse to mirrored location`() {
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC1", exampleLocation1))
+        val newEvse = exampleLocation1.evses!!.first().copy(uid = "def456", lastUpdated = "2020-01-01T00:00:00Z")
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC1/def456", newEvse))
+
+        val location = locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC1"))
+        assertThat(location?.get("evses")?.size()).isEqualTo(2)
+        assertThat(location?.get("last_updated")?.asText()).isEqualTo("2020-01-01T00:00:00Z")
+    }
+
+    @Test
+    fun `apply ignores updates to unknown locations`() {
+        locationMirrorService.apply(request(HttpMethod.PATCH, "/DE/ABC/LOC3", mapOf("publish" to false)))
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC3"))).isNull()
+    }
+
+    @Test
+    fun `get returns null if receiver has not opted in`() {
+        every { routingService.getPlatformRules(BasicRole("CPO", "NL")) } returns OcnRules()
+        val variables = request(HttpMethod.PUT, "/DE/ABC/LOC1", exampleLocation1).let {
+            it.copy(headers = it.headers.copy(receiver = BasicRole("CPO", "NL")))
+        }
+        locationMirrorService.apply(variables)
+        assertThat(locationMirrorService.get(variables.copy(method = HttpMethod.GET, body = null))).isNull()
+    }
+
+    @Test
+    fun `apply and get ignore locations of parties other than the sender`() {
+        val other = BasicRole("XYZ", "DE")
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC4", exampleLocation1, sender = other))
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC4"))).isNull()
+
+        locationMirrorService.apply(request(HttpMethod.PUT, "/DE/ABC/LOC5", exampleLocation1))
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/de/abc/LOC5"))).isNotNull()
+        assertThat(locationMirrorService.get(request(HttpMethod.GET, "/DE/ABC/LOC5", sender = other))).isNull()
+    }
+
+}
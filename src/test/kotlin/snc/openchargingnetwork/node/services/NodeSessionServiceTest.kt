@@ -0,0 +1,103 @@
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import org.web3j.crypto.Credentials
+import org.web3j.tuples.generated.Tuple2
+import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.RegistryNode
+import snc.openchargingnetwork.node.models.exceptions.InvalidOcnSessionException
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.tools.checksum
+import snc.openchargingnetwork.node.tools.generatePrivateKey
+
+class NodeSessionServiceTest {
+
+    private val urlA = "https://node.a.net"
+    private val urlB = "https://node.b.net"
+    private val credentialsA = Credentials.create(generatePrivateKey())
+    private val credentialsB = Credentials.create(generatePrivateKey())
+
+    private val sender = BasicRole("ABC", "DE")
+    private val body = "{\"hello\":\"world\"}"
+
+    private val registry: Registry = mockk()
+    private val registryService: RegistryService = mockk()
+    private val httpService: HttpService = mockk()
+    private val nodeFeatureService: NodeFeatureService = mockk()
+
+    private val sessionServiceA = createNodeSessionService(urlA, credentialsA)
+    private val sessionServiceB = createNodeSessionService(urlB, credentialsB)
+
+    init {
+        every { httpService.mapper } returns jacksonObjectMapper()
+        every { nodeFeatureService.supports(any(), any()) } returns true
+        every { registryService.getNodes() } returns listOf(
+                RegistryNode(operator = credentialsA.address.checksum(), url = urlA),
+                RegistryNode(operator = credentialsB.address.checksum(), url = urlB))
+        every { httpService.postOcnSession(urlB, any(), any()) } answers {
+            sessionServiceB.openSession(thirdArg(), secondArg())
+        }
+        every { registry.getOperatorByOcpi("DE".toByteArray(), "ABC".toByteArray()).sendAsync().get() } returns
+                Tuple2(credentialsA.address, urlA)
+    }
+
+    private fun createNodeSessionService(url: String, credentials: Credentials): NodeSessionService {
+        val properties = NodeProperties().apply {
+            this.url = url
+            privateKey = credentials.ecKeyPair.privateKey.toString(16)
+            sessionKeyEnabled = true
+        }
+        val nodeIdentity = NodeIdentity(properties)
+        val walletService = WalletService(nodeIdentity, registry, httpService, CryptoService(properties, SimpleMeterRegistry()),
+                SignatureCacheService(properties))
+        return NodeSessionService(properties, nodeIdentity, registryService, walletService, httpService, nodeFeatureService)
+    }
+
+    @Test
+    fun `authenticate opens session and receiving node verifies mac`() {
+        val headers = sessionServiceA.authenticate(urlB, OcnMessageHeaders("1"), body)
+
+        assertThat(headers.signature).isNull()
+        assertThat(headers.sessionID).isNotNull()
+        assertThat(headers.mac).isNotNull()
+
+        sessionServiceB.verify(body, headers, listOf(sender))
+    }
+
+    @Test
+    fun `verify rejects mac of a different body`() {
+        val headers = sessionServiceA.authenticate(urlB, OcnMessageHeaders("1"), body)
+
+        assertThatThrownBy { sessionServiceB.verify("{\"hello\":\"moon\"}", headers, listOf(sender)) }
+                .isInstanceOf(OcpiHubConnectionProblemException::class.java)
+    }
+
+    @Test
+    fun `verify rejects unknown session`() {
+        val headers = OcnMessageHeaders("1", sessionID = "unknown", mac = "0x1234")
+
+        assertThatThrownBy { sessionServiceB.verify(body, headers, listOf(sender)) }
+                .isInstanceOf(InvalidOcnSessionException::class.java)
+    }
+
+    @Test
+    fun `authenticate falls back to signature if session cannot be opened`() {
+        val headers = sessionServiceA.authenticate("https://node.c.net", OcnMessageHeaders("1"), body)
+
+        assertThat(headers.signature).isNotNull()
+        assertThat(headers.mac).isNull()
+
+        sessionServiceB.verify(body, headers, listOf(sender))
+    }
+
+}
@@ -0,0 +1,59 @@
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnMessageHeaders
+import snc.openchargingnetwork.node.models.ocpi.ClientInfo
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import snc.openchargingnetwork.node.models.ocpi.Role
+
+class OcnChannelServiceTest {
+
+    private val httpService: HttpService = mockk()
+    private val nodeFeatureService: NodeFeatureService = mockk()
+
+    private val mapper = jacksonObjectMapper()
+
+    init {
+        every { httpService.mapper } returns mapper
+    }
+
+    @Test
+    fun `postOcnMessage uses http if channels are disabled`() {
+        val channelService = OcnChannelService(NodeProperties(), httpService, nodeFeatureService)
+        val headers = OcnMessageHeaders("1", "0x1234")
+        val response = HttpResponse<String>(200, mapOf(), OcpiResponse(statusCode = 1000, data = "1"))
+
+        every { httpService.postOcnMessage<String>("https://node.a.net", headers, "{}") } returns response
+
+        assertThat(channelService.postOcnMessage<String>("https://node.a.net", headers, "{}")).isEqualTo(response)
+        verify(exactly = 0) { nodeFeatureService.supports(any(), any()) }
+    }
+
+    @Test
+    fun `putOcnClientInfo uses http if node does not support channels`() {
+        val channelService = OcnChannelService(NodeProperties().apply { channelEnabled = true }, httpService, nodeFeatureService)
+        val clientInfo = ClientInfo(
+                partyID = "ABC",
+                countryCode = "DE",
+                role = Role.CPO,
+                status = ConnectionStatus.CONNECTED,
+                lastUpdated = "2020-01-01T00:00:00Z")
+
+        every { nodeFeatureService.supports("https://node.b.net", any()) } returns false
+        every { httpService.putOcnClientInfo("https://node.b.net", "0x1234", clientInfo, 10.0) } returns Unit
+
+        channelService.putOcnClientInfo("https://node.b.net", "0x1234", clientInfo)
+
+        verify { httpService.putOcnClientInfo("https://node.b.net", "0x1234", clientInfo, 10.0) }
+        channelService.shutdown()
+    }
+
+}
@@ -0,0 +1,155 @@
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.mockk.Runs
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.*
+import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemException
+import snc.openchargingnetwork.node.models.ocpi.OcpiResponse
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class OcnMessageBatchServiceTest {
+
+    private val httpService: HttpService = mockk()
+    private val walletService: WalletService = mockk()
+    private val properties = NodeProperties().apply {
+        messageBatchEnabled = true
+        messageBatchWindow = 200
+    }
+
+    private val nodeFeatureService = NodeFeatureService(httpService)
+    private val channelService = OcnChannelService(properties, httpService, nodeFeatureService)
+
+    private val nodeSessionService: NodeSessionService = mockk()
+
+    private val messageBatchService = OcnMessageBatchService(
+            properties, httpService, channelService, walletService, nodeFeatureService, nodeSessionService)
+
+    private val mapper = jacksonObjectMapper()
+
+    init {
+        every { httpService.mapper } returns mapper
+        every { walletService.sign(any<String>()) } returns "0x1234"
+        every { nodeSessionService.authenticate(any(), any(), any<String>()) } answers {
+            secondArg<OcnMessageHeaders>().copy(signature = "0x1234")
+        }
+    }
+
+    @Test
+    fun `isBatched negotiates the feature via node-info`() {
+        every { httpService.getOcnNodeFeatures("https://node.a.net") } returns listOf("message-batch")
+        every { httpService.getOcnNodeFeatures("https://node.b.net") } returns listOf()
+
+        assertThat(messageBatchService.isBatched("https://node.a.net")).isTrue()
+        assertThat(messageBatchService.isBatched("https://node.b.net")).isFalse()
+        assertThat(messageBatchService.isBatched("https://node.a.net")).isTrue()
+        verify(exactly = 1) { httpService.getOcnNodeFeatures("https://node.a.net") }
+    }
+
+    @Test
+    fun `postOcnMessage sends concurrent messages in a single batch`() {
+        val url = "https://node.c.net"
+        val batchBody = slot<String>()
+
+        every { httpService.getOcnNodeFeatures(url) } returns listOf("message-batch")
+        every { httpService.postOcnMessageBatch(url, any(), capture(batchBody)) } answers {
+            val batch: Map<String, List<Map<String, Any>>> = mapper.readValue(batchBody.captured)
+            batch.getValue("messages").map {
+                val requestID = it.getValue("request_id") as String
+                OcnMessageBatchResult(requestID, 200, mapOf(), OcpiResponse(statusCode = 1000, data = requestID))
+            }
+        }
+
+        val executor = Executors.newFixedThreadPool(2)
+        val responses = listOf("1", "2").map { requestID ->
+            executor.submit(Callable {
+                messageBatchService.postOcnMessage<String>(url, OcnMessageHeaders(requestID), "{\"id\":\"$requestID\"}")
+            })
+        }.map { it.get() }
+        executor.shutdown()
+
+        assertThat(responses.map { it.body.data }).containsExactly("1", "2")
+        verify(exactly = 1) { httpService.postOcnMessageBatch(url, any(), any()) }
+        assertThat(batchBody.captured).contains("{\"id\":\"1\"}").contains("{\"id\":\"2\"}")
+    }
+
+    @Test
+    fun `postOcnMessage signs and sends messages individually if batch is not accepted`() {
+        val url = "https://node.d.net"
+        val response = HttpResponse<String>(200, mapOf(), OcpiResponse(statusCode = 1000, data = "1"))
+
+        every { httpService.getOcnNodeFeatures(url) } returns listOf("message-batch")
+        every { httpService.postOcnMessageBatch(url, any(), any()) } returns null
+        every { httpService.postOcnMessage<String>(url, OcnMessageHeaders("1", "0x1234"), "{}") } returns response
+
+        assertThat(messageBatchService.postOcnMessage<String>(url, OcnMessageHeaders("1"), "{}")).isEqualTo(response)
+    }
+
+    @Test
+    fun `postOcnMessage fails messages without a result or of a failed batch instead of resending them`() {
+        val url = "https://node.g.net"
+
+        every { httpService.getOcnNodeFeatures(url) } returns listOf("message-batch")
+        every { httpService.postOcnMessageBatch(url, any(), any()) } returns listOf() andThenThrows
+                OcpiHubConnectionProblemException("Batch to $url failed with status 500")
+
+        assertThatThrownBy { messageBatchService.postOcnMessage<String>(url, OcnMessageHeaders("1"), "{}") }
+                .isInstanceOf(OcpiHubConnectionProblemException::class.java)
+                .hasMessageContaining("No result for message 1")
+        assertThatThrownBy { messageBatchService.postOcnMessage<String>(url, OcnMessageHeaders("2"), "{}") }
+                .isInstanceOf(OcpiHubConnectionProblemException::class.java)
+                .hasMessageContaining("status 500")
+
+        verify(exactly = 0) { httpService.postOcnMessage<String>(url, any(), any()) }
+        assertThat(messageBatchService.isBatched(url)).isTrue()
+    }
+
+    @Test
+    fun `postOcnMessage signs message if session is no longer valid`() {
+        val url = "https://node.e.net"
+        val macHeaders = OcnMessageHeaders("1", sessionID = "abc", mac = "0x5678")
+        val response = HttpResponse<String>(200, mapOf(), OcpiResponse(statusCode = 1000, data = "1"))
+
+        every { httpService.getOcnNodeFeatures(url) } returns listOf("session-key")
+        every { nodeSessionService.authenticate(url, OcnMessageHeaders("1"), "{}") } returns macHeaders
+        every { nodeSessionService.invalidate(url) } just Runs
+        every { httpService.postOcnMessage<String>(url, macHeaders, "{}") } returns HttpResponse(
+                401, mapOf("OCN-Session-Invalid" to "true"), OcpiResponse(statusCode = 2000))
+        every { httpService.postOcnMessage<String>(url, OcnMessageHeaders("1", "0x1234"), "{}") } returns response
+
+        assertThat(messageBatchService.postOcnMessage<String>(url, OcnMessageHeaders("1"), "{}")).isEqualTo(response)
+        verify { nodeSessionService.invalidate(url) }
+    }
+
+    @Test
+    fun `postOcnMessage sends message as Smile if supported`() {
+        val url = "https://node.f.net"
+        val smileBody = byteArrayOf(0x3a, 0x29, 0x0a, 0x01)
+        val headers = OcnMessageHeaders("1", "0x9abc")
+        val response = HttpResponse<String>(200, mapOf(), OcpiResponse(statusCode = 1000, data = "1"))
+
+        val smileService = OcnMessageBatchService(NodeProperties().apply { messageSmileEnabled = true }, httpService,
+                channelService, walletService, nodeFeatureService, nodeSessionService)
+
+        every { httpService.getOcnNodeFeatures(url) } returns listOf("message-smile")
+        every { httpService.toSmile("{}") } returns smileBody
+        every { nodeSessionService.isEnabled(url) } returns false
+        every { nodeSessionService.authenticate(url, OcnMessageHeaders("1"), smileBody) } returns headers
+        every { httpService.postOcnMessageSmile<String>(url, headers, smileBody) } returns response
+
+        assertThat(smileService.isAuthenticatedOnSend(url)).isTrue()
+        assertThat(smileService.postOcnMessage<String>(url, OcnMessageHeaders("1"), "{}")).isEqualTo(response)
+        verify(exactly = 0) { httpService.postOcnMessage<String>(url, any(), any()) }
+    }
+
+}
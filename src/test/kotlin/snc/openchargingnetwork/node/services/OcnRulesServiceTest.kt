@@ -12,6 +12,7 @@ import snc.openchargingnetwork.node.models.entities.PlatformEntity
 import snc.openchargingnetwork.node.models.ocpi.BasicRole
 import snc.openchargingnetwork.node.repositories.OcnRulesListRepository
 import snc.openchargingnetwork.node.repositories.PlatformRepository
+import snc.openchargingnetwork.node.repositories.RoleRepository
 import java.util.stream.Stream
 
 data class InWhitelistTest(val rules: OcnRules = OcnRules(), // receiving platform's active rules
@@ -23,8 +24,9 @@ class OcnRulesServiceTest {
 
     private val platformRepo: PlatformRepository = mockk()
     private val ocnRulesListRepo: OcnRulesListRepository = mockk()
+    private val roleRepo: RoleRepository = mockk()
 
-    private var ocnRulesService = OcnRulesService(platformRepo, ocnRulesListRepo)
+    private var ocnRulesService = OcnRulesService(platformRepo, ocnRulesListRepo, roleRepo)
 
     private fun inWhiteListTestSources(): Stream<Arguments> {
         return Stream.of(
@@ -0,0 +1,232 @@
+package snc.openchargingnetwork.node.services
+
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.slot
+import io.mockk.verify
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.data.examplePlatforms
+import snc.openchargingnetwork.node.data.exampleRoles
+import snc.openchargingnetwork.node.models.*
+import snc.openchargingnetwork.node.models.entities.OutboxEntity
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.ClientInfo
+import snc.openchargingnetwork.node.models.ocpi.ConnectionStatus
+import snc.openchargingnetwork.node.models.ocpi.Role
+import snc.openchargingnetwork.node.repositories.OutboxHeadView
+import snc.openchargingnetwork.node.repositories.OutboxRepository
+import snc.openchargingnetwork.node.repositories.PlatformRepository
+import java.time.Duration
+import java.time.Instant
+import java.util.Optional
+
+class OutboxServiceTest {
+
+    private val outboxRepo: OutboxRepository = mockk(relaxed = true)
+    private val platformRepo: PlatformRepository = mockk()
+    private val hubClientInfoService: HubClientInfoService = mockk()
+    private val registryService: RegistryService = mockk()
+    private val routingService: RoutingService = mockk()
+    private val httpService: HttpService = mockk()
+    private val registry = SimpleMeterRegistry()
+
+    // long interval, so that the outbox is only dispatched by the test
+    private val properties = NodeProperties().apply {
+        outboxInterval = 3600000
+        outboxMaxAttempts = 3
+    }
+
+    private val outboxService = OutboxService(outboxRepo, platformRepo, hubClientInfoService, registryService,
+            routingService, httpService, properties, registry)
+
+    private val mapper = jacksonObjectMapper()
+
+    private val clientInfo = ClientInfo(
+            partyID = "ABC",
+            countryCode = "DE",
+            role = Role.CPO,
+            status = ConnectionStatus.OFFLINE,
+            lastUpdated = "2020-01-01T00:00:00Z")
+
+    init {
+        every { httpService.mapper } returns mapper
+        every { outboxRepo.findFirstByDeadLetteredFalseOrderByIdAsc() } returns null
+    }
+
+    @AfterAll
+    fun tearDown() {
+        outboxService.shutdown()
+    }
+
+    private fun head(destination: String, id: Long) = object : OutboxHeadView {
+        override val destination = destination
+        override val id = id
+    }
+
+    private fun givenDue(vararg entries: OutboxEntity) {
+        every { outboxRepo.findByDeadLetteredFalseAndNextAttemptLessThanEqualOrderByIdAsc(any(), any()) } returns entries.toList()
+        every { outboxRepo.findHeadsByDestinationIn(any()) } returns entries
+                .groupBy { it.destination }
+                .map { (destination, group) -> head(destination, group.first().id!!) }
+    }
+
+    @Test
+    fun `dispatch expands client info changes into pushes and node updates`() {
+        val change = OutboxEntity(OutboxType.CLIENT_INFO_CHANGE, "client-info",
+                mapper.writeValueAsString(OutboxClientInfoChange(clientInfo, changedPlatformID = 3L)), id = 1L)
+        val update = OutboxClientInfoNodeUpdate("0x1234", clientInfo)
+        givenDue(change)
+
+        every { hubClientInfoService.getPartiesToNotifyOfClientInfoChange(3L, clientInfo) } returns
+                exampleRoles.filter { it.platformID == 1L }
+        every { registryService.getNodes(omitMine = true) } returns listOf(RegistryNode("0x1", "https://node.b.net"))
+        every { hubClientInfoService.getNodeUpdate(clientInfo) } returns update
+
+        val expanded = slot<Iterable<OutboxEntity>>()
+        every { outboxRepo.saveAll(capture(expanded)) } answers { expanded.captured }
+
+        outboxService.dispatch()
+
+        val entries = expanded.captured.toList()
+        assertThat(entries.map { it.type }).containsExactly(
+                OutboxType.CLIENT_INFO_PUSH, OutboxType.CLIENT_INFO_PUSH, OutboxType.CLIENT_INFO_NODE)
+        assertThat(entries.map { it.destination }).containsExactly("platform:1", "platform:1", "node:https://node.b.net")
+        assertThat(mapper.readValue(entries[2].payload, OutboxClientInfoNodeUpdate::class.java)).isEqualTo(update)
+        verify { outboxRepo.deleteAll(listOf(change)) }
+    }
+
+    @Test
+    fun `dispatch retries failed deliveries with backoff and keeps the destination in order`() {
+        val push = OutboxClientInfoPush(1L, BasicRole("DEF", "DE"), clientInfo)
+        val first = OutboxEntity(OutboxType.CLIENT_INFO_PUSH, "platform:1", mapper.writeValueAsString(push), id = 10L)
+        val second = OutboxEntity(OutboxType.CLIENT_INFO_PUSH, "platform:1", mapper.writeValueAsString(push), id = 11L)
+        givenDue(first, second)
+
+        every { platformRepo.findById(1L) } returns Optional.of(examplePlatforms[0])
+        every { hubClientInfoService.pushClientInfo(examplePlatforms[0], push.party, clientInfo) } throws
+                IllegalStateException("connection refused")
+
+        val before = Instant.now()
+        outboxService.dispatch()
+
+        assertThat(first.attempts).isEqualTo(1)
+        assertThat(first.lastError).isEqualTo("connection refused")
+        assertThat(first.nextAttempt).isAfterOrEqualTo(before.plusSeconds(1))
+        verify(exactly = 1) { hubClientInfoService.pushClientInfo(any(), any(), any()) }
+        verify { outboxRepo.postponeByDestination("platform:1", first.nextAttempt) }
+        verify(exactly = 0) { outboxRepo.deleteAll(any<Iterable<OutboxEntity>>()) }
+    }
+
+    @Test
+    fun `dispatch dead-letters notifications after the maximum number of attempts`() {
+        val update = OutboxClientInfoNodeUpdate("0x1234", clientInfo)
+        val entry = OutboxEntity(OutboxType.CLIENT_INFO_NODE, "node:https://node.c.net", mapper.writeValueAsString(update),
+                attempts = 2, id = 20L)
+        givenDue(entry)
+
+        every { hubClientInfoService.sendNodeUpdate("https://node.c.net", update) } throws IllegalStateException("timeout")
+
+        outboxService.dispatch()
+
+        assertThat(entry.deadLettered).isTrue()
+        assertThat(registry.counter("ocn.outbox.dead_lettered", "type", "CLIENT_INFO_NODE").count()).isEqualTo(1.0)
+        verify(exactly = 0) { outboxRepo.postponeByDestination(any(), any()) }
+    }
+
+    @Test
+    fun `dispatch sends runs of node updates in batches`() {
+        val updates = listOf("ABC", "DEF", "GHI").map {
+            OutboxClientInfoNodeUpdate("0x$it", clientInfo.copy(partyID = it))
+        }
+        val entries = updates.mapIndexed { i, update ->
+            OutboxEntity(OutboxType.CLIENT_INFO_NODE, "node:https://node.b.net", mapper.writeValueAsString(update), id = 30L + i)
+        }
+        givenDue(*entries.toTypedArray())
+
+        every { hubClientInfoService.supportsNodeUpdateBatch("https://node.b.net") } returns true
+        every { hubClientInfoService.sendNodeUpdates("https://node.b.net", updates) } returns Unit
+
+        outboxService.dispatch()
+
+        verify(exactly = 1) { hubClientInfoService.sendNodeUpdates("https://node.b.net", updates) }
+        verify { outboxRepo.deleteAll(entries) }
+    }
+
+    @Test
+    fun `dispatch collapses status transitions of a role into its net change`() {
+        val flapping = listOf(ConnectionStatus.OFFLINE, ConnectionStatus.CONNECTED, ConnectionStatus.OFFLINE)
+        var previous = ConnectionStatus.CONNECTED
+        val transitions = flapping.mapIndexed { i, status ->
+            val transition = OutboxClientInfoTransition(clientInfo.copy(status = status), previous, 1L)
+            previous = status
+            OutboxEntity(OutboxType.CLIENT_INFO_TRANSITION, "role:DEABC:CPO", mapper.writeValueAsString(transition), id = 40L + i)
+        }
+        // only the first transition's window has passed
+        givenDue(transitions[0])
+        every { outboxRepo.findByDestinationAndDeadLetteredFalseOrderByIdAsc("role:DEABC:CPO") } returns transitions
+
+        val change = slot<OutboxEntity>()
+        every { outboxRepo.save(capture(change)) } answers { change.captured }
+
+        outboxService.dispatch()
+
+        assertThat(change.captured.type).isEqualTo(OutboxType.CLIENT_INFO_CHANGE)
+        assertThat(mapper.readValue(change.captured.payload, OutboxClientInfoChange::class.java))
+                .isEqualTo(OutboxClientInfoChange(clientInfo, changedPlatformID = 1L))
+        assertThat(registry.counter("ocn.client_info.coalesced").count()).isEqualTo(2.0)
+        verify { outboxRepo.deleteAll(transitions) }
+    }
+
+    @Test
+    fun `dispatch drops status transitions of a role back at its previous status`() {
+        val service = OutboxService(outboxRepo, platformRepo, hubClientInfoService, registryService, routingService,
+                httpService, properties, SimpleMeterRegistry())
+        val transitions = listOf(
+                OutboxClientInfoTransition(clientInfo.copy(partyID = "DEF"), ConnectionStatus.CONNECTED, 2L),
+                OutboxClientInfoTransition(clientInfo.copy(partyID = "DEF", status = ConnectionStatus.CONNECTED), ConnectionStatus.OFFLINE, 2L)
+        ).mapIndexed { i, transition ->
+            OutboxEntity(OutboxType.CLIENT_INFO_TRANSITION, "role:DEDEF:CPO", mapper.writeValueAsString(transition), id = 50L + i)
+        }
+        givenDue(*transitions.toTypedArray())
+        every { outboxRepo.findByDestinationAndDeadLetteredFalseOrderByIdAsc("role:DEDEF:CPO") } returns transitions
+
+        service.dispatch()
+
+        verify(exactly = 0) { outboxRepo.save(match { it.type == OutboxType.CLIENT_INFO_CHANGE }) }
+        verify(exactly = 1) { outboxRepo.deleteAll(transitions) }
+        service.shutdown()
+    }
+
+    @Test
+    fun `addClientInfoTransition holds transitions back for the window, unless disabled`() {
+        val transition = slot<OutboxEntity>()
+        every { outboxRepo.save(capture(transition)) } answers { transition.captured }
+
+        val before = Instant.now()
+        outboxService.addClientInfoTransition(clientInfo, ConnectionStatus.CONNECTED, 1L)
+        assertThat(transition.captured.type).isEqualTo(OutboxType.CLIENT_INFO_TRANSITION)
+        assertThat(transition.captured.destination).isEqualTo("role:DEABC:CPO")
+        assertThat(transition.captured.nextAttempt).isAfterOrEqualTo(before.plusMillis(properties.clientInfoDebounceWindow))
+
+        val service = OutboxService(outboxRepo, platformRepo, hubClientInfoService, registryService, routingService,
+                httpService, NodeProperties().apply { outboxInterval = 3600000; clientInfoDebounceWindow = 0 },
+                SimpleMeterRegistry())
+        service.addClientInfoTransition(clientInfo, ConnectionStatus.CONNECTED, 1L)
+        assertThat(transition.captured.type).isEqualTo(OutboxType.CLIENT_INFO_CHANGE)
+        service.shutdown()
+    }
+
+    @Test
+    fun `getRetryDelay doubles up to the maximum delay`() {
+        assertThat(outboxService.getRetryDelay(1)).isEqualTo(Duration.ofSeconds(1))
+        assertThat(outboxService.getRetryDelay(2)).isEqualTo(Duration.ofSeconds(2))
+        assertThat(outboxService.getRetryDelay(5)).isEqualTo(Duration.ofSeconds(16))
+        assertThat(outboxService.getRetryDelay(40)).isEqualTo(Duration.ofHours(1))
+    }
+
+}
@@ -0,0 +1,141 @@
+package snc.openchargingnetwork.node.services
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.exceptions.OcpiClientInvalidParametersException
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class ReceiverDispatchServiceTest {
+
+    private val receiverDispatchService = ReceiverDispatchService(NodeProperties().apply { receiverDispatchEnabled = true })
+
+    private fun request(method: HttpMethod = HttpMethod.PUT,
+                        interfaceRole: InterfaceRole = InterfaceRole.RECEIVER,
+                        urlPath: String? = "/DE/ABC/LOC1") = OcpiRequestVariables(
+            module = ModuleID.LOCATIONS,
+            interfaceRole = interfaceRole,
+            method = method,
+            headers = OcnHeaders(
+                    authorization = "Token token-c",
+                    requestID = "1",
+                    correlationID = "1",
+                    sender = BasicRole("ABC", "DE"),
+                    receiver = BasicRole("msp", "nl")),
+            urlPath = urlPath)
+
+    @Test
+    fun `getOrderingKey uses receiver, module and object ID`() {
+        assertThat(receiverDispatchService.getOrderingKey(request())).isEqualTo("NL/MSP/locations/DE/ABC/LOC1")
+        assertThat(receiverDispatchService.getOrderingKey(request(method = HttpMethod.PATCH, urlPath = "/DE/ABC/LOC1/EVSE1/1")))
+                .isEqualTo("NL/MSP/locations/DE/ABC/LOC1")
+    }
+
+    @Test
+    fun `getOrderingKey ignores requests that need no ordering`() {
+        assertThat(receiverDispatchService.getOrderingKey(request(method = HttpMethod.GET))).isNull()
+        assertThat(receiverDispatchService.getOrderingKey(request(interfaceRole = InterfaceRole.SENDER))).isNull()
+        assertThat(receiverDispatchService.getOrderingKey(request(urlPath = "LOC1"))).isNull()
+        assertThat(receiverDispatchService.getOrderingKey(request(urlPath = null))).isNull()
+    }
+
+    @Test
+    fun `dispatch keeps pushes for the same object in order of arrival`() {
+        val forwarded = Collections.synchronizedList(mutableListOf<Int>())
+        val firstStarted = CountDownLatch(1)
+        val releaseFirst = CountDownLatch(1)
+        val senders = Executors.newFixedThreadPool(2)
+
+        val first = senders.submit(Callable {
+            receiverDispatchService.dispatch(request()) {
+                firstStarted.countDown()
+                releaseFirst.await(5, TimeUnit.SECONDS)
+                forwarded.add(1)
+            }
+        })
+        firstStarted.await(5, TimeUnit.SECONDS)
+        val second = senders.submit(Callable {
+            receiverDispatchService.dispatch(request(method = HttpMethod.PATCH)) { forwarded.add(2) }
+        })
+
+        // the second push cannot overtake the first, even though the first is still in flight
+        Thread.sleep(100)
+        assertThat(forwarded).isEmpty()
+
+        releaseFirst.countDown()
+        first.get(5, TimeUnit.SECONDS)
+        second.get(5, TimeUnit.SECONDS)
+        senders.shutdown()
+
+        assertThat(forwarded).containsExactly(1, 2)
+    }
+
+    @Test
+    fun `dispatch forwards a push once the previous one has taken longer than the timeout`() {
+        val service = ReceiverDispatchService(NodeProperties().apply {
+            receiverDispatchEnabled = true
+            receiverDispatchTimeout = 100
+        })
+        val firstStarted = CountDownLatch(1)
+        val releaseFirst = CountDownLatch(1)
+        val senders = Executors.newFixedThreadPool(2)
+
+        val first = senders.submit(Callable {
+            service.dispatch(request()) {
+                firstStarted.countDown()
+                releaseFirst.await(5, TimeUnit.SECONDS)
+            }
+        })
+        firstStarted.await(5, TimeUnit.SECONDS)
+
+        assertThat(service.dispatch(request(method = HttpMethod.PATCH)) { 2 }).isEqualTo(2)
+
+        releaseFirst.countDown()
+        first.get(5, TimeUnit.SECONDS)
+        senders.shutdown()
+    }
+
+    @Test
+    fun `dispatch does not order pushes unless enabled`() {
+        val service = ReceiverDispatchService(NodeProperties().apply { receiverDispatchTimeout = 60000 })
+        val firstStarted = CountDownLatch(1)
+        val releaseFirst = CountDownLatch(1)
+        val senders = Executors.newFixedThreadPool(1)
+
+        val first = senders.submit(Callable {
+            service.dispatch(request()) {
+                firstStarted.countDown()
+                releaseFirst.await(5, TimeUnit.SECONDS)
+            }
+        })
+        firstStarted.await(5, TimeUnit.SECONDS)
+
+        // forwarded straight away, although the first push is still in flight
+        val started = System.currentTimeMillis()
+        assertThat(service.dispatch(request(method = HttpMethod.PATCH)) { 2 }).isEqualTo(2)
+        assertThat(System.currentTimeMillis() - started).isLessThan(5000)
+
+        releaseFirst.countDown()
+        first.get(5, TimeUnit.SECONDS)
+        senders.shutdown()
+    }
+
+    @Test
+    fun `dispatch rethrows exceptions raised by the forwarding`() {
+        assertThrows<OcpiClientInvalidParametersException> {
+            receiverDispatchService.dispatch(request()) { throw OcpiClientInvalidParametersException("Invalid") }
+        }
+    }
+
+}
@@ -8,6 +8,7 @@ import org.web3j.tuples.generated.Tuple2
 import org.web3j.tuples.generated.Tuple5
 import snc.openchargingnetwork.contracts.Permissions
 import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.OcnService
 import snc.openchargingnetwork.node.models.OcnServicePermission
@@ -23,11 +24,12 @@ class RegistryServiceTest {
     private val registry: Registry = mockk()
     private val permissions: Permissions = mockk()
     private val properties: NodeProperties = mockk()
+    private val nodeIdentity: NodeIdentity = mockk()
 
     private val registryService: RegistryService
 
     init {
-        registryService = RegistryService(registry, permissions, properties)
+        registryService = RegistryService(registry, permissions, properties, nodeIdentity, SignatureCacheService(NodeProperties()))
     }
 
     @Test
@@ -42,7 +44,7 @@ class RegistryServiceTest {
             every { registry.getNode(node.operator).sendAsync().get() } returns node.url
         }
 
-        every { properties.privateKey } returns "0xae6ae8e5ccbfb04590405997ee2d52d2b330726137b875053c36d94e974d162f"
+        every { nodeIdentity.address } returns "0xf17f52151EbEF6C7334FAD080c5704D77216b732"
 
         val actual = registryService.getNodes(omitMine = true)
         assertThat(actual.size).isEqualTo(1)
@@ -57,7 +59,7 @@ class RegistryServiceTest {
         val serverEthAddress = "0x9bC1169Ca09555bf2721A5C9eC6D69c8073bfeB4"
         every { registry.getOperatorByOcpi(role.country.toByteArray(), role.id.toByteArray()).sendAsync().get() } returns Tuple2(serverEthAddress, serverURL)
         every { properties.url } returns serverURL
-        every { properties.privateKey } returns "0x1c3e5453c0f9aa74a8eb0216310b2b013f017813a648fce364bf41dbc0b37647"
+        every { nodeIdentity.address } returns serverEthAddress
         assertThat(registryService.isRoleKnown(role)).isEqualTo(true)
     }
 
@@ -28,6 +28,7 @@ class RoutingServiceTest {
     private val walletService: WalletService = mockk()
     private val ocnRulesService: OcnRulesService = mockk()
     private val registryService: RegistryService = mockk()
+    private val messageBatchService: OcnMessageBatchService = mockk()
 
     private val routingService: RoutingService
 
@@ -40,7 +41,10 @@ class RoutingServiceTest {
                 registryService,
                 httpService,
                 walletService,
-                ocnRulesService)
+                ocnRulesService,
+                messageBatchService)
+
+        every { messageBatchService.isAuthenticatedOnSend(any()) } returns false
     }
 
     @Test
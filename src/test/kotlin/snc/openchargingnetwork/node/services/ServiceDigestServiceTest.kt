@@ -0,0 +1,74 @@
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+import snc.openchargingnetwork.node.models.ocpi.InterfaceRole
+import snc.openchargingnetwork.node.models.ocpi.ModuleID
+import snc.openchargingnetwork.node.models.ocpi.OcpiRequestVariables
+
+class ServiceDigestServiceTest {
+
+    private val registry = SimpleMeterRegistry()
+
+    private val properties = NodeProperties().apply {
+        serviceDigestEnabled = true
+        serviceDigestMaxSize = 2
+        serviceDigestWindow = 0
+    }
+
+    private val serviceDigestService = ServiceDigestService(properties, mockk(), mockk(), mockk(), mockk(), registry)
+
+    private val service = BasicRole("SVC", "DE")
+
+    private fun copy(sender: BasicRole, requestID: String) = OcpiRequestVariables(
+            module = ModuleID.SESSIONS,
+            interfaceRole = InterfaceRole.RECEIVER,
+            method = HttpMethod.PUT,
+            headers = OcnHeaders(
+                    authorization = "Token token-c",
+                    requestID = requestID,
+                    correlationID = requestID,
+                    sender = sender,
+                    receiver = service))
+
+    @Test
+    fun `add collects copies per sender until digest is full`() {
+        val cpo1 = BasicRole("CPA", "DE")
+        val cpo2 = BasicRole("CPB", "DE")
+
+        assertThat(serviceDigestService.add(copy(cpo1, "1"))).isNull()
+        assertThat(serviceDigestService.add(copy(cpo2, "2"))).isNull()
+
+        val digest = serviceDigestService.add(copy(cpo1, "3"))
+        assertThat(digest).isNotNull
+        assertThat(digest!!.sender).isEqualTo(cpo1)
+        assertThat(digest.messages.map { it.headers.requestID }).containsExactly("1", "3")
+        assertThat(registry.get("ocn.linked_services.digest.buffered").gauge().value()).isEqualTo(1.0)
+
+        val due = serviceDigestService.takeDue()
+        assertThat(due.map { it.sender }).containsExactly(cpo2)
+        assertThat(serviceDigestService.takeDue()).isEmpty()
+        assertThat(registry.get("ocn.linked_services.digest.buffered").gauge().value()).isEqualTo(0.0)
+    }
+
+    @Test
+    fun `takeAll takes digests whose time window has not passed`() {
+        val openDigests = ServiceDigestService(NodeProperties().apply { serviceDigestWindow = 60000 },
+                mockk(), mockk(), mockk(), mockk(), SimpleMeterRegistry())
+        val cpo = BasicRole("CPA", "DE")
+
+        openDigests.add(copy(cpo, "1"))
+        assertThat(openDigests.takeDue()).isEmpty()
+
+        val all = openDigests.takeAll()
+        assertThat(all.flatMap { it.messages }.map { it.headers.requestID }).containsExactly("1")
+        assertThat(openDigests.takeAll()).isEmpty()
+    }
+
+}
@@ -0,0 +1,75 @@
+package snc.openchargingnetwork.node.services
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.models.ocpi.BasicRole
+
+class SignatureCacheServiceTest {
+
+    private val signer = "0xF686dd2b1Cbf4c77079Ca48D176e157ddB744eeF"
+    private val operator = "0x9bC1169Ca09555bf2721A5C9eC6D69c8073bfeB4"
+
+    @Test
+    fun `getSigner recovers signer once per data and signature`() {
+        val cache = SignatureCacheService(NodeProperties())
+        var recovered = 0
+        val recover = { recovered++; signer }
+
+        assertThat(cache.getSigner("hello".toByteArray(), "0x1234", recover)).isEqualTo(signer)
+        assertThat(cache.getSigner("hello".toByteArray(), "0x1234", recover)).isEqualTo(signer)
+        assertThat(recovered).isEqualTo(1)
+
+        cache.getSigner("hello world".toByteArray(), "0x1234", recover)
+        cache.getSigner("hello".toByteArray(), "0x5678", recover)
+        assertThat(recovered).isEqualTo(3)
+    }
+
+    @Test
+    fun `getSigner does not cache if disabled`() {
+        val cache = SignatureCacheService(NodeProperties().apply { signatureCacheMaxEntries = 0 })
+        var recovered = 0
+        val recover = { recovered++; signer }
+
+        cache.getSigner("hello".toByteArray(), "0x1234", recover)
+        cache.getSigner("hello".toByteArray(), "0x1234", recover)
+        assertThat(recovered).isEqualTo(2)
+    }
+
+    @Test
+    fun `getSigner expires entries`() {
+        val cache = SignatureCacheService(NodeProperties().apply { signatureCacheTtl = -1 })
+        var recovered = 0
+        val recover = { recovered++; signer }
+
+        cache.getSigner("hello".toByteArray(), "0x1234", recover)
+        cache.getSigner("hello".toByteArray(), "0x1234", recover)
+        assertThat(recovered).isEqualTo(2)
+    }
+
+    @Test
+    fun `updateOperator invalidates verification if operator changed`() {
+        val cache = SignatureCacheService(NodeProperties())
+        val party = BasicRole("ABC", "DE")
+
+        cache.setVerified(party, signer, operator, SignatureCacheService.Check.OPERATOR)
+        assertThat(cache.isVerified(BasicRole("abc", "de"), signer.toLowerCase(), SignatureCacheService.Check.OPERATOR)).isTrue()
+
+        cache.updateOperator(party, operator.toLowerCase())
+        assertThat(cache.isVerified(party, signer, SignatureCacheService.Check.OPERATOR)).isTrue()
+
+        cache.updateOperator(party, "0x0000000000000000000000000000000000000000")
+        assertThat(cache.isVerified(party, signer, SignatureCacheService.Check.OPERATOR)).isFalse()
+    }
+
+    @Test
+    fun `signatory verification does not pass operator check`() {
+        val cache = SignatureCacheService(NodeProperties())
+        val party = BasicRole("ABC", "DE")
+
+        cache.setVerified(party, signer, operator, SignatureCacheService.Check.SIGNATORY)
+        assertThat(cache.isVerified(party, signer, SignatureCacheService.Check.SIGNATORY)).isTrue()
+        assertThat(cache.isVerified(party, signer, SignatureCacheService.Check.OPERATOR)).isFalse()
+    }
+
+}
@@ -0,0 +1,121 @@
+package snc.openchargingnetwork.node.services
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
+import io.mockk.every
+import io.mockk.mockk
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.http.HttpMethod
+import snc.openchargingnetwork.node.config.NodeProperties
+import snc.openchargingnetwork.node.data.exampleToken
+import snc.openchargingnetwork.node.models.HttpResponse
+import snc.openchargingnetwork.node.models.OcnHeaders
+import snc.openchargingnetwork.node.models.entities.OcnRules
+import snc.openchargingnetwork.node.models.entities.PlatformEntity
+import snc.openchargingnetwork.node.models.ocpi.*
+import java.net.ConnectException
+
+class TokenAuthorizationServiceTest {
+
+    private val routingService: RoutingService = mockk()
+    private val properties = NodeProperties().apply { localAuthorizationEnabled = true }
+    private val registry = SimpleMeterRegistry()
+
+    private val tokenAuthorizationService = TokenAuthorizationService(properties, routingService, HttpService(), registry)
+
+    private val emsp = BasicRole("ZUI", "DE")
+    private val cpo = BasicRole("CPO", "DE")
+
+    private val forwardedResponse = HttpResponse<AuthorizationInfo>(
+            statusCode = 200,
+            headers = mapOf(),
+            body = OcpiResponse(statusCode = 1000, data = AuthorizationInfo(allowed = Allowed.NOT_ALLOWED, token = exampleToken)))
+
+    init {
+        every { routingService.getPlatformRules(emsp) } returns OcnRules(localAuthorization = true)
+        every { routingService.getPlatform(emsp) } returns PlatformEntity(status = ConnectionStatus.CONNECTED)
+    }
+
+    private fun push(token: Token, sender: BasicRole = emsp) {
+        tokenAuthorizationService.index(OcpiRequestVariables(
+                module = ModuleID.TOKENS,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PUT,
+                headers = OcnHeaders("Token token-c", null, "1", "1", sender, cpo),
+                urlPath = "/DE/ZUI/${token.uid}",
+                queryParams = mapOf("type" to token.type),
+                body = token))
+    }
+
+    private fun authorize(token: Token, forward: () -> HttpResponse<AuthorizationInfo>): HttpResponse<AuthorizationInfo> {
+        val request = OcpiRequestVariables(
+                module = ModuleID.TOKENS,
+                interfaceRole = InterfaceRole.SENDER,
+                method = HttpMethod.POST,
+                headers = OcnHeaders("Token token-c", null, "1", "1", cpo, emsp),
+                urlPath = "${token.uid}/authorize",
+                queryParams = mapOf("type" to token.type),
+                body = LocationReferences(locationID = "LOC1"))
+        return tokenAuthorizationService.authorize(request, { false }, forward)
+    }
+
+    @Test
+    fun `authorize answers ALWAYS tokens locally`() {
+        val token = exampleToken.copy(uid = "always", whitelist = WhitelistType.ALWAYS)
+        push(token)
+
+        val response = authorize(token) { throw IllegalStateException("should not be forwarded") }
+        assertThat(response.body.data?.allowed).isEqualTo(Allowed.ALLOWED)
+        assertThat(response.body.data?.token?.uid).isEqualTo("always")
+        assertThat(response.body.data?.location?.locationID).isEqualTo("LOC1")
+        assertThat(registry.counter("ocn.tokens.index.lookups", "result", "hit").count()).isGreaterThan(0.0)
+    }
+
+    @Test
+    fun `authorize forwards ALLOWED_OFFLINE tokens unless eMSP is unreachable`() {
+        val token = exampleToken.copy(uid = "offline", whitelist = WhitelistType.ALLOWED_OFFLINE)
+        push(token)
+
+        assertThat(authorize(token) { forwardedResponse }.body.data?.allowed).isEqualTo(Allowed.NOT_ALLOWED)
+        assertThat(authorize(token) { throw ConnectException() }.body.data?.allowed).isEqualTo(Allowed.ALLOWED)
+    }
+
+    @Test
+    fun `authorize forwards NEVER and unknown tokens`() {
+        val token = exampleToken.copy(uid = "never", whitelist = WhitelistType.NEVER)
+        push(token)
+
+        assertThat(authorize(token) { forwardedResponse }).isEqualTo(forwardedResponse)
+        assertThat(authorize(token.copy(uid = "unknown")) { forwardedResponse }).isEqualTo(forwardedResponse)
+        assertThat(registry.counter("ocn.tokens.index.lookups", "result", "miss").count()).isGreaterThan(0.0)
+    }
+
+    @Test
+    fun `index applies patches to known tokens`() {
+        val token = exampleToken.copy(uid = "patched", whitelist = WhitelistType.ALWAYS)
+        push(token)
+        tokenAuthorizationService.index(OcpiRequestVariables(
+                module = ModuleID.TOKENS,
+                interfaceRole = InterfaceRole.RECEIVER,
+                method = HttpMethod.PATCH,
+                headers = OcnHeaders("Token token-c", null, "1", "1", emsp, cpo),
+                urlPath = "/DE/ZUI/patched",
+                queryParams = mapOf("type" to token.type),
+                body = mapOf("valid" to false, "last_updated" to "2020-01-01T00:00:00Z")))
+
+        val response = authorize(token) { throw IllegalStateException("should not be forwarded") }
+        assertThat(response.body.data?.allowed).isEqualTo(Allowed.BLOCKED)
+    }
+
+    @Test
+    fun `index ignores tokens pushed under another eMSP`() {
+        val other = BasicRole("OTH", "DE")
+        every { routingService.getPlatformRules(other) } returns OcnRules(localAuthorization = true)
+
+        val token = exampleToken.copy(uid = "foreign", whitelist = WhitelistType.ALWAYS)
+        push(token, sender = other)
+
+        assertThat(authorize(token) { forwardedResponse }).isEqualTo(forwardedResponse)
+    }
+
+}
@@ -1,6 +1,7 @@
 package snc.openchargingnetwork.node.services
 
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry
 import io.mockk.every
 import io.mockk.mockk
 import org.assertj.core.api.Assertions.assertThat
@@ -13,6 +14,7 @@ import snc.openchargingnetwork.node.models.exceptions.OcpiHubConnectionProblemEx
 import snc.openchargingnetwork.node.models.ocpi.*
 import snc.openchargingnetwork.node.tools.generatePrivateKey
 import snc.openchargingnetwork.contracts.Registry
+import snc.openchargingnetwork.node.config.NodeIdentity
 import snc.openchargingnetwork.node.config.NodeProperties
 import snc.openchargingnetwork.node.models.OcnHeaders
 import snc.openchargingnetwork.node.tools.getTimestamp
@@ -40,7 +42,8 @@ class WalletServiceTest {
     private val walletService: WalletService
 
     init {
-        walletService = WalletService(properties, registry, httpService)
+        walletService = WalletService(NodeIdentity(properties), registry, httpService,
+                CryptoService(NodeProperties(), SimpleMeterRegistry()), SignatureCacheService(NodeProperties()))
         every { properties.privateKey } returns privateKey
     }
 
@@ -100,5 +103,24 @@ class WalletServiceTest {
         assertThat(actual).isEqualTo(clientInfo)
     }
 
+    @Test
+    fun verifyClientInfoBatch() {
+        val objectMapper = jacksonObjectMapper()
+
+        val clientInfoList = listOf(
+                ClientInfo(partyID = "ABC", countryCode = "DE", role = Role.EMSP, status = ConnectionStatus.PLANNED, lastUpdated = getTimestamp()),
+                ClientInfo(partyID = "DEF", countryCode = "DE", role = Role.CPO, status = ConnectionStatus.OFFLINE, lastUpdated = getTimestamp()))
+        val clientInfoListString = objectMapper.writeValueAsString(clientInfoList)
+        val signature = walletService.sign(clientInfoListString)
+
+        every { httpService.mapper } returns objectMapper
+        for (clientInfo in clientInfoList) {
+            every { registry.getPartyDetailsByOcpi(clientInfo.countryCode.toByteArray(), clientInfo.partyID.toByteArray()).sendAsync().get().component5() } returns address
+        }
+
+        val actual = walletService.verifyClientInfoBatch(clientInfoListString, signature)
+        assertThat(actual).isEqualTo(clientInfoList)
+    }
+
 
 }
\ No newline at end of file
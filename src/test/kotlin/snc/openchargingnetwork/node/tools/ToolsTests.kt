@@ -13,4 +13,31 @@ class ToolsTests {
         assertThat(urlJoin("http://localhost:3000", "/endpoint/")).isEqualTo("http://localhost:3000/endpoint")
     }
 
+    @Test
+    fun namedDaemonThreadFactory() {
+        val factory = namedDaemonThreadFactory("ocn-test")
+        val first = factory.newThread {}
+        val second = factory.newThread {}
+        assertThat(first.name).isEqualTo("ocn-test-1")
+        assertThat(second.name).isEqualTo("ocn-test-2")
+        assertThat(first.isDaemon).isTrue()
+    }
+
+    @Test
+    fun lruMap() {
+        val map = LruMap<String, Int>(2)
+        map["a"] = 1
+        map["b"] = 2
+        map["a"]
+        map["c"] = 3
+        assertThat(map.keys).containsExactly("a", "c")
+    }
+
+    @Test
+    fun afterCommit_withoutTransaction() {
+        var run = false
+        afterCommit { run = true }
+        assertThat(run).isTrue()
+    }
+
 }
\ No newline at end of file
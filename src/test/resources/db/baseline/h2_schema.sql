@@ -0,0 +1,78 @@
+-- Schema of a database created by the last released node (Hibernate, ddl-auto=update), from which migrations must
+-- be able to upgrade. Run as the H2 INIT script of the MigrationTests database, so is idempotent.
+
+CREATE SEQUENCE IF NOT EXISTS hibernate_sequence START WITH 1 INCREMENT BY 1;
+
+CREATE TABLE IF NOT EXISTS platforms (
+    id BIGINT NOT NULL,
+    status INTEGER,
+    last_updated VARCHAR(255),
+    versions_url VARCHAR(255),
+    tokena VARCHAR(255),
+    tokenb VARCHAR(255),
+    tokenc VARCHAR(255),
+    signatures BOOLEAN DEFAULT FALSE,
+    blacklist BOOLEAN DEFAULT FALSE,
+    whitelist BOOLEAN DEFAULT FALSE,
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS roles (
+    id BIGINT NOT NULL,
+    platformid BIGINT NOT NULL,
+    role VARCHAR(255),
+    name VARCHAR(255),
+    website VARCHAR(255),
+    url VARCHAR(255),
+    thumbnail VARCHAR(255),
+    category INTEGER,
+    type VARCHAR(255),
+    width INTEGER,
+    height INTEGER,
+    partyid VARCHAR(255),
+    country_code VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS endpoints (
+    id BIGINT NOT NULL,
+    platformid BIGINT NOT NULL,
+    identifier VARCHAR(255),
+    role VARCHAR(255),
+    url VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS proxy_resources (
+    id BIGINT NOT NULL,
+    sender_id VARCHAR(255),
+    sender_country VARCHAR(255),
+    receiver_id VARCHAR(255),
+    receiver_country VARCHAR(255),
+    resource VARCHAR(255),
+    alternativeuid VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS ocn_rules_list (
+    id BIGINT NOT NULL,
+    platformid BIGINT NOT NULL,
+    sender_id VARCHAR(255),
+    sender_country VARCHAR(255),
+    PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS ocn_rules_list_entity_modules (
+    ocn_rules_list_entity_id BIGINT NOT NULL,
+    modules VARCHAR(255)
+);
+
+CREATE TABLE IF NOT EXISTS network_client_info (
+    id BIGINT NOT NULL,
+    sender_id VARCHAR(255),
+    sender_country VARCHAR(255),
+    role VARCHAR(255),
+    status VARCHAR(255),
+    last_updated VARCHAR(255),
+    PRIMARY KEY (id)
+);